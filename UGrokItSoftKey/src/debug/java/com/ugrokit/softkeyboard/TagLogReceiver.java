@@ -0,0 +1,48 @@
+package com.ugrokit.softkeyboard;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import java.util.Arrays;
+
+/**
+ * Debug builds only: a TagBroadcaster consumer that logs each batch, for
+ * trying "Send tags to apps" without another app installed.  It is
+ * disabled in the manifest, so it doesn't turn off the fallback to typing;
+ * enable it with
+ * <pre>
+ *   adb shell pm enable com.ugrokit.softkeyboard/.TagLogReceiver
+ * </pre>
+ */
+public class TagLogReceiver extends BroadcastReceiver {
+
+  private static final String TAG = "TagLogReceiver";
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    byte[] epcs = intent.getByteArrayExtra(TagBroadcaster.EXTRA_EPCS);
+    byte[] lengths = intent.getByteArrayExtra(TagBroadcaster.EXTRA_EPC_LENGTHS);
+    long[] times = intent.getLongArrayExtra(TagBroadcaster.EXTRA_TIMESTAMPS);
+    float[] rssi = intent.getFloatArrayExtra(TagBroadcaster.EXTRA_RSSI);
+    long sequence = intent.getLongExtra(TagBroadcaster.EXTRA_SEQUENCE, 0);
+    if (epcs == null || lengths == null || times == null || rssi == null) {
+      Log.w(TAG, "Batch without tags");
+      return;
+    }
+    Log.i(TAG, lengths.length + " tags from " + sequence + ", "
+        + intent.getLongExtra(TagBroadcaster.EXTRA_DROPPED, 0) + " dropped");
+    StringBuilder sb = new StringBuilder();
+    int offset = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      sb.setLength(0);
+      OutputTemplate.appendHex(Arrays.copyOfRange(epcs, offset, offset + lengths[i]), sb);
+      offset += lengths[i];
+      sb.append(' ').append(times[i]);
+      if (!Float.isNaN(rssi[i])) {
+        sb.append(' ').append(rssi[i]);
+      }
+      Log.i(TAG, sb.toString());
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.ugrokit.softkeyboard;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Decides when an alternating UHF/HF scan switches bands.
+ *
+ * The reader can only run one band at a time, and each switch costs an
+ * inventory stop and start, so fixed time slices either waste time on a
+ * band with nothing left to find or leave one with tags still arriving.
+ * Instead each dwell lasts as long as its band keeps turning up tags not
+ * seen earlier in the scan (re-finding the last visit's tags doesn't
+ * count): after MIN_DWELL_MSEC it ends once no new tag has been found for
+ * QUIET_MSEC, and it never runs past MAX_DWELL_MSEC, so the other band is
+ * always revisited.  A band that has gone dry costs only its minimum dwell
+ * per cycle; a productive one keeps the reader.
+ */
+final class BandScheduler {
+
+  interface Listener {
+    /** Called on the main thread when the scan should move to the other band */
+    void onSwitchBand(boolean hf);
+  }
+
+  private static final long MIN_DWELL_MSEC = 300;
+  private static final long MAX_DWELL_MSEC = 3000;
+  private static final long QUIET_MSEC = 250;
+  private static final long CHECK_INTERVAL_MSEC = 50;
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final Runnable mCheck = new Runnable() {
+    @Override
+    public void run() {
+      check();
+    }
+  };
+
+  // Every tag found since start(), in either band
+  private final EpcIndex mSeen = new EpcIndex();
+  private boolean mRunning;
+  private boolean mHf;
+  private long mDwellStart;
+  private long mLastNewTag;
+
+  BandScheduler(Handler handler, Listener listener) {
+    this.mHandler = handler;
+    this.mListener = listener;
+  }
+
+  void start(boolean hf) {
+    mSeen.clear();
+    startDwell(hf);
+  }
+
+  /**
+   * Starts timing a dwell on one band, once its inventory is running.
+   */
+  void startDwell(boolean hf) {
+    mHandler.removeCallbacks(mCheck);
+    mRunning = true;
+    mHf = hf;
+    mDwellStart = SystemClock.uptimeMillis();
+    mLastNewTag = mDwellStart;
+    mHandler.postDelayed(mCheck, MIN_DWELL_MSEC);
+  }
+
+  void stop() {
+    mHandler.removeCallbacks(mCheck);
+    mRunning = false;
+  }
+
+  boolean isRunning() {
+    return mRunning;
+  }
+
+  boolean isHf() {
+    return mHf;
+  }
+
+  void tagFound(byte[] epc) {
+    if (mSeen.find(epc) < 0) {
+      mSeen.add(epc);
+      mLastNewTag = SystemClock.uptimeMillis();
+    }
+  }
+
+  private void check() {
+    if (!mRunning) {
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (now - mDwellStart >= MAX_DWELL_MSEC || now - mLastNewTag >= QUIET_MSEC) {
+      // Waits for startDwell() once the other band's inventory is running
+      mRunning = false;
+      mListener.onSwitchBand(!mHf);
+    } else {
+      mHandler.postDelayed(mCheck, CHECK_INTERVAL_MSEC);
+    }
+  }
+}
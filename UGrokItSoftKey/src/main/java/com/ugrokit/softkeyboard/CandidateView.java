@@ -16,7 +16,6 @@
 
 package com.ugrokit.softkeyboard;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Canvas;
@@ -28,43 +27,93 @@ import android.view.MotionEvent;
 import android.view.View;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CandidateView extends View {
 
     private static final int OUT_OF_BOUNDS = -1;
 
     private SoftKeyboard mService;
-    private List<String> mSuggestions;
+    private final ArrayList<String> mSuggestions = new ArrayList<>();
+    // Either mSuggestions, or the service's list of scanned tags
+    private List<String> mItems = mSuggestions;
+    private boolean mShowingScanResults;
     private int mSelectedIndex;
     private int mTouchX = OUT_OF_BOUNDS;
     private Drawable mSelectionHighlight;
     private boolean mTypedWordValid;
 
     private Rect mBgPadding;
+    private final Rect mSelectionPadding = new Rect();
 
-    private static final int MAX_SUGGESTIONS = 32;
+    private static final int INITIAL_CAPACITY = 32;
     private static final int SCROLL_PIXELS = 20;
 
-    private int[] mWordWidth = new int[MAX_SUGGESTIONS];
-    private int[] mWordX = new int[MAX_SUGGESTIONS];
+    private int[] mWordWidth = new int[INITIAL_CAPACITY];
+    private int[] mWordX = new int[INITIAL_CAPACITY];
 
     private static final int X_GAP = 10;
 
-    private static final List<String> EMPTY_LIST = new ArrayList<>();
-
     private int mColorNormal;
     private int mColorRecommended;
     private int mColorOther;
     private int mVerticalPadding;
     private Paint mPaint;
     private boolean mScrolled;
+    private boolean mLongPressed;
     private int mTargetScrollX;
 
     private int mTotalWidth;
 
     private GestureDetector mGestureDetector;
 
+    private final TextWidthCache mWidthCache = new TextWidthCache();
+
+    /**
+     * Caches measured text widths by suggestion string.  The cache is only valid
+     * for the paint state it was built with, so it is dropped whenever the text
+     * size, scale or typeface of the paint changes.  It holds at least as many
+     * strings as the strip, least recently used out first, so laying out the
+     * whole strip again never measures what it measured last time.
+     */
+    private static class TextWidthCache {
+        private static final int MIN_ENTRIES = 1024;
+
+        private int mCapacity = MIN_ENTRIES;
+        private final LinkedHashMap<String, Float> mWidths = new LinkedHashMap<String, Float>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+                return size() > mCapacity;
+            }
+        };
+        private float mTextSize;
+        private float mTextScaleX;
+        private Object mTypeface;
+
+        float measure(Paint paint, String text) {
+            if (paint.getTextSize() != mTextSize
+                    || paint.getTextScaleX() != mTextScaleX
+                    || paint.getTypeface() != mTypeface) {
+                mWidths.clear();
+                mTextSize = paint.getTextSize();
+                mTextScaleX = paint.getTextScaleX();
+                mTypeface = paint.getTypeface();
+            }
+            Float width = mWidths.get(text);
+            if (width == null) {
+                width = paint.measureText(text);
+                mWidths.put(text, width);
+            }
+            return width;
+        }
+
+        void ensureCapacity(int items) {
+            mCapacity = Math.max(mCapacity, items);
+        }
+    }
+
     /*
      * Construct a CandidateView for showing suggested words for completion.
      */
@@ -112,6 +161,16 @@ public class CandidateView extends View {
                 invalidate();
                 return true;
             }
+
+            @Override
+            public void onLongPress(MotionEvent e) {
+                if (mShowingScanResults && !mScrolled && mSelectedIndex >= 0) {
+                    mLongPressed = true;
+                    mService.removeScanResult(mSelectedIndex);
+                    mSelectedIndex = -1;
+                    removeHighlight();
+                }
+            }
         });
         setHorizontalFadingEdgeEnabled(true);
         setWillNotDraw(false);
@@ -137,7 +196,7 @@ public class CandidateView extends View {
         
         // Get the desired height of the icon menu view (last row of items does
         // not have a divider below)
-        Rect padding = new Rect();
+        final Rect padding = mSelectionPadding;
         mSelectionHighlight.getPadding(padding);
         final int desiredHeight = ((int)mPaint.getTextSize()) + mVerticalPadding
                 + padding.top + padding.bottom;
@@ -148,68 +207,116 @@ public class CandidateView extends View {
     }
 
     /**
-     * If the canvas is null, then only touch calculations are performed to pick the target
-     * candidate.
+     * Computes the position and width of every item from index {@code first}
+     * on; items before it keep their layout.  Widths come from the text width
+     * cache, so this only measures strings that have not been seen before with
+     * the current paint.
      */
+    private void layoutItems(int first) {
+        final int count = mItems.size();
+        mWidthCache.ensureCapacity(count);
+        if (mWordX.length < count) {
+            int capacity = Math.max(count, mWordX.length * 2);
+            int[] wordX = new int[capacity];
+            int[] wordWidth = new int[capacity];
+            System.arraycopy(mWordX, 0, wordX, 0, first);
+            System.arraycopy(mWordWidth, 0, wordWidth, 0, first);
+            mWordX = wordX;
+            mWordWidth = wordWidth;
+        }
+        int x = first > 0 ? mWordX[first - 1] + mWordWidth[first - 1] : 0;
+        for (int i = first; i < count; i++) {
+            final int wordWidth = (int) mWidthCache.measure(mPaint, mItems.get(i)) + X_GAP * 2;
+            mWordX[i] = x;
+            mWordWidth[i] = wordWidth;
+            x += wordWidth;
+        }
+        mTotalWidth = x;
+    }
+
+    /**
+     * Returns the index of the suggestion under the given content x coordinate,
+     * or -1 if there is none.
+     */
+    private int indexAtX(int x) {
+        int low = 0;
+        int high = mItems.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (x < mWordX[mid]) {
+                high = mid - 1;
+            } else if (x >= mWordX[mid] + mWordWidth[mid]) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void updateSelectedIndex() {
+        if (mTouchX != OUT_OF_BOUNDS && !mScrolled) {
+            mSelectedIndex = indexAtX(mTouchX + getScrollX());
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
-        if (canvas != null) {
-            super.onDraw(canvas);
-        }
-        mTotalWidth = 0;
-        if (mSuggestions == null) return;
-        
+        super.onDraw(canvas);
+        if (mItems.isEmpty()) return;
+
         if (mBgPadding == null) {
             mBgPadding = new Rect(0, 0, 0, 0);
             if (getBackground() != null) {
                 getBackground().getPadding(mBgPadding);
             }
         }
-        int x = 0;
-        final int count = mSuggestions.size(); 
+        final List<String> items = mItems;
+        final int count = items.size();
         final int height = getHeight();
         final Rect bgPadding = mBgPadding;
         final Paint paint = mPaint;
-        final int touchX = mTouchX;
-        final int scrollX = getScrollX();
-        final boolean scrolled = mScrolled;
+        final boolean highlight = mTouchX != OUT_OF_BOUNDS && !mScrolled;
         final boolean typedWordValid = mTypedWordValid;
+        final boolean scanResults = mShowingScanResults;
         final int y = (int) (((height - mPaint.getTextSize()) / 2) - mPaint.ascent());
 
-        for (int i = 0; i < count; i++) {
-            String suggestion = mSuggestions.get(i);
-            float textWidth = paint.measureText(suggestion);
-            final int wordWidth = (int) textWidth + X_GAP * 2;
+        // Only draw the items that intersect the visible window; the strip can
+        // hold many thousands of scanned tags.
+        final int scrollX = getScrollX();
+        final int right = scrollX + getWidth();
+        int first = indexAtX(scrollX);
+        if (first < 0) {
+            // Scrolled before the start, or past the end while items are removed
+            first = scrollX <= 0 ? 0 : count - 1;
+        }
 
-            mWordX[i] = x;
-            mWordWidth[i] = wordWidth;
+        for (int i = first; i < count && mWordX[i] < right; i++) {
+            final int x = mWordX[i];
+            final int wordWidth = mWordWidth[i];
             paint.setColor(mColorNormal);
-            if (touchX + scrollX >= x && touchX + scrollX < x + wordWidth && !scrolled) {
-                if (canvas != null) {
-                    canvas.translate(x, 0);
-                    mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
-                    mSelectionHighlight.draw(canvas);
-                    canvas.translate(-x, 0);
-                }
-                mSelectedIndex = i;
+            if (highlight && i == mSelectedIndex) {
+                canvas.translate(x, 0);
+                mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
+                mSelectionHighlight.draw(canvas);
+                canvas.translate(-x, 0);
             }
 
-            if (canvas != null) {
+            // Scanned tags are all drawn alike
+            if (!scanResults) {
                 if ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid)) {
                     paint.setFakeBoldText(true);
                     paint.setColor(mColorRecommended);
                 } else if (i != 0) {
                     paint.setColor(mColorOther);
                 }
-                canvas.drawText(suggestion, x + X_GAP, y, paint);
-                paint.setColor(mColorOther); 
-                canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
-                        x + wordWidth + 0.5f, height + 1, paint);
-                paint.setFakeBoldText(false);
             }
-            x += wordWidth;
+            canvas.drawText(items.get(i), x + X_GAP, y, paint);
+            paint.setColor(mColorOther);
+            canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top,
+                    x + wordWidth + 0.5f, height + 1, paint);
+            paint.setFakeBoldText(false);
         }
-        mTotalWidth = x;
         if (mTargetScrollX != getScrollX()) {
             scrollToTarget();
         }
@@ -234,24 +341,96 @@ public class CandidateView extends View {
         invalidate();
     }
     
-    @SuppressLint("WrongCall")
     public void setSuggestions(List<String> suggestions, boolean completions,
             boolean typedWordValid) {
         clear();
         if (suggestions != null) {
-            mSuggestions = new ArrayList<>(suggestions);
+            for (int i = 0, count = suggestions.size(); i < count; i++) {
+                mSuggestions.add(suggestions.get(i));
+            }
         }
         mTypedWordValid = typedWordValid;
         scrollTo(0, 0);
         mTargetScrollX = 0;
-        // Compute the total width
-        onDraw(null);
+        layoutItems(0);
         invalidate();
         requestLayout();
     }
 
+    /**
+     * Shows the service's list of scanned tags instead of suggestions.  The list
+     * is not copied; call {@link #scanResultsChanged} whenever it is modified.
+     */
+    public void showScanResults(List<String> scanResults) {
+        clear();
+        mItems = scanResults;
+        mShowingScanResults = true;
+        layoutItems(0);
+        scrollToEnd();
+        requestLayout();
+    }
+
+    /**
+     * Re-lays out the scanned tags from index {@code first} on.  If tags were
+     * appended, the strip scrolls to show the newest one.  For a removal use
+     * {@link #scanResultRemoved}, which measures nothing.
+     */
+    public void scanResultsChanged(int first, boolean appended) {
+        if (!mShowingScanResults) return;
+        if (first > mItems.size()) {
+            first = mItems.size();
+        }
+        layoutItems(first);
+        if (appended) {
+            scrollToEnd();
+        } else if (mTargetScrollX > Math.max(mTotalWidth - getWidth(), 0)) {
+            mTargetScrollX = Math.max(mTotalWidth - getWidth(), 0);
+        }
+        invalidate();
+    }
+
+    /**
+     * Drops the scanned tag that was at {@code index}; the tags after it slide
+     * back by its width, keeping their measured widths.
+     */
+    public void scanResultRemoved(int index) {
+        if (!mShowingScanResults) return;
+        final int count = mItems.size();
+        if (index < 0 || index > count) return;
+        final int removed = mWordWidth[index];
+        for (int i = index; i < count; i++) {
+            mWordX[i] = mWordX[i + 1] - removed;
+            mWordWidth[i] = mWordWidth[i + 1];
+        }
+        mTotalWidth -= removed;
+        if (mTargetScrollX > Math.max(mTotalWidth - getWidth(), 0)) {
+            mTargetScrollX = Math.max(mTotalWidth - getWidth(), 0);
+        }
+        invalidate();
+    }
+
+    public boolean isShowingScanResults() {
+        return mShowingScanResults;
+    }
+
+    private void scrollToEnd() {
+        mTargetScrollX = Math.max(mTotalWidth - getWidth(), 0);
+        invalidate();
+    }
+
+    private void pickItem(int index) {
+        if (mShowingScanResults) {
+            mService.pickScanResult(index);
+        } else {
+            mService.pickSuggestionManually(index);
+        }
+    }
+
     public void clear() {
-        mSuggestions = EMPTY_LIST;
+        mSuggestions.clear();
+        mItems = mSuggestions;
+        mShowingScanResults = false;
+        mTotalWidth = 0;
         mTouchX = OUT_OF_BOUNDS;
         mSelectedIndex = -1;
         invalidate();
@@ -272,12 +451,15 @@ public class CandidateView extends View {
         switch (action) {
         case MotionEvent.ACTION_DOWN:
             mScrolled = false;
+            mLongPressed = false;
+            updateSelectedIndex();
             invalidate();
             break;
         case MotionEvent.ACTION_MOVE:
+            updateSelectedIndex();
             if (y <= 0) {
                 // Fling up!?
-                if (mSelectedIndex >= 0) {
+                if (mSelectedIndex >= 0 && !mShowingScanResults) {
                     mService.pickSuggestionManually(mSelectedIndex);
                     mSelectedIndex = -1;
                 }
@@ -285,9 +467,9 @@ public class CandidateView extends View {
             invalidate();
             break;
         case MotionEvent.ACTION_UP:
-            if (!mScrolled) {
+            if (!mScrolled && !mLongPressed) {
                 if (mSelectedIndex >= 0) {
-                    mService.pickSuggestionManually(mSelectedIndex);
+                    pickItem(mSelectedIndex);
                 }
             }
             mSelectedIndex = -1;
@@ -302,13 +484,12 @@ public class CandidateView extends View {
      * For flick through from keyboard, call this method with the x coordinate of the flick 
      * gesture.
      */
-    @SuppressLint("WrongCall")
     public void takeSuggestionAt(float x) {
         mTouchX = (int) x;
         // To detect candidate
-        onDraw(null);
+        updateSelectedIndex();
         if (mSelectedIndex >= 0) {
-            mService.pickSuggestionManually(mSelectedIndex);
+            pickItem(mSelectedIndex);
         }
         invalidate();
     }
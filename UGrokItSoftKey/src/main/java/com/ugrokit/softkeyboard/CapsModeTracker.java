@@ -0,0 +1,128 @@
+package com.ugrokit.softkeyboard;
+
+import android.text.TextUtils;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Keeps a local copy of the text just before the cursor so the keyboard can
+ * work out the editor's caps mode itself, instead of asking the editor with
+ * InputConnection.getCursorCapsMode() after every key.
+ *
+ * The copy is refreshed from the editor (one getTextBeforeCursor() call) only
+ * after something other than this keyboard has moved the cursor or changed the
+ * text, which is detected from the selection updates the editor sends us.
+ */
+final class CapsModeTracker {
+
+  private static final int TAIL_LENGTH = 32;
+  private static final int CAP_MODES = TextUtils.CAP_MODE_CHARACTERS
+                                       | TextUtils.CAP_MODE_WORDS
+                                       | TextUtils.CAP_MODE_SENTENCES;
+
+  private final StringBuilder mTail = new StringBuilder(TAIL_LENGTH * 2);
+  private boolean mValid;
+
+  // Where we expect the cursor to be once the editor has applied all of our
+  // edits, and the lowest position it has passed through on the way.  Selection
+  // updates lag behind our edits, so anything in between is still in sync.
+  private int mExpectedCursor = -1;
+  private int mMinCursor = -1;
+
+  /**
+   * Starts tracking a new field (or a restarted one) with the cursor at the given
+   * position, or -1 if the editor didn't say.
+   */
+  void reset(int cursor) {
+    mValid = false;
+    mExpectedCursor = cursor;
+    mMinCursor = cursor;
+  }
+
+  /**
+   * Forget the local copy; the next caps mode query re-reads the editor.
+   */
+  void invalidate() {
+    mValid = false;
+  }
+
+  void onTextCommitted(CharSequence text) {
+    if (mValid) {
+      mTail.append(text);
+      if (mTail.length() > TAIL_LENGTH * 2) {
+        mTail.delete(0, mTail.length() - TAIL_LENGTH);
+      }
+    }
+    if (mExpectedCursor >= 0) {
+      mExpectedCursor += text.length();
+    }
+  }
+
+  void onTextCommitted(char c) {
+    if (mValid) {
+      mTail.append(c);
+      if (mTail.length() > TAIL_LENGTH * 2) {
+        mTail.delete(0, mTail.length() - TAIL_LENGTH);
+      }
+    }
+    if (mExpectedCursor >= 0) {
+      mExpectedCursor++;
+    }
+  }
+
+  void onCharacterDeleted() {
+    if (mValid) {
+      if (mTail.length() > 0) {
+        mTail.setLength(mTail.length() - 1);
+      }
+      if (mTail.length() == 0) {
+        // We no longer know what precedes the cursor.
+        mValid = false;
+      }
+    }
+    if (mExpectedCursor > 0) {
+      mExpectedCursor--;
+      mMinCursor = Math.min(mMinCursor, mExpectedCursor);
+    }
+  }
+
+  /**
+   * Called with each selection update from the editor.
+   */
+  void onUpdateSelection(int newSelStart, int newSelEnd) {
+    if (mExpectedCursor < 0) {
+      mExpectedCursor = mMinCursor = newSelEnd;
+      return;
+    }
+    if (newSelStart != newSelEnd || newSelEnd < mMinCursor || newSelEnd > mExpectedCursor) {
+      // The user moved the cursor, or the app changed the text.
+      mValid = false;
+      mExpectedCursor = mMinCursor = newSelEnd;
+    } else if (newSelEnd == mExpectedCursor) {
+      mMinCursor = mExpectedCursor;
+    }
+  }
+
+  /**
+   * Equivalent to ic.getCursorCapsMode(reqModes), but only talks to the editor
+   * when the local copy of the text is stale.  Fields that don't ask for any
+   * automatic capitalization never cost a call.
+   */
+  int getCursorCapsMode(InputConnection ic, int reqModes) {
+    reqModes &= CAP_MODES;
+    if (reqModes == 0) {
+      return 0;
+    }
+    if (!mValid) {
+      if (ic == null) {
+        return 0;
+      }
+      CharSequence before = ic.getTextBeforeCursor(TAIL_LENGTH, 0);
+      mTail.setLength(0);
+      if (before != null) {
+        mTail.append(before);
+      }
+      mValid = true;
+    }
+    return TextUtils.getCapsMode(mTail, mTail.length(), reqModes);
+  }
+}
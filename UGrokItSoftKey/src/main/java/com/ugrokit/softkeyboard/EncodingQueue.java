@@ -0,0 +1,246 @@
+package com.ugrokit.softkeyboard;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.ugrokit.api.UgiEpc;
+import com.ugrokit.api.UgiInventory;
+import com.ugrokit.api.UgiTag;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Programs a list of new EPCs onto tags as they turn up in an inventory, in
+ * list order.
+ *
+ * Tags found by the inventory queue up; exactly one programTag() is in flight
+ * at a time and the next starts from its completion, so the reader is never
+ * idle while tags are waiting.  Failures are retried with exponential backoff
+ * before the tag is given up on.  Tags that already carry one of the target
+ * EPCs (including ones just programmed, when the inventory hears them again)
+ * are never touched.
+ */
+final class EncodingQueue {
+
+  interface Listener {
+    void onTagEncoded(UgiTag tag, byte[] newEpc);
+    void onTagFailed(byte[] epc, UgiInventory.TagAccessReturnValues result);
+    /** Called once every target EPC has been programmed */
+    void onEncodingDone();
+  }
+
+  private static final int MAX_ATTEMPTS = 4;
+  private static final long FIRST_RETRY_MSEC = 100;
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final byte[][] mTargets;
+  // Every target EPC, so tags carrying one are skipped
+  private final EpcIndex mTargetIndex = new EpcIndex();
+  // Tags given up on, or queued or in flight, so they aren't queued twice
+  private final EpcIndex mSeen = new EpcIndex();
+  private final ArrayDeque<UgiTag> mPending = new ArrayDeque<>();
+
+  private UgiInventory mInventory;
+  private int mNextTarget;
+  private boolean mInFlight;
+  private UgiTag mCurrentTag;
+  private int mAttempts;
+  private int mFailedCount;
+  private long mFirstEncodeTime;
+
+  private final Runnable mRetry = new Runnable() {
+    @Override
+    public void run() {
+      programCurrent();
+    }
+  };
+
+  EncodingQueue(Handler handler, Listener listener, byte[][] targets) {
+    this.mHandler = handler;
+    this.mListener = listener;
+    this.mTargets = targets;
+    for (byte[] target : targets) {
+      mTargetIndex.add(target);
+    }
+  }
+
+  /**
+   * Parses one EPC in hex per line (the first column, for CSV), keeping
+   * the list's order and dropping repeats.
+   */
+  static byte[][] parseTargets(CharSequence text) {
+    ArrayList<byte[]> targets = new ArrayList<>();
+    EpcIndex index = new EpcIndex();
+    for (String line : text.toString().split("\n")) {
+      String column = line.trim();
+      int end = 0;
+      while (end < column.length() && ",;\t ".indexOf(column.charAt(end)) < 0) {
+        end++;
+      }
+      column = column.substring(0, end).replace("\"", "").replace("'", "");
+      int digits = column.length();
+      if (digits < 2 || (digits & 1) != 0 || digits > UgiEpc.MAX_EPC_LENGTH * 2) {
+        continue;
+      }
+      byte[] epc = new byte[digits / 2];
+      boolean hex = true;
+      for (int i = 0; i < epc.length && hex; i++) {
+        int hi = Character.digit(column.charAt(2 * i), 16);
+        int lo = Character.digit(column.charAt(2 * i + 1), 16);
+        hex = hi >= 0 && lo >= 0;
+        epc[i] = (byte) ((hi << 4) | lo);
+      }
+      if (hex && index.find(epc) < 0) {
+        index.add(epc);
+        targets.add(epc);
+      }
+    }
+    return targets.toArray(new byte[targets.size()][]);
+  }
+
+  /**
+   * Reads a list of target EPCs; see {@link #parseTargets}.
+   */
+  static byte[][] loadTargets(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return parseTargets(new String(bytes, "US-ASCII"));
+  }
+
+  void start(UgiInventory inventory) {
+    mInventory = inventory;
+    if (!mInFlight) {
+      // Otherwise the access left over from before stop() starts it
+      startNext();
+    }
+  }
+
+  /**
+   * Drops queued tags; an access already in flight completes but nothing
+   * further is started, unless start() is called again meanwhile.
+   */
+  void stop() {
+    mInventory = null;
+    mHandler.removeCallbacks(mRetry);
+    mPending.clear();
+    mSeen.clear();
+    mCurrentTag = null;
+  }
+
+  /**
+   * Offers a tag from the inventory.
+   */
+  void tagFound(UgiTag tag, byte[] epc) {
+    if (isDone() || mTargetIndex.find(epc) >= 0 || mSeen.find(epc) >= 0) {
+      return;
+    }
+    mSeen.add(epc);
+    mPending.add(tag);
+    if (!mInFlight && mCurrentTag == null) {
+      startNext();
+    }
+  }
+
+  boolean isDone() {
+    return mNextTarget >= mTargets.length;
+  }
+
+  int getEncodedCount() {
+    return mNextTarget;
+  }
+
+  int getRemainingCount() {
+    return mTargets.length - mNextTarget;
+  }
+
+  int getFailedCount() {
+    return mFailedCount;
+  }
+
+  /**
+   * Tags programmed per minute since the first one, or 0 until there are two.
+   */
+  float getTagsPerMinute() {
+    if (mNextTarget < 2) {
+      return 0;
+    }
+    long elapsed = SystemClock.uptimeMillis() - mFirstEncodeTime;
+    return elapsed > 0 ? (mNextTarget - 1) * 60000f / elapsed : 0;
+  }
+
+  private void startNext() {
+    if (mInventory == null || isDone()) {
+      return;
+    }
+    mCurrentTag = mPending.poll();
+    mAttempts = 0;
+    if (mCurrentTag != null) {
+      programCurrent();
+    }
+  }
+
+  private void programCurrent() {
+    final UgiTag tag = mCurrentTag;
+    if (mInventory == null || tag == null) {
+      return;
+    }
+    final byte[] newEpc = mTargets[mNextTarget];
+    mInFlight = true;
+    mAttempts++;
+    mInventory.programTag(tag.getEpc(), new UgiEpc(newEpc), UgiInventory.NO_PASSWORD,
+                          new UgiInventory.TagAccessCompletion() {
+      @Override
+      public void exec(UgiTag programmed, UgiInventory.TagAccessReturnValues result) {
+        mInFlight = false;
+        if (mCurrentTag != tag) {
+          // Stopped meanwhile.  A write that went through still used up its
+          // target, and tags queued since a restart are waiting on this
+          if (result == UgiInventory.TagAccessReturnValues.OK) {
+            encoded(programmed, newEpc);
+          }
+          if (mCurrentTag == null) {
+            startNext();
+          }
+          return;
+        }
+        if (result == UgiInventory.TagAccessReturnValues.OK) {
+          mCurrentTag = null;
+          encoded(programmed, newEpc);
+          startNext();
+        } else if (isRetryable(result) && mAttempts < MAX_ATTEMPTS) {
+          mHandler.postDelayed(mRetry, FIRST_RETRY_MSEC << (mAttempts - 1));
+        } else {
+          mFailedCount++;
+          mCurrentTag = null;
+          mListener.onTagFailed(tag.getEpc().toBytes(), result);
+          startNext();
+        }
+      }
+    });
+  }
+
+  private void encoded(UgiTag programmed, byte[] newEpc) {
+    if (mNextTarget == 0) {
+      mFirstEncodeTime = SystemClock.uptimeMillis();
+    }
+    mNextTarget++;
+    mListener.onTagEncoded(programmed, newEpc);
+    if (isDone()) {
+      mListener.onEncodingDone();
+    }
+  }
+
+  private static boolean isRetryable(UgiInventory.TagAccessReturnValues result) {
+    return result == UgiInventory.TagAccessReturnValues.TAG_NOT_FOUND
+        || result == UgiInventory.TagAccessReturnValues.GENERAL_ERROR;
+  }
+}
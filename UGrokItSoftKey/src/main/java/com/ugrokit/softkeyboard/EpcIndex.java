@@ -0,0 +1,104 @@
+package com.ugrokit.softkeyboard;
+
+import java.util.Arrays;
+
+/**
+ * Assigns each distinct EPC a dense id (0, 1, 2...) so per-tag state can live
+ * in plain primitive arrays indexed by id.  An open addressing table of EPC
+ * hashes maps EPC bytes to ids; a lookup costs one hash and usually one
+ * array comparison.
+ */
+final class EpcIndex {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  // Slot -> id + 1, 0 = empty.  Always at most half full.
+  private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+  private int[] mHashes = new int[INITIAL_CAPACITY];
+  private byte[][] mEpcs = new byte[INITIAL_CAPACITY][];
+  private int mSize;
+
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Current capacity; arrays kept alongside the index should be at least
+   * this long after each {@link #add}.
+   */
+  int capacity() {
+    return mHashes.length;
+  }
+
+  byte[] getEpc(int id) {
+    return mEpcs[id];
+  }
+
+  /**
+   * Returns the id of an EPC, or -1 if it hasn't been added.
+   */
+  int find(byte[] epc) {
+    final int hash = Arrays.hashCode(epc);
+    final int mask = mSlots.length - 1;
+    int slot = hash & mask;
+    while (mSlots[slot] != 0) {
+      int id = mSlots[slot] - 1;
+      if (mHashes[id] == hash && Arrays.equals(mEpcs[id], epc)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the id of an EPC, adding it if it's new.  The array is kept, not
+   * copied, so it mustn't be changed afterwards.
+   */
+  int add(byte[] epc) {
+    final int hash = Arrays.hashCode(epc);
+    int mask = mSlots.length - 1;
+    int slot = hash & mask;
+    while (mSlots[slot] != 0) {
+      int id = mSlots[slot] - 1;
+      if (mHashes[id] == hash && Arrays.equals(mEpcs[id], epc)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (mSize == mHashes.length) {
+      grow();
+      mask = mSlots.length - 1;
+      slot = hash & mask;
+      while (mSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+    }
+    int id = mSize++;
+    mHashes[id] = hash;
+    mEpcs[id] = epc;
+    mSlots[slot] = id + 1;
+    return id;
+  }
+
+  void clear() {
+    Arrays.fill(mEpcs, 0, mSize, null);
+    Arrays.fill(mSlots, 0);
+    mSize = 0;
+  }
+
+  private void grow() {
+    int capacity = mHashes.length * 2;
+    mHashes = Arrays.copyOf(mHashes, capacity);
+    mEpcs = Arrays.copyOf(mEpcs, capacity);
+    mSlots = new int[capacity * 2];
+    final int mask = mSlots.length - 1;
+    for (int id = 0; id < mSize; id++) {
+      int slot = mHashes[id] & mask;
+      while (mSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      mSlots[slot] = id + 1;
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package com.ugrokit.softkeyboard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An expected list of EPCs to reconcile an inventory against.
+ *
+ * The list is parsed straight from the file's bytes: the first column of each
+ * line, if it's hex, is packed into a 128 bit key (two longs) plus a length.
+ * Keys are sorted once, so checking a found tag is a binary search over
+ * primitive arrays, and a bit per entry records which have been found.  Tags
+ * not on the list are collected as unexpected.  EPCs over 128 bits and lines
+ * that don't start with hex (headers, blank lines) are skipped.
+ */
+final class ExpectedEpcList {
+
+  private static final int MAX_EPC_BYTES = 16;
+
+  private final long[] mHi;
+  private final long[] mLo;
+  private final byte[] mLengths;
+  private final int mSize;
+  private final int mSkipped;
+
+  private final long[] mFound;
+  private int mFoundCount;
+  private final EpcIndex mUnexpected = new EpcIndex();
+
+  private ExpectedEpcList(long[] hi, long[] lo, byte[] lengths, int size, int skipped) {
+    this.mHi = hi;
+    this.mLo = lo;
+    this.mLengths = lengths;
+    this.mSize = size;
+    this.mSkipped = skipped;
+    this.mFound = new long[(size + 63) >>> 6];
+  }
+
+  static ExpectedEpcList load(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      long fileLength = file.length();
+      if (fileLength > Integer.MAX_VALUE) {
+        throw new IOException(file.getName() + " is too big");
+      }
+      byte[] bytes = new byte[(int) fileLength];
+      int length = 0;
+      while (length < bytes.length) {
+        int n = in.read(bytes, length, bytes.length - length);
+        if (n < 0) {
+          break;
+        }
+        length += n;
+      }
+      return parse(bytes, length);
+    } finally {
+      in.close();
+    }
+  }
+
+  static ExpectedEpcList parse(CharSequence text) {
+    byte[] bytes = new byte[text.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      char c = text.charAt(i);
+      bytes[i] = (c < 0x80) ? (byte) c : (byte) '?';
+    }
+    return parse(bytes, bytes.length);
+  }
+
+  /**
+   * Parses ASCII / UTF-8 text: one EPC in hex at the start of each line,
+   * optionally quoted and followed by other CSV columns.
+   */
+  static ExpectedEpcList parse(byte[] bytes, int length) {
+    // A line is at least 3 bytes (2 hex digits and a newline) in practice;
+    // grow if not.
+    int capacity = Math.max(16, length / 25);
+    long[] hi = new long[capacity];
+    long[] lo = new long[capacity];
+    byte[] lengths = new byte[capacity];
+    int size = 0;
+    int skipped = 0;
+
+    int i = 0;
+    while (i < length) {
+      // Skip leading blanks, quotes and a UTF-8 byte order mark
+      int b = bytes[i] & 0xff;
+      while (b == ' ' || b == '\t' || b == '"' || b == '\'' || b == 0xef || b == 0xbb || b == 0xbf) {
+        if (++i >= length) {
+          break;
+        }
+        b = bytes[i] & 0xff;
+      }
+      long h = 0;
+      long l = 0;
+      int digits = 0;
+      boolean valid = true;
+      while (i < length) {
+        int d = hexValue(bytes[i]);
+        if (d < 0) {
+          break;
+        }
+        if (digits < 16) {
+          h = (h << 4) | d;
+        } else if (digits < 32) {
+          l = (l << 4) | d;
+        } else {
+          valid = false;
+        }
+        digits++;
+        i++;
+      }
+      if (i < length) {
+        int c = bytes[i];
+        if (c != ',' && c != ';' && c != '\t' && c != ' ' && c != '"' && c != '\'' && c != '\r' && c != '\n') {
+          valid = false;
+        }
+      }
+      valid &= digits >= 2 && (digits & 1) == 0;
+      // On to the next line
+      while (i < length && bytes[i] != '\n') {
+        i++;
+      }
+      i++;
+
+      if (!valid) {
+        if (digits > 0) {
+          skipped++;
+        }
+        continue;
+      }
+      // Left align the key so that shorter EPCs sort as prefixes would
+      if (digits < 16) {
+        h <<= 4 * (16 - digits);
+      } else if (digits < 32) {
+        l <<= 4 * (32 - digits);
+      }
+      if (size == hi.length) {
+        capacity = size * 2;
+        hi = Arrays.copyOf(hi, capacity);
+        lo = Arrays.copyOf(lo, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+      }
+      hi[size] = h;
+      lo[size] = l;
+      lengths[size] = (byte) (digits / 2);
+      size++;
+    }
+
+    sort(hi, lo, lengths, 0, size - 1);
+
+    // Drop duplicates
+    int unique = 0;
+    for (int j = 0; j < size; j++) {
+      if (unique == 0 || compare(hi, lo, lengths, unique - 1, hi[j], lo[j], lengths[j]) != 0) {
+        hi[unique] = hi[j];
+        lo[unique] = lo[j];
+        lengths[unique] = lengths[j];
+        unique++;
+      }
+    }
+    return new ExpectedEpcList(hi, lo, lengths, unique, skipped);
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  int getSkippedCount() {
+    return mSkipped;
+  }
+
+  int getFoundCount() {
+    return mFoundCount;
+  }
+
+  int getMissingCount() {
+    return mSize - mFoundCount;
+  }
+
+  int getUnexpectedCount() {
+    return mUnexpected.size();
+  }
+
+  /**
+   * Marks a found tag: either as found on the list, or as unexpected.
+   */
+  void mark(byte[] epc) {
+    int index = indexOf(epc);
+    if (index >= 0) {
+      long bit = 1L << index;
+      if ((mFound[index >>> 6] & bit) == 0) {
+        mFound[index >>> 6] |= bit;
+        mFoundCount++;
+      }
+    } else {
+      mUnexpected.add(epc);
+    }
+  }
+
+  void clearMarks() {
+    Arrays.fill(mFound, 0);
+    mFoundCount = 0;
+    mUnexpected.clear();
+  }
+
+  /**
+   * Returns the index of the next expected EPC not yet found, at or after
+   * index, or -1.
+   */
+  int nextMissing(int index) {
+    for (int i = index; i < mSize; i++) {
+      if ((mFound[i >>> 6] & (1L << i)) == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  byte[] getExpectedEpc(int index) {
+    byte[] epc = new byte[mLengths[index]];
+    for (int i = 0; i < epc.length; i++) {
+      long word = (i < 8) ? mHi[index] : mLo[index];
+      epc[i] = (byte) (word >>> (56 - 8 * (i & 7)));
+    }
+    return epc;
+  }
+
+  byte[] getUnexpectedEpc(int index) {
+    return mUnexpected.getEpc(index);
+  }
+
+  private int indexOf(byte[] epc) {
+    if (epc == null || epc.length == 0 || epc.length > MAX_EPC_BYTES) {
+      return -1;
+    }
+    long h = 0;
+    long l = 0;
+    for (int i = 0; i < MAX_EPC_BYTES; i++) {
+      long b = (i < epc.length) ? (epc[i] & 0xff) : 0;
+      if (i < 8) {
+        h = (h << 8) | b;
+      } else {
+        l = (l << 8) | b;
+      }
+    }
+    final byte length = (byte) epc.length;
+    int low = 0;
+    int high = mSize - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int c = compare(mHi, mLo, mLengths, mid, h, l, length);
+      if (c < 0) {
+        low = mid + 1;
+      } else if (c > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static int hexValue(byte b) {
+    if (b >= '0' && b <= '9') return b - '0';
+    if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+    if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+    return -1;
+  }
+
+  private static int compare(long[] hi, long[] lo, byte[] lengths, int i, long h, long l, byte length) {
+    if (hi[i] != h) return hi[i] < h ? -1 : 1;
+    if (lo[i] != l) return lo[i] < l ? -1 : 1;
+    return lengths[i] - length;
+  }
+
+  /**
+   * Quicksort of the three parallel arrays, with insertion sort for short
+   * ranges.
+   */
+  private static void sort(long[] hi, long[] lo, byte[] lengths, int left, int right) {
+    while (right - left > 16) {
+      int mid = (left + right) >>> 1;
+      // Median of three, moved to mid
+      if (compare(hi, lo, lengths, mid, hi[left], lo[left], lengths[left]) < 0) swap(hi, lo, lengths, left, mid);
+      if (compare(hi, lo, lengths, right, hi[left], lo[left], lengths[left]) < 0) swap(hi, lo, lengths, left, right);
+      if (compare(hi, lo, lengths, right, hi[mid], lo[mid], lengths[mid]) < 0) swap(hi, lo, lengths, mid, right);
+      final long ph = hi[mid];
+      final long pl = lo[mid];
+      final byte plen = lengths[mid];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (compare(hi, lo, lengths, i, ph, pl, plen) < 0) i++;
+        while (compare(hi, lo, lengths, j, ph, pl, plen) > 0) j--;
+        if (i <= j) {
+          swap(hi, lo, lengths, i, j);
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller half, loop on the larger
+      if (j - left < right - i) {
+        sort(hi, lo, lengths, left, j);
+        left = i;
+      } else {
+        sort(hi, lo, lengths, i, right);
+        right = j;
+      }
+    }
+    for (int i = left + 1; i <= right; i++) {
+      for (int j = i; j > left && compare(hi, lo, lengths, j - 1, hi[j], lo[j], lengths[j]) > 0; j--) {
+        swap(hi, lo, lengths, j - 1, j);
+      }
+    }
+  }
+
+  private static void swap(long[] hi, long[] lo, byte[] lengths, int i, int j) {
+    long t = hi[i]; hi[i] = hi[j]; hi[j] = t;
+    t = lo[i]; lo[i] = lo[j]; lo[j] = t;
+    byte b = lengths[i]; lengths[i] = lengths[j]; lengths[j] = b;
+  }
+}
@@ -0,0 +1,337 @@
+package com.ugrokit.softkeyboard;
+
+/**
+ * Decodes GS1 EPC binary encodings (EPC Tag Data Standard) directly from the
+ * bytes of an EPC, using shift/mask arithmetic and no intermediate strings.
+ *
+ * Supports SGTIN-96/198, SSCC-96, SGLN-96/195, GRAI-96/170 and GIAI-96/202.
+ * One decoder is reused for every tag: call {@link #decode} and, if it returns
+ * true, append whichever fields are wanted to a StringBuilder.
+ */
+final class Gs1EpcDecoder {
+
+  static final int SCHEME_NONE = 0;
+  static final int SCHEME_SGTIN = 1;
+  static final int SCHEME_SSCC = 2;
+  static final int SCHEME_SGLN = 3;
+  static final int SCHEME_GRAI = 4;
+  static final int SCHEME_GIAI = 5;
+
+  private static final int HEADER_SGTIN_96 = 0x30;
+  private static final int HEADER_SSCC_96 = 0x31;
+  private static final int HEADER_SGLN_96 = 0x32;
+  private static final int HEADER_GRAI_96 = 0x33;
+  private static final int HEADER_GIAI_96 = 0x34;
+  private static final int HEADER_SGTIN_198 = 0x36;
+  private static final int HEADER_GRAI_170 = 0x37;
+  private static final int HEADER_GIAI_202 = 0x38;
+  private static final int HEADER_SGLN_195 = 0x39;
+
+  // Partition tables, indexed by partition value: company prefix bits and
+  // digits; the second field gets whatever the scheme has left over.
+  private static final int[] PREFIX_BITS = { 40, 37, 34, 30, 27, 24, 20 };
+  private static final int[] PREFIX_DIGITS = { 12, 11, 10, 9, 8, 7, 6 };
+  private static final int[] SGTIN_ITEM_BITS = { 4, 7, 10, 14, 17, 20, 24 };
+  private static final int[] SSCC_SERIAL_BITS = { 18, 21, 24, 28, 31, 34, 38 };
+  private static final int[] SGLN_LOCATION_BITS = { 1, 4, 7, 11, 14, 17, 21 };
+  private static final int[] GRAI_ASSET_BITS = { 4, 7, 10, 14, 17, 20, 24 };
+  private static final int[] GIAI_96_ASSET_BITS = { 42, 45, 48, 52, 55, 58, 62 };
+  private static final int[] GIAI_202_ASSET_BITS = { 148, 151, 154, 158, 161, 164, 168 };
+  // TDS limit on GIAI-202 asset reference characters; less than the bits hold
+  private static final int[] GIAI_202_ASSET_CHARS = { 18, 19, 20, 21, 22, 23, 24 };
+
+  private static final long[] POWERS_OF_TEN = new long[19];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private int mScheme;
+  private int mFilter;
+  private long mCompanyPrefix;
+  private int mCompanyPrefixDigits;
+  // Item reference, serial reference, location reference or asset type
+  private long mReference;
+  private int mReferenceDigits;
+  // Numeric serial/extension/asset reference, or -1 if alphanumeric or absent
+  private long mSerial;
+  private final char[] mSerialChars = new char[24];
+  private int mSerialLength;
+
+  // Scratch space for building digit strings with check digits
+  private final char[] mDigits = new char[20];
+
+  /**
+   * Decodes an EPC.  Returns false, and leaves the scheme as SCHEME_NONE, if
+   * the bytes aren't a valid encoding of one of the supported schemes.
+   */
+  boolean decode(byte[] epc) {
+    mScheme = SCHEME_NONE;
+    if (epc == null || epc.length < 12) {
+      return false;
+    }
+    final int header = epc[0] & 0xff;
+    final int bitLength = epc.length * 8;
+    mFilter = (int) getBits(epc, 8, 3);
+    final int partition = (int) getBits(epc, 11, 3);
+    if (partition > 6) {
+      return false;
+    }
+    mCompanyPrefixDigits = PREFIX_DIGITS[partition];
+    mCompanyPrefix = getBits(epc, 14, PREFIX_BITS[partition]);
+    if (mCompanyPrefix >= POWERS_OF_TEN[mCompanyPrefixDigits]) {
+      return false;
+    }
+    final int afterPrefix = 14 + PREFIX_BITS[partition];
+    mSerial = -1;
+    mSerialLength = 0;
+
+    int scheme;
+    switch (header) {
+      case HEADER_SGTIN_96:
+      case HEADER_SGTIN_198:
+        scheme = SCHEME_SGTIN;
+        mReferenceDigits = 13 - mCompanyPrefixDigits;
+        mReference = getBits(epc, afterPrefix, SGTIN_ITEM_BITS[partition]);
+        if (header == HEADER_SGTIN_96) {
+          mSerial = getBits(epc, 58, 38);
+        } else if (bitLength < 198 || !decodeChars(epc, 58, 20)) {
+          return false;
+        }
+        break;
+
+      case HEADER_SSCC_96:
+        scheme = SCHEME_SSCC;
+        mReferenceDigits = 17 - mCompanyPrefixDigits;
+        mReference = getBits(epc, afterPrefix, SSCC_SERIAL_BITS[partition]);
+        break;
+
+      case HEADER_SGLN_96:
+      case HEADER_SGLN_195:
+        scheme = SCHEME_SGLN;
+        mReferenceDigits = 12 - mCompanyPrefixDigits;
+        mReference = getBits(epc, afterPrefix, SGLN_LOCATION_BITS[partition]);
+        if (header == HEADER_SGLN_96) {
+          mSerial = getBits(epc, 55, 41);
+        } else if (bitLength < 195 || !decodeChars(epc, 55, 20)) {
+          return false;
+        }
+        break;
+
+      case HEADER_GRAI_96:
+      case HEADER_GRAI_170:
+        scheme = SCHEME_GRAI;
+        mReferenceDigits = 12 - mCompanyPrefixDigits;
+        mReference = getBits(epc, afterPrefix, GRAI_ASSET_BITS[partition]);
+        if (header == HEADER_GRAI_96) {
+          mSerial = getBits(epc, 58, 38);
+        } else if (bitLength < 170 || !decodeChars(epc, 58, 16)) {
+          return false;
+        }
+        break;
+
+      case HEADER_GIAI_96:
+        scheme = SCHEME_GIAI;
+        mReferenceDigits = 0;
+        mReference = 0;
+        mSerial = getBits(epc, afterPrefix, GIAI_96_ASSET_BITS[partition]);
+        // 13 to 19 digits depending on the partition; 62 bits can't exceed 19
+        final int assetDigits = 25 - mCompanyPrefixDigits;
+        if (assetDigits < POWERS_OF_TEN.length && mSerial >= POWERS_OF_TEN[assetDigits]) {
+          return false;
+        }
+        break;
+
+      case HEADER_GIAI_202:
+        scheme = SCHEME_GIAI;
+        mReferenceDigits = 0;
+        mReference = 0;
+        if (bitLength < 202
+            || !decodeChars(epc, afterPrefix, GIAI_202_ASSET_BITS[partition] / 7)
+            || mSerialLength > GIAI_202_ASSET_CHARS[partition]) {
+          return false;
+        }
+        break;
+
+      default:
+        return false;
+    }
+
+    if (mReferenceDigits > 0 && mReference >= POWERS_OF_TEN[mReferenceDigits]) {
+      return false;
+    }
+    mScheme = scheme;
+    return true;
+  }
+
+  int getScheme() {
+    return mScheme;
+  }
+
+  int getFilter() {
+    return mFilter;
+  }
+
+  /**
+   * Appends the GS1 element string, e.g. "(01)80614141123458(21)6789" for an
+   * SGTIN.  Appends nothing if the last decode failed.
+   */
+  void appendElementString(StringBuilder sb) {
+    switch (mScheme) {
+      case SCHEME_SGTIN:
+        sb.append("(01)");
+        appendPrimaryKey(sb);
+        sb.append("(21)");
+        appendSerial(sb);
+        break;
+      case SCHEME_SSCC:
+        sb.append("(00)");
+        appendPrimaryKey(sb);
+        break;
+      case SCHEME_SGLN:
+        sb.append("(414)");
+        appendPrimaryKey(sb);
+        if (mSerialLength > 0 || mSerial > 0) {
+          sb.append("(254)");
+          appendSerial(sb);
+        }
+        break;
+      case SCHEME_GRAI:
+        sb.append("(8003)");
+        appendPrimaryKey(sb);
+        appendSerial(sb);
+        break;
+      case SCHEME_GIAI:
+        sb.append("(8004)");
+        appendPrimaryKey(sb);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Appends the scheme's key: the GTIN-14, SSCC-18, GLN-13, the 14 digit GRAI
+   * without its serial, or the whole GIAI.
+   */
+  void appendPrimaryKey(StringBuilder sb) {
+    switch (mScheme) {
+      case SCHEME_SGTIN:
+      case SCHEME_SSCC: {
+        // The indicator / extension digit leads the reference; it moves to the
+        // front of the key.
+        int n = putDigits(0, mCompanyPrefix, mCompanyPrefixDigits);
+        n = putDigits(n, mReference, mReferenceDigits);
+        char lead = mDigits[mCompanyPrefixDigits];
+        System.arraycopy(mDigits, 0, mDigits, 1, mCompanyPrefixDigits);
+        mDigits[0] = lead;
+        mDigits[n] = checkDigit(n);
+        sb.append(mDigits, 0, n + 1);
+        break;
+      }
+      case SCHEME_SGLN: {
+        int n = putDigits(0, mCompanyPrefix, mCompanyPrefixDigits);
+        n = putDigits(n, mReference, mReferenceDigits);
+        mDigits[n] = checkDigit(n);
+        sb.append(mDigits, 0, n + 1);
+        break;
+      }
+      case SCHEME_GRAI: {
+        mDigits[0] = '0';
+        int n = putDigits(1, mCompanyPrefix, mCompanyPrefixDigits);
+        n = putDigits(n, mReference, mReferenceDigits);
+        mDigits[n] = checkDigit(n);
+        sb.append(mDigits, 0, n + 1);
+        break;
+      }
+      case SCHEME_GIAI: {
+        int n = putDigits(0, mCompanyPrefix, mCompanyPrefixDigits);
+        sb.append(mDigits, 0, n);
+        appendSerial(sb);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Appends the serial number (SGTIN, GRAI), GLN extension (SGLN) or
+   * individual asset reference (GIAI).  Appends nothing for an SSCC.
+   */
+  void appendSerial(StringBuilder sb) {
+    if (mScheme == SCHEME_NONE || mScheme == SCHEME_SSCC) {
+      return;
+    }
+    if (mSerialLength > 0) {
+      sb.append(mSerialChars, 0, mSerialLength);
+    } else if (mSerial >= 0) {
+      sb.append(mSerial);
+    }
+  }
+
+  /**
+   * Reads bitCount (at most 64) bits starting at bitOffset, most significant
+   * bit first.
+   */
+  static long getBits(byte[] bytes, int bitOffset, int bitCount) {
+    long value = 0;
+    int i = 0;
+    while (i < bitCount) {
+      final int pos = bitOffset + i;
+      final int bitInByte = pos & 7;
+      final int take = Math.min(8 - bitInByte, bitCount - i);
+      final int chunk = ((bytes[pos >>> 3] & 0xff) >>> (8 - bitInByte - take)) & ((1 << take) - 1);
+      value = (value << take) | chunk;
+      i += take;
+    }
+    return value;
+  }
+
+  /**
+   * Decodes up to maxChars 7-bit characters, stopping at the first zero.
+   */
+  private boolean decodeChars(byte[] epc, int bitOffset, int maxChars) {
+    int length = 0;
+    for (int i = 0; i < maxChars; i++) {
+      int c = (int) getBits(epc, bitOffset + i * 7, 7);
+      if (c == 0) {
+        break;
+      }
+      if (c < 0x21 || c == 0x7f) {
+        return false;
+      }
+      mSerialChars[length++] = (char) c;
+    }
+    mSerialLength = length;
+    return true;
+  }
+
+  /**
+   * Writes value as exactly digits decimal digits into mDigits at offset,
+   * returning the offset just past them.
+   */
+  private int putDigits(int offset, long value, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      mDigits[i] = (char) ('0' + (int) (value % 10));
+      value /= 10;
+    }
+    return offset + digits;
+  }
+
+  /**
+   * GS1 mod 10 check digit over the first count digits in mDigits.
+   */
+  private char checkDigit(int count) {
+    int sum = 0;
+    boolean triple = true;
+    for (int i = count - 1; i >= 0; i--) {
+      int d = mDigits[i] - '0';
+      sum += triple ? d * 3 : d;
+      triple = !triple;
+    }
+    return (char) ('0' + (10 - sum % 10) % 10);
+  }
+}
@@ -0,0 +1,372 @@
+package com.ugrokit.softkeyboard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+import org.json.JSONException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+/**
+ * The keyboard's settings, read from SharedPreferences once and then held in
+ * memory.  Setters only mark what changed; changed values are written a
+ * moment later in one batch, so dragging a slider or flipping several toggles
+ * costs one preferences write rather than one per change.
+ */
+final class KeyboardSettings {
+
+  private static final String TAG = "KeyboardSettings";
+
+  interface Listener {
+    /**
+     * Called on the main thread after a setting changes, with one of the
+     * setting constants below.
+     */
+    void onSettingChanged(int setting);
+  }
+
+  // Settings; also their bit in the dirty mask
+  static final int VOLUME = 0;
+  static final int POWER = 1;
+  static final int FIND_ONE = 2;
+  static final int STAY_CONNECTED = 3;
+  static final int ASCII = 4;
+  static final int ALWAYS_ADD_COMMA_AT_START = 5;
+  static final int SCANNER_WEDGE = 6;
+  static final int GS1 = 7;
+  static final int OUTPUT_TEMPLATE = 8;
+  static final int SCAN_PROFILES = 9;
+  static final int FIND_STRONGEST = 10;
+  static final int TYPE_IN_VIEW_AT_STOP = 11;
+  static final int READ_TID = 12;
+  static final int USER_BYTES = 13;
+  static final int BAND = 14;
+  static final int BARCODE_MODE = 15;
+  static final int TAG_BROADCAST = 16;
+  static final int TAG_STREAM = 17;
+  static final int TAG_STREAM_TOKEN = 18;
+  static final int BULK_OUTPUT = 19;
+
+  static final String PREFERENCES_KEY = "com.ugrokit.softkeyboard";
+
+  // Indexed by setting
+  private static final String[] PREFERENCE_KEYS = {
+      "volumePercentage",
+      "powerPercentage",
+      "findOneTagOnly",
+      "stayConnectedAlways",
+      "epcAscii",
+      "alwaysAddCommaAtStart",
+      "scannerWedge",
+      "epcGs1",
+      "outputTemplate",
+      "scanProfiles",
+      "findStrongestTag",
+      "typeTagsInViewAtStop",
+      "readTid",
+      "userMemoryBytes",
+      "rfidBand",
+      "grokKeyScansBarcodes",
+      "tagBroadcast",
+      "streamTagsOnLocalhost",
+      "tagStreamToken",
+      "bulkOutput",
+  };
+
+  private static final long FLUSH_DELAY_MSEC = 1000;
+
+  private final SharedPreferences mPreferences;
+  private final Handler mHandler;
+  private final ArrayList<Listener> mListeners = new ArrayList<>();
+  private int mDirty;
+  private final Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private int mVolume;
+  private int mPower;
+  private boolean mFindOne;
+  private boolean mStayConnected;
+  private boolean mAscii;
+  private boolean mAlwaysAddCommaAtStart;
+  private boolean mScannerWedge;
+  private boolean mGs1;
+  private OutputTemplate mOutputTemplate;
+  private ScanProfiles mScanProfiles;
+  private boolean mFindStrongest;
+  private boolean mTypeInViewAtStop;
+  private boolean mReadTid;
+  private int mUserBytes;
+  private int mBand;
+  private boolean mBarcodeMode;
+  private int mTagBroadcast;
+  private boolean mTagStream;
+  private String mTagStreamToken;
+  private boolean mBulkOutput;
+
+  KeyboardSettings(Context context, Handler handler) {
+    this.mPreferences = context.getSharedPreferences(PREFERENCES_KEY, Context.MODE_PRIVATE);
+    this.mHandler = handler;
+
+    mVolume = mPreferences.getInt(PREFERENCE_KEYS[VOLUME], 100);
+    mPower = mPreferences.getInt(PREFERENCE_KEYS[POWER], 100);
+    mFindOne = mPreferences.getBoolean(PREFERENCE_KEYS[FIND_ONE], false);
+    mStayConnected = mPreferences.getBoolean(PREFERENCE_KEYS[STAY_CONNECTED], true);
+    mAscii = mPreferences.getBoolean(PREFERENCE_KEYS[ASCII], true);
+    mAlwaysAddCommaAtStart = mPreferences.getBoolean(PREFERENCE_KEYS[ALWAYS_ADD_COMMA_AT_START], false);
+    mScannerWedge = mPreferences.getBoolean(PREFERENCE_KEYS[SCANNER_WEDGE], false);
+    mGs1 = mPreferences.getBoolean(PREFERENCE_KEYS[GS1], false);
+    mOutputTemplate = OutputTemplate.compile(mPreferences.getString(PREFERENCE_KEYS[OUTPUT_TEMPLATE], null));
+    mFindStrongest = mPreferences.getBoolean(PREFERENCE_KEYS[FIND_STRONGEST], false);
+    mTypeInViewAtStop = mPreferences.getBoolean(PREFERENCE_KEYS[TYPE_IN_VIEW_AT_STOP], false);
+    mReadTid = mPreferences.getBoolean(PREFERENCE_KEYS[READ_TID], false);
+    mUserBytes = mPreferences.getInt(PREFERENCE_KEYS[USER_BYTES], 0);
+    mBand = mPreferences.getInt(PREFERENCE_KEYS[BAND], ScanProfile.BAND_UHF);
+    mBarcodeMode = mPreferences.getBoolean(PREFERENCE_KEYS[BARCODE_MODE], false);
+    mTagBroadcast = mPreferences.getInt(PREFERENCE_KEYS[TAG_BROADCAST], TagBroadcaster.BROADCAST_OFF);
+    mTagStream = mPreferences.getBoolean(PREFERENCE_KEYS[TAG_STREAM], false);
+    mTagStreamToken = mPreferences.getString(PREFERENCE_KEYS[TAG_STREAM_TOKEN], null);
+    mBulkOutput = mPreferences.getBoolean(PREFERENCE_KEYS[BULK_OUTPUT], false);
+    if (mTagStreamToken == null) {
+      // Made once, so clients can keep using it
+      byte[] random = new byte[8];
+      new SecureRandom().nextBytes(random);
+      StringBuilder token = new StringBuilder();
+      OutputTemplate.appendHex(random, token);
+      mTagStreamToken = token.toString();
+      changed(TAG_STREAM_TOKEN);
+    }
+    try {
+      mScanProfiles = ScanProfiles.parse(mPreferences.getString(PREFERENCE_KEYS[SCAN_PROFILES], ""));
+    } catch (JSONException e) {
+      Log.e(TAG, "Ignoring bad scan profiles: " + e.getMessage());
+      mScanProfiles = ScanProfiles.EMPTY;
+    }
+  }
+
+  void addListener(Listener listener) {
+    mListeners.add(listener);
+  }
+
+  void removeListener(Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  int getVolume() { return mVolume; }
+  int getPower() { return mPower; }
+  boolean getFindOne() { return mFindOne; }
+  boolean getStayConnected() { return mStayConnected; }
+  boolean getAscii() { return mAscii; }
+  boolean getAlwaysAddCommaAtStart() { return mAlwaysAddCommaAtStart; }
+  boolean getScannerWedge() { return mScannerWedge; }
+  boolean getGs1() { return mGs1; }
+  OutputTemplate getOutputTemplate() { return mOutputTemplate; }
+  ScanProfiles getScanProfiles() { return mScanProfiles; }
+  boolean getFindStrongest() { return mFindStrongest; }
+  boolean getTypeInViewAtStop() { return mTypeInViewAtStop; }
+  boolean getReadTid() { return mReadTid; }
+  /** User memory bytes read with each tag; 0 for none */
+  int getUserBytes() { return mUserBytes; }
+  /** ScanProfile.BAND_... */
+  int getBand() { return mBand; }
+  /** Whether the Grok key scans a barcode rather than running an inventory */
+  boolean getBarcodeMode() { return mBarcodeMode; }
+  /** TagBroadcaster.BROADCAST_... */
+  int getTagBroadcast() { return mTagBroadcast; }
+  /** Whether tag reads are streamed to localhost clients */
+  boolean getTagStream() { return mTagStream; }
+  /** What tag stream clients must send before they get any reads */
+  String getTagStreamToken() { return mTagStreamToken; }
+  /** Whether scans are collected for copy / share rather than typed */
+  boolean getBulkOutput() { return mBulkOutput; }
+
+  void setVolume(int volume) {
+    if (volume != mVolume) {
+      mVolume = volume;
+      changed(VOLUME);
+    }
+  }
+
+  void setPower(int power) {
+    if (power != mPower) {
+      mPower = power;
+      changed(POWER);
+    }
+  }
+
+  void setFindOne(boolean findOne) {
+    if (findOne != mFindOne) {
+      mFindOne = findOne;
+      changed(FIND_ONE);
+    }
+  }
+
+  void setStayConnected(boolean stayConnected) {
+    if (stayConnected != mStayConnected) {
+      mStayConnected = stayConnected;
+      changed(STAY_CONNECTED);
+    }
+  }
+
+  void setAscii(boolean ascii) {
+    if (ascii != mAscii) {
+      mAscii = ascii;
+      changed(ASCII);
+    }
+  }
+
+  void setAlwaysAddCommaAtStart(boolean alwaysAddCommaAtStart) {
+    if (alwaysAddCommaAtStart != mAlwaysAddCommaAtStart) {
+      mAlwaysAddCommaAtStart = alwaysAddCommaAtStart;
+      changed(ALWAYS_ADD_COMMA_AT_START);
+    }
+  }
+
+  void setScannerWedge(boolean scannerWedge) {
+    if (scannerWedge != mScannerWedge) {
+      mScannerWedge = scannerWedge;
+      changed(SCANNER_WEDGE);
+    }
+  }
+
+  void setGs1(boolean gs1) {
+    if (gs1 != mGs1) {
+      mGs1 = gs1;
+      changed(GS1);
+    }
+  }
+
+  void setOutputTemplate(OutputTemplate template) {
+    if (!template.getPattern().equals(mOutputTemplate.getPattern())) {
+      mOutputTemplate = template;
+      changed(OUTPUT_TEMPLATE);
+    }
+  }
+
+  void setScanProfiles(ScanProfiles profiles) {
+    if (!profiles.getJson().equals(mScanProfiles.getJson())) {
+      mScanProfiles = profiles;
+      changed(SCAN_PROFILES);
+    }
+  }
+
+  void setFindStrongest(boolean findStrongest) {
+    if (findStrongest != mFindStrongest) {
+      mFindStrongest = findStrongest;
+      changed(FIND_STRONGEST);
+    }
+  }
+
+  void setTypeInViewAtStop(boolean typeInViewAtStop) {
+    if (typeInViewAtStop != mTypeInViewAtStop) {
+      mTypeInViewAtStop = typeInViewAtStop;
+      changed(TYPE_IN_VIEW_AT_STOP);
+    }
+  }
+
+  void setReadTid(boolean readTid) {
+    if (readTid != mReadTid) {
+      mReadTid = readTid;
+      changed(READ_TID);
+    }
+  }
+
+  void setUserBytes(int userBytes) {
+    if (userBytes != mUserBytes) {
+      mUserBytes = userBytes;
+      changed(USER_BYTES);
+    }
+  }
+
+  void setBand(int band) {
+    if (band != mBand) {
+      mBand = band;
+      changed(BAND);
+    }
+  }
+
+  void setBarcodeMode(boolean barcodeMode) {
+    if (barcodeMode != mBarcodeMode) {
+      mBarcodeMode = barcodeMode;
+      changed(BARCODE_MODE);
+    }
+  }
+
+  void setTagBroadcast(int tagBroadcast) {
+    if (tagBroadcast != mTagBroadcast) {
+      mTagBroadcast = tagBroadcast;
+      changed(TAG_BROADCAST);
+    }
+  }
+
+  void setTagStream(boolean tagStream) {
+    if (tagStream != mTagStream) {
+      mTagStream = tagStream;
+      changed(TAG_STREAM);
+    }
+  }
+
+  void setBulkOutput(boolean bulkOutput) {
+    if (bulkOutput != mBulkOutput) {
+      mBulkOutput = bulkOutput;
+      changed(BULK_OUTPUT);
+    }
+  }
+
+  private void changed(int setting) {
+    if (mDirty == 0) {
+      mHandler.postDelayed(mFlush, FLUSH_DELAY_MSEC);
+    }
+    mDirty |= 1 << setting;
+    for (int i = 0; i < mListeners.size(); i++) {
+      mListeners.get(i).onSettingChanged(setting);
+    }
+  }
+
+  /**
+   * Writes any changed settings now.  SharedPreferences.apply() does the
+   * disk write on a background thread.
+   */
+  void flush() {
+    mHandler.removeCallbacks(mFlush);
+    if (mDirty == 0) {
+      return;
+    }
+    SharedPreferences.Editor editor = mPreferences.edit();
+    for (int setting = 0; setting < PREFERENCE_KEYS.length; setting++) {
+      if ((mDirty & (1 << setting)) == 0) {
+        continue;
+      }
+      String key = PREFERENCE_KEYS[setting];
+      switch (setting) {
+        case VOLUME: editor.putInt(key, mVolume); break;
+        case POWER: editor.putInt(key, mPower); break;
+        case FIND_ONE: editor.putBoolean(key, mFindOne); break;
+        case STAY_CONNECTED: editor.putBoolean(key, mStayConnected); break;
+        case ASCII: editor.putBoolean(key, mAscii); break;
+        case ALWAYS_ADD_COMMA_AT_START: editor.putBoolean(key, mAlwaysAddCommaAtStart); break;
+        case SCANNER_WEDGE: editor.putBoolean(key, mScannerWedge); break;
+        case GS1: editor.putBoolean(key, mGs1); break;
+        case OUTPUT_TEMPLATE: editor.putString(key, mOutputTemplate.getPattern()); break;
+        case SCAN_PROFILES: editor.putString(key, mScanProfiles.getJson()); break;
+        case FIND_STRONGEST: editor.putBoolean(key, mFindStrongest); break;
+        case TYPE_IN_VIEW_AT_STOP: editor.putBoolean(key, mTypeInViewAtStop); break;
+        case READ_TID: editor.putBoolean(key, mReadTid); break;
+        case USER_BYTES: editor.putInt(key, mUserBytes); break;
+        case BAND: editor.putInt(key, mBand); break;
+        case BARCODE_MODE: editor.putBoolean(key, mBarcodeMode); break;
+        case TAG_BROADCAST: editor.putInt(key, mTagBroadcast); break;
+        case TAG_STREAM: editor.putBoolean(key, mTagStream); break;
+        case TAG_STREAM_TOKEN: editor.putString(key, mTagStreamToken); break;
+        case BULK_OUTPUT: editor.putBoolean(key, mBulkOutput); break;
+        default: break;
+      }
+    }
+    mDirty = 0;
+    editor.apply();
+  }
+}
@@ -100,6 +100,10 @@ public class LatinKeyboard extends Keyboard {
         }
     }
 
+    Key getGrokKey() {
+        return mGrokKey;
+    }
+
     static class LatinKey extends Key {
         
         public LatinKey(Resources res, Row parent, int x, int y, XmlResourceParser parser) {
@@ -17,6 +17,9 @@
 package com.ugrokit.softkeyboard;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.Keyboard.Key;
 import android.inputmethodservice.KeyboardView;
@@ -26,13 +29,23 @@ import android.view.inputmethod.InputMethodSubtype;
 public class LatinKeyboardView extends KeyboardView {
 
     static final int KEYCODE_OPTIONS = -100;
+    static final int KEYCODE_GROK = 1000;
+    static final int KEYCODE_GROK_OPTIONS = -101;
+
+    private static final int LOCATE_BAR_HEIGHT = 8;
+
+    // Locate signal drawn along the bottom of the Grok key, 0..1, or -1 for none
+    private float mLocateLevel = -1;
+    private final Paint mLocatePaint = new Paint();
 
     public LatinKeyboardView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mLocatePaint.setColor(Color.GREEN);
     }
 
     public LatinKeyboardView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        mLocatePaint.setColor(Color.GREEN);
     }
 
     @Override
@@ -40,11 +53,48 @@ public class LatinKeyboardView extends KeyboardView {
         if (key.codes[0] == Keyboard.KEYCODE_CANCEL) {
             getOnKeyboardActionListener().onKey(KEYCODE_OPTIONS, null);
             return true;
+        } else if (key.codes[0] == KEYCODE_GROK) {
+            getOnKeyboardActionListener().onKey(KEYCODE_GROK_OPTIONS, null);
+            return true;
         } else {
             return super.onLongPress(key);
         }
     }
 
+    /**
+     * Shows a signal strength meter on the Grok key while locating a tag.
+     * Pass a level from 0 to 1, or -1 to remove the meter.
+     */
+    void setLocateLevel(float level) {
+        if (level != mLocateLevel) {
+            mLocateLevel = level;
+            Key key = getGrokKey();
+            if (key != null) {
+                invalidate(key.x, key.y, key.x + key.width, key.y + key.height);
+            }
+        }
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mLocateLevel < 0) {
+            return;
+        }
+        Key key = getGrokKey();
+        if (key != null) {
+            int bottom = key.y + key.height + getPaddingTop();
+            int left = key.x + getPaddingLeft();
+            canvas.drawRect(left, bottom - LOCATE_BAR_HEIGHT,
+                    left + key.width * mLocateLevel, bottom, mLocatePaint);
+        }
+    }
+
+    private Key getGrokKey() {
+        Keyboard keyboard = getKeyboard();
+        return (keyboard instanceof LatinKeyboard) ? ((LatinKeyboard) keyboard).getGrokKey() : null;
+    }
+
     void setSubtypeOnSpaceKey(final InputMethodSubtype subtype) {
         final LatinKeyboard keyboard = (LatinKeyboard)getKeyboard();
         //keyboard.setSpaceIcon(getResources().getDrawable(subtype.getIconResId()));
@@ -0,0 +1,99 @@
+package com.ugrokit.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Scans made while there was no field to type them into, held until the
+ * operator pastes them.  Each scan is kept once, by the same dedupe key
+ * typed scans use, in the order first scanned: EPC bytes live in an
+ * {@link EpcIndex}, and the scan order is a primitive array of EPC ids (or
+ * encoded text indexes) with side arrays for the rest of each record.
+ */
+final class OfflineScans {
+
+  private final EpcIndex mEpcs = new EpcIndex();
+  private final ArrayList<String> mTexts = new ArrayList<>();
+  private final HashSet<String> mKeys = new HashSet<>();
+  // EPC id, or ~text index; parallel to the arrays after it
+  private int[] mOrder = new int[64];
+  private long[] mTimes = new long[64];
+  // NaN if the read had none
+  private float[] mRssi = new float[64];
+  private String[] mHfTypes = new String[64];
+  private byte[][] mTids = new byte[64][];
+  private byte[][] mUsers = new byte[64][];
+  private int mSize;
+
+  /**
+   * Adds a scan with its dedupe key; false if a scan with that key was
+   * already held (or it is neither EPC nor text).  The record's arrays are
+   * kept, not copied.
+   */
+  boolean add(ScanRecord record, String key) {
+    if ((record.epc == null && record.text == null) || !mKeys.add(key)) {
+      return false;
+    }
+    int entry;
+    if (record.epc != null) {
+      // The same EPC may come back with another TID or user memory
+      entry = mEpcs.add(record.epc);
+    } else {
+      entry = ~mTexts.size();
+      mTexts.add(record.text);
+    }
+    if (mSize == mOrder.length) {
+      int size = mSize * 2;
+      mOrder = Arrays.copyOf(mOrder, size);
+      mTimes = Arrays.copyOf(mTimes, size);
+      mRssi = Arrays.copyOf(mRssi, size);
+      mHfTypes = Arrays.copyOf(mHfTypes, size);
+      mTids = Arrays.copyOf(mTids, size);
+      mUsers = Arrays.copyOf(mUsers, size);
+    }
+    mOrder[mSize] = entry;
+    mTimes[mSize] = record.timestamp;
+    mRssi[mSize] = record.hasRssi ? (float) record.rssi : Float.NaN;
+    mHfTypes[mSize] = record.hfType;
+    mTids[mSize] = record.tid;
+    mUsers[mSize] = record.user;
+    mSize++;
+    return true;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Fills a record with the i'th scan.
+   */
+  void get(int i, ScanRecord record) {
+    record.reset();
+    int entry = mOrder[i];
+    if (entry >= 0) {
+      record.epc = mEpcs.getEpc(entry);
+    } else {
+      record.text = mTexts.get(~entry);
+    }
+    record.timestamp = mTimes[i];
+    if (!Float.isNaN(mRssi[i])) {
+      record.rssi = mRssi[i];
+      record.hasRssi = true;
+    }
+    record.hfType = mHfTypes[i];
+    record.tid = mTids[i];
+    record.user = mUsers[i];
+  }
+
+  void clear() {
+    mEpcs.clear();
+    mTexts.clear();
+    mKeys.clear();
+    Arrays.fill(mHfTypes, 0, mSize, null);
+    Arrays.fill(mTids, 0, mSize, null);
+    Arrays.fill(mUsers, 0, mSize, null);
+    mSize = 0;
+  }
+}
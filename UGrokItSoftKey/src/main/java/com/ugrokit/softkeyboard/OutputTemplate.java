@@ -0,0 +1,301 @@
+package com.ugrokit.softkeyboard;
+
+import java.util.ArrayList;
+
+/**
+ * What gets typed for each scanned tag, compiled once from a pattern such as
+ * <code>"SKU:{gtin} SN:{serial}{tab}"</code>.
+ *
+ * Placeholders:
+ * <ul>
+ *   <li>{epc} - the EPC as configured in settings: GS1, ASCII or hex; an
+ *       HF tag's UID is always hex</li>
+ *   <li>{hex}, {ascii}, {gs1} - the EPC in that form</li>
+ *   <li>{gtin}, {serial} - GS1 key (GTIN, SSCC, GLN...) and serial, if decodable</li>
+ *   <li>{tid}, {user} - TID / user memory in hex, if read</li>
+ *   <li>{rssi}, {time} - signal strength, and read time in epoch milliseconds</li>
+ *   <li>{band}, {hftype} - UHF or HF, and an HF tag's type</li>
+ *   <li>{tab}, {enter} - press Tab / Enter; emitted as '\t' / '\n'</li>
+ *   <li>{{ - a literal '{'</li>
+ * </ul>
+ * Anything else, including unknown placeholders, is typed literally.
+ */
+final class OutputTemplate {
+
+  static final String DEFAULT_PATTERN = "{epc}";
+
+  /** Flags for how {epc} is rendered; GS1 falls back to ASCII, then hex */
+  static final int EPC_ASCII = 1;
+  static final int EPC_GS1 = 2;
+
+  private static final int OP_LITERAL = 0;
+  private static final int OP_EPC = 1;
+  private static final int OP_HEX = 2;
+  private static final int OP_ASCII = 3;
+  private static final int OP_GS1 = 4;
+  private static final int OP_GTIN = 5;
+  private static final int OP_SERIAL = 6;
+  private static final int OP_TID = 7;
+  private static final int OP_USER = 8;
+  private static final int OP_RSSI = 9;
+  private static final int OP_TIME = 10;
+  private static final int OP_BAND = 11;
+  private static final int OP_HF_TYPE = 12;
+
+  private static final String[] PLACEHOLDERS = {
+      null, "epc", "hex", "ascii", "gs1", "gtin", "serial", "tid", "user", "rssi", "time",
+      "band", "hftype"
+  };
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final String mPattern;
+  private final int[] mOps;
+  private final String[] mLiterals;
+  private final boolean mDefault;
+  private final Gs1EpcDecoder mGs1Decoder = new Gs1EpcDecoder();
+  // The EPC whose GS1 decode is currently held in mGs1Decoder
+  private byte[] mDecodedEpc;
+  private boolean mDecodedOk;
+
+  private OutputTemplate(String pattern, int[] ops, String[] literals) {
+    this.mPattern = pattern;
+    this.mOps = ops;
+    this.mLiterals = literals;
+    this.mDefault = DEFAULT_PATTERN.equals(pattern);
+  }
+
+  /**
+   * Compiles a pattern.  Null or empty means {@link #DEFAULT_PATTERN}.
+   */
+  static OutputTemplate compile(String pattern) {
+    if (pattern == null || pattern.length() == 0) {
+      pattern = DEFAULT_PATTERN;
+    }
+    ArrayList<String> literals = new ArrayList<>();
+    ArrayList<Integer> ops = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < pattern.length()) {
+      char c = pattern.charAt(i);
+      if (c == '{') {
+        if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '{') {
+          literal.append('{');
+          i += 2;
+          continue;
+        }
+        int close = pattern.indexOf('}', i);
+        if (close > 0) {
+          String name = pattern.substring(i + 1, close);
+          int op = lookup(name);
+          if (op > 0) {
+            flushLiteral(literal, ops, literals);
+            ops.add(op);
+            literals.add(null);
+            i = close + 1;
+            continue;
+          } else if (name.equals("tab")) {
+            literal.append('\t');
+            i = close + 1;
+            continue;
+          } else if (name.equals("enter")) {
+            literal.append('\n');
+            i = close + 1;
+            continue;
+          }
+        }
+      }
+      literal.append(c);
+      i++;
+    }
+    flushLiteral(literal, ops, literals);
+
+    int[] opArray = new int[ops.size()];
+    for (int j = 0; j < opArray.length; j++) {
+      opArray[j] = ops.get(j);
+    }
+    return new OutputTemplate(pattern, opArray, literals.toArray(new String[literals.size()]));
+  }
+
+  private static int lookup(String name) {
+    for (int op = 1; op < PLACEHOLDERS.length; op++) {
+      if (PLACEHOLDERS[op].equals(name)) {
+        return op;
+      }
+    }
+    return -1;
+  }
+
+  private static void flushLiteral(StringBuilder literal, ArrayList<Integer> ops, ArrayList<String> literals) {
+    if (literal.length() > 0) {
+      ops.add(OP_LITERAL);
+      literals.add(literal.toString());
+      literal.setLength(0);
+    }
+  }
+
+  String getPattern() {
+    return mPattern;
+  }
+
+  /**
+   * True for the plain {epc} template, which gets the usual comma separation
+   * between tags.  Custom templates supply their own separators.
+   */
+  boolean isDefault() {
+    return mDefault;
+  }
+
+  /**
+   * Whether the template types TID / user memory, so the inventory has to
+   * read it.
+   */
+  boolean usesTid() {
+    return uses(OP_TID);
+  }
+
+  boolean usesUser() {
+    return uses(OP_USER);
+  }
+
+  private boolean uses(int op) {
+    for (int i = 0; i < mOps.length; i++) {
+      if (mOps[i] == op) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends the output for one scan.  Not thread safe: the GS1 decode is
+   * cached in the template between placeholders.
+   */
+  void emit(ScanRecord record, int epcFlags, StringBuilder out) {
+    mDecodedEpc = null;
+    for (int i = 0; i < mOps.length; i++) {
+      switch (mOps[i]) {
+        case OP_LITERAL:
+          out.append(mLiterals[i]);
+          break;
+        case OP_EPC:
+          if (record.epc == null) {
+            appendText(record, out);
+          } else if (record.hfType != null) {
+            appendHex(record.epc, out);
+          } else if ((epcFlags & EPC_GS1) != 0 && decodeGs1(record)) {
+            mGs1Decoder.appendElementString(out);
+          } else if ((epcFlags & EPC_ASCII) != 0) {
+            appendAscii(record.epc, out);
+          } else {
+            appendHex(record.epc, out);
+          }
+          break;
+        case OP_HEX:
+          if (record.epc == null) {
+            appendText(record, out);
+          } else {
+            appendHex(record.epc, out);
+          }
+          break;
+        case OP_ASCII:
+          if (record.epc == null) {
+            appendText(record, out);
+          } else {
+            appendAscii(record.epc, out);
+          }
+          break;
+        case OP_GS1:
+          if (decodeGs1(record)) {
+            mGs1Decoder.appendElementString(out);
+          }
+          break;
+        case OP_GTIN:
+          if (decodeGs1(record)) {
+            mGs1Decoder.appendPrimaryKey(out);
+          }
+          break;
+        case OP_SERIAL:
+          if (decodeGs1(record)) {
+            mGs1Decoder.appendSerial(out);
+          }
+          break;
+        case OP_TID:
+          if (record.tid != null) {
+            appendHex(record.tid, out);
+          }
+          break;
+        case OP_USER:
+          if (record.user != null) {
+            appendHex(record.user, out);
+          }
+          break;
+        case OP_RSSI:
+          if (record.hasRssi) {
+            out.append(Math.round(record.rssi));
+          }
+          break;
+        case OP_TIME:
+          out.append(record.timestamp);
+          break;
+        case OP_BAND:
+          if (record.epc != null) {
+            out.append(record.hfType != null ? "HF" : "UHF");
+          }
+          break;
+        case OP_HF_TYPE:
+          if (record.hfType != null) {
+            out.append(record.hfType);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private boolean decodeGs1(ScanRecord record) {
+    if (record.epc == null || record.hfType != null) {
+      return false;
+    }
+    if (mDecodedEpc != record.epc) {
+      mDecodedEpc = record.epc;
+      mDecodedOk = mGs1Decoder.decode(record.epc);
+    }
+    return mDecodedOk;
+  }
+
+  private static void appendText(ScanRecord record, StringBuilder out) {
+    if (record.text != null) {
+      out.append(record.text);
+    }
+  }
+
+  static void appendHex(byte[] bytes, StringBuilder out) {
+    for (byte b : bytes) {
+      out.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+  }
+
+  /**
+   * EPCs written as text: bytes up to the first zero, or hex if that isn't
+   * printable 7-bit text.
+   */
+  static void appendAscii(byte[] bytes, StringBuilder out) {
+    int start = out.length();
+    for (byte b : bytes) {
+      if (b == 0) {
+        break;
+      }
+      if (b < 0) {
+        out.setLength(start);
+        appendHex(bytes, out);
+        return;
+      }
+      out.append((char) b);
+    }
+    if (out.length() == start) {
+      appendHex(bytes, out);
+    }
+  }
+}
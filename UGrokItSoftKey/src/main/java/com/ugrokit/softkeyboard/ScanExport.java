@@ -0,0 +1,45 @@
+package com.ugrokit.softkeyboard;
+
+/**
+ * Formats a field's scans in bulk, off the main thread, for the clipboard or
+ * a share intent rather than typing.  The scans are the ones kept with the
+ * candidate strip, so they are what was typed, after dedupe and less any
+ * long-pressed away, and come out the way they were typed: the same output
+ * template (a private copy, as templates aren't thread safe) and the same
+ * EPC rendering.  With the default template, scans are comma separated.
+ */
+final class ScanExport {
+
+  private final OutputTemplate mTemplate;
+  private final OutputTemplate mDisplay = OutputTemplate.compile(null);
+  private final int mEpcFlags;
+
+  ScanExport(String pattern, int epcFlags) {
+    this.mTemplate = OutputTemplate.compile(pattern);
+    this.mEpcFlags = epcFlags;
+  }
+
+  /**
+   * Formats the scans into one buffer, sized once from the first scan's
+   * output.
+   */
+  StringBuilder format(ScanRecord[] records) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < records.length; i++) {
+      int start = out.length();
+      if (mTemplate.isDefault()) {
+        if (i > 0) {
+          out.append(',');
+        }
+        mDisplay.emit(records[i], mEpcFlags, out);
+      } else {
+        mTemplate.emit(records[i], mEpcFlags, out);
+      }
+      if (i == 0) {
+        // Every scan formats to about the same length
+        out.ensureCapacity((out.length() - start + 1) * records.length * 9 / 8);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,199 @@
+package com.ugrokit.softkeyboard;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-session summaries of the scan journal, so history queries only read
+ * the sessions that can match.
+ *
+ * Each finished session is read once, streaming, to record its host
+ * package, the range of its scan times and a 1024 bit Bloom filter of its
+ * EPCs' first one to four bytes: about 150 bytes a session however many
+ * scans it holds.  The session still being written is never summarized; it
+ * is always searched.  Summaries are dropped with the sessions when the
+ * journal starts a new file.
+ */
+final class ScanHistory {
+
+  private static final int BLOOM_WORDS = 16;
+  private static final int BLOOM_PREFIX_BYTES = 4;
+
+  /**
+   * What to look for.  A null or empty prefix, or a null package, matches
+   * anything; text scans never match an EPC prefix.
+   */
+  static final class Query {
+    String packageName;
+    long fromTime = Long.MIN_VALUE;
+    long toTime = Long.MAX_VALUE;
+    // Whole bytes of the hex prefix, then its odd trailing nibble (or -1)
+    private byte[] mPrefix = new byte[0];
+    private int mNibble = -1;
+
+    /**
+     * Sets the EPC prefix from hex; false if it isn't hex.
+     */
+    boolean setEpcPrefix(String hex) {
+      if (hex == null) {
+        hex = "";
+      }
+      byte[] prefix = new byte[hex.length() / 2];
+      for (int i = 0; i < hex.length(); i++) {
+        int digit = Character.digit(hex.charAt(i), 16);
+        if (digit < 0) {
+          return false;
+        }
+        if (i / 2 < prefix.length) {
+          prefix[i / 2] |= (i % 2 == 0) ? digit << 4 : digit;
+        } else {
+          mNibble = digit;
+        }
+      }
+      mPrefix = prefix;
+      if (hex.length() % 2 == 0) {
+        mNibble = -1;
+      }
+      return true;
+    }
+
+    boolean matches(ScanRecord record) {
+      if (record.timestamp < fromTime || record.timestamp > toTime) {
+        return false;
+      }
+      if (mPrefix.length == 0 && mNibble < 0) {
+        return true;
+      }
+      byte[] epc = record.epc;
+      if (epc == null || epc.length < mPrefix.length + (mNibble >= 0 ? 1 : 0)) {
+        return false;
+      }
+      for (int i = 0; i < mPrefix.length; i++) {
+        if (epc[i] != mPrefix[i]) {
+          return false;
+        }
+      }
+      return mNibble < 0 || ((epc[mPrefix.length] >> 4) & 0xf) == mNibble;
+    }
+  }
+
+  private final ScanJournal mJournal;
+
+  // Guarded by this; indexed by session id less mFirstId, for ids below
+  // mSummarized
+  private int mFirstId;
+  private String[] mPackages = new String[64];
+  private int[] mFieldIds = new int[64];
+  private long[] mMinTimes = new long[64];
+  private long[] mMaxTimes = new long[64];
+  private long[] mBlooms = new long[64 * BLOOM_WORDS];
+  private int mSummarized;
+
+  ScanHistory(ScanJournal journal) {
+    this.mJournal = journal;
+  }
+
+  /**
+   * Returns the sessions, oldest first, that may hold scans matching a
+   * query.  Summarizes sessions finished since the last call, so not for the
+   * main thread.
+   */
+  synchronized ScanJournal.Session[] findSessions(Query query) throws IOException {
+    int first = mJournal.getFirstSessionId();
+    int count = mJournal.getSessionCount();
+    if (first != mFirstId) {
+      mFirstId = first;
+      mSummarized = first;
+      Arrays.fill(mBlooms, 0);
+    }
+    while (mSummarized < count - 1) {
+      summarize(mSummarized);
+      mSummarized++;
+    }
+    ScanJournal.Session[] found = new ScanJournal.Session[count - first];
+    int n = 0;
+    for (int id = first; id < count; id++) {
+      ScanJournal.Session session;
+      if (id < mSummarized) {
+        if (!mayMatch(id, query)) {
+          continue;
+        }
+        int i = id - mFirstId;
+        session = new ScanJournal.Session(id, mJournal.getSessionStartTime(id), mPackages[i], mFieldIds[i]);
+      } else {
+        session = mJournal.getSession(id);
+        if (session == null) {
+          continue;
+        }
+        if (query.packageName != null && !query.packageName.equals(session.packageName)) {
+          continue;
+        }
+      }
+      found[n++] = session;
+    }
+    return Arrays.copyOf(found, n);
+  }
+
+  private boolean mayMatch(int id, Query query) {
+    int i = id - mFirstId;
+    if (query.packageName != null && !query.packageName.equals(mPackages[i])) {
+      return false;
+    }
+    if (mMaxTimes[i] < query.fromTime || mMinTimes[i] > query.toTime) {
+      return false;
+    }
+    int length = Math.min(query.mPrefix.length, BLOOM_PREFIX_BYTES);
+    return length == 0 || testBloom(i, bloomBit(query.mPrefix, length));
+  }
+
+  private void summarize(int id) throws IOException {
+    int slot = id - mFirstId;
+    if (slot == mPackages.length) {
+      int size = slot * 2;
+      mPackages = Arrays.copyOf(mPackages, size);
+      mFieldIds = Arrays.copyOf(mFieldIds, size);
+      mMinTimes = Arrays.copyOf(mMinTimes, size);
+      mMaxTimes = Arrays.copyOf(mMaxTimes, size);
+      mBlooms = Arrays.copyOf(mBlooms, size * BLOOM_WORDS);
+    }
+    ScanJournal.Session session = mJournal.getSession(id);
+    mPackages[slot] = (session != null) ? session.packageName : null;
+    mFieldIds[slot] = (session != null) ? session.fieldId : 0;
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    ScanRecord record = new ScanRecord();
+    ScanJournal.Reader reader = mJournal.openSession(id);
+    try {
+      while (reader.next(record)) {
+        minTime = Math.min(minTime, record.timestamp);
+        maxTime = Math.max(maxTime, record.timestamp);
+        if (record.epc != null) {
+          int length = Math.min(record.epc.length, BLOOM_PREFIX_BYTES);
+          for (int i = 1; i <= length; i++) {
+            setBloom(slot, bloomBit(record.epc, i));
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    mMinTimes[slot] = minTime;
+    mMaxTimes[slot] = maxTime;
+  }
+
+  private static int bloomBit(byte[] bytes, int length) {
+    int hash = length;
+    for (int i = 0; i < length; i++) {
+      hash = hash * 31 + bytes[i];
+    }
+    return (hash * 0x9e3779b9) >>> 22;
+  }
+
+  private void setBloom(int id, int bit) {
+    mBlooms[id * BLOOM_WORDS + (bit >> 6)] |= 1L << bit;
+  }
+
+  private boolean testBloom(int id, int bit) {
+    return (mBlooms[id * BLOOM_WORDS + (bit >> 6)] & (1L << bit)) != 0;
+  }
+}
@@ -0,0 +1,258 @@
+package com.ugrokit.softkeyboard;
+
+import android.database.AbstractCursor;
+import android.util.Log;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The scans matching a history query, read from the journal a window at a
+ * time.
+ *
+ * Opening the cursor counts the matches in one streaming pass, keeping the
+ * journal offset of every WINDOW_ROWS'th match.  Moving to a row outside the
+ * current window reads forward from the nearest of those checkpoints, so
+ * memory is one window plus 12 bytes per WINDOW_ROWS matches, and scans
+ * journaled after the cursor opened don't shift its rows.
+ */
+final class ScanHistoryCursor extends AbstractCursor {
+
+  private static final String TAG = "ScanHistoryCursor";
+
+  static final int WINDOW_ROWS = 256;
+
+  static final String[] COLUMNS = {
+      ScanHistoryProvider.COLUMN_ID,
+      ScanHistoryProvider.COLUMN_SESSION_ID,
+      ScanHistoryProvider.COLUMN_TIME,
+      ScanHistoryProvider.COLUMN_EPC,
+      ScanHistoryProvider.COLUMN_TEXT,
+      ScanHistoryProvider.COLUMN_RSSI,
+      ScanHistoryProvider.COLUMN_PACKAGE,
+      ScanHistoryProvider.COLUMN_FIELD_ID,
+  };
+  private static final int ID = 0;
+  private static final int SESSION_ID = 1;
+  private static final int TIME = 2;
+  private static final int EPC = 3;
+  private static final int TEXT = 4;
+  private static final int RSSI = 5;
+  private static final int PACKAGE = 6;
+  private static final int FIELD_ID = 7;
+
+  private final ScanJournal mJournal;
+  private final ScanHistory.Query mQuery;
+  private final ScanJournal.Session[] mSessions;
+  // Each session's journal range when the cursor opened
+  private final long[] mSessionStarts;
+  private final long[] mSessionEnds;
+  // Session index and record offset of every WINDOW_ROWS'th match
+  private int[] mCheckpointSessions = new int[16];
+  private long[] mCheckpointOffsets = new long[16];
+  private int mCount;
+
+  private final ScanRecord mRecord = new ScanRecord();
+  private final StringBuilder mHex = new StringBuilder();
+  private int mWindowStart = -1;
+  private int mWindowSize;
+  private final int[] mRowSessions = new int[WINDOW_ROWS];
+  private final long[] mTimes = new long[WINDOW_ROWS];
+  private final String[] mEpcs = new String[WINDOW_ROWS];
+  private final String[] mTexts = new String[WINDOW_ROWS];
+  private final float[] mRssi = new float[WINDOW_ROWS];
+
+  ScanHistoryCursor(ScanJournal journal, ScanJournal.Session[] sessions, ScanHistory.Query query)
+      throws IOException {
+    this.mJournal = journal;
+    this.mQuery = query;
+    this.mSessions = sessions;
+    this.mSessionStarts = new long[sessions.length];
+    this.mSessionEnds = new long[sessions.length];
+    for (int i = 0; i < sessions.length; i++) {
+      ScanJournal.Reader reader = journal.openSession(sessions[i].id);
+      try {
+        mSessionStarts[i] = reader.getRecordOffset();
+        mSessionEnds[i] = reader.getEnd();
+        while (reader.next(mRecord)) {
+          if (!query.matches(mRecord)) {
+            continue;
+          }
+          if (mCount % WINDOW_ROWS == 0) {
+            addCheckpoint(i, reader.getRecordOffset());
+          }
+          mCount++;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private void addCheckpoint(int session, long offset) {
+    int n = mCount / WINDOW_ROWS;
+    if (n == mCheckpointSessions.length) {
+      mCheckpointSessions = Arrays.copyOf(mCheckpointSessions, n * 2);
+      mCheckpointOffsets = Arrays.copyOf(mCheckpointOffsets, n * 2);
+    }
+    mCheckpointSessions[n] = session;
+    mCheckpointOffsets[n] = offset;
+  }
+
+  @Override
+  public int getCount() {
+    return mCount;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return COLUMNS;
+  }
+
+  @Override
+  public boolean onMove(int oldPosition, int newPosition) {
+    if (newPosition >= mWindowStart && newPosition < mWindowStart + mWindowSize) {
+      return true;
+    }
+    try {
+      loadWindow(newPosition / WINDOW_ROWS);
+      return newPosition < mWindowStart + mWindowSize;
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't read scans: " + e.getMessage());
+      mWindowStart = -1;
+      mWindowSize = 0;
+      return false;
+    }
+  }
+
+  private void loadWindow(int checkpoint) throws IOException {
+    mWindowStart = checkpoint * WINDOW_ROWS;
+    mWindowSize = 0;
+    int session = mCheckpointSessions[checkpoint];
+    long offset = mCheckpointOffsets[checkpoint];
+    while (mWindowSize < WINDOW_ROWS && session < mSessions.length) {
+      ScanJournal.Reader reader = mJournal.openRange(mSessions[session].id, offset, mSessionEnds[session]);
+      try {
+        while (mWindowSize < WINDOW_ROWS && reader.next(mRecord)) {
+          if (mQuery.matches(mRecord)) {
+            addRow(session, mRecord);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      session++;
+      if (session < mSessions.length) {
+        offset = mSessionStarts[session];
+      }
+    }
+  }
+
+  private void addRow(int session, ScanRecord record) {
+    int row = mWindowSize++;
+    mRowSessions[row] = session;
+    mTimes[row] = record.timestamp;
+    if (record.epc != null) {
+      mHex.setLength(0);
+      OutputTemplate.appendHex(record.epc, mHex);
+      mEpcs[row] = mHex.toString();
+    } else {
+      mEpcs[row] = null;
+    }
+    mTexts[row] = record.text;
+    mRssi[row] = record.hasRssi ? (float) record.rssi : Float.NaN;
+  }
+
+  private int row(int column) {
+    if (column < 0 || column >= COLUMNS.length) {
+      throw new IllegalArgumentException("No column " + column);
+    }
+    return getPosition() - mWindowStart;
+  }
+
+  @Override
+  public String getString(int column) {
+    int row = row(column);
+    switch (column) {
+      case EPC:
+        return mEpcs[row];
+      case TEXT:
+        return mTexts[row];
+      case PACKAGE:
+        return mSessions[mRowSessions[row]].packageName;
+      case RSSI:
+        return isNull(column) ? null : Float.toString(mRssi[row]);
+      default:
+        return Long.toString(getLong(column));
+    }
+  }
+
+  @Override
+  public long getLong(int column) {
+    int row = row(column);
+    switch (column) {
+      case ID:
+        return getPosition();
+      case SESSION_ID:
+        return mSessions[mRowSessions[row]].id;
+      case TIME:
+        return mTimes[row];
+      case FIELD_ID:
+        return mSessions[mRowSessions[row]].fieldId;
+      case RSSI:
+        return Math.round(mRssi[row]);
+      default:
+        return 0;
+    }
+  }
+
+  @Override
+  public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override
+  public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    return (column == RSSI) ? mRssi[row(column)] : getLong(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    return (column == RSSI) ? mRssi[row(column)] : getLong(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    int row = row(column);
+    switch (column) {
+      case EPC:
+        return mEpcs[row] == null;
+      case TEXT:
+        return mTexts[row] == null;
+      case PACKAGE:
+        return mSessions[mRowSessions[row]].packageName == null;
+      case RSSI:
+        return Float.isNaN(mRssi[row]);
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public int getType(int column) {
+    switch (column) {
+      case EPC:
+      case TEXT:
+      case PACKAGE:
+        return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+      case RSSI:
+        return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_FLOAT;
+      default:
+        return FIELD_TYPE_INTEGER;
+    }
+  }
+}
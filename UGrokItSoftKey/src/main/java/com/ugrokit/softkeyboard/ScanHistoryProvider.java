@@ -0,0 +1,144 @@
+package com.ugrokit.softkeyboard;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * Read-only access to the scan journal for other apps (holding
+ * READ_SCAN_HISTORY, which only apps signed like the keyboard get).
+ *
+ * content://com.ugrokit.softkeyboard.scans/scans gives one row per scan,
+ * oldest first; .../sessions gives one row per field scanned into.  Both
+ * are filtered by the query parameters epcPrefix (hex; sessions without
+ * such an EPC are left out), from and to (milliseconds, inclusive) and
+ * package, e.g.
+ * <pre>
+ *   content://com.ugrokit.softkeyboard.scans/scans?epcPrefix=3034&amp;from=1700000000000
+ * </pre>
+ * Selection, selection arguments and sort order aren't supported.
+ */
+public class ScanHistoryProvider extends ContentProvider {
+
+  private static final String TAG = "ScanHistoryProvider";
+
+  public static final String AUTHORITY = "com.ugrokit.softkeyboard.scans";
+  public static final Uri SCANS_URI = Uri.parse("content://" + AUTHORITY + "/scans");
+  public static final Uri SESSIONS_URI = Uri.parse("content://" + AUTHORITY + "/sessions");
+
+  public static final String PARAM_EPC_PREFIX = "epcPrefix";
+  public static final String PARAM_FROM = "from";
+  public static final String PARAM_TO = "to";
+  public static final String PARAM_PACKAGE = "package";
+
+  public static final String COLUMN_ID = "_id";
+  public static final String COLUMN_SESSION_ID = "session_id";
+  public static final String COLUMN_TIME = "time";
+  public static final String COLUMN_EPC = "epc";
+  public static final String COLUMN_TEXT = "text";
+  public static final String COLUMN_RSSI = "rssi";
+  public static final String COLUMN_PACKAGE = "package";
+  public static final String COLUMN_FIELD_ID = "field_id";
+  public static final String COLUMN_START_TIME = "start_time";
+
+  private static final String[] SESSION_COLUMNS = {
+      COLUMN_ID, COLUMN_START_TIME, COLUMN_PACKAGE, COLUMN_FIELD_ID
+  };
+
+  private static final int MATCH_SCANS = 1;
+  private static final int MATCH_SESSIONS = 2;
+
+  private final UriMatcher mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+  private ScanHistory mHistory;
+
+  @Override
+  public boolean onCreate() {
+    mMatcher.addURI(AUTHORITY, "scans", MATCH_SCANS);
+    mMatcher.addURI(AUTHORITY, "sessions", MATCH_SESSIONS);
+    return true;
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+    int match = mMatcher.match(uri);
+    if (match == UriMatcher.NO_MATCH) {
+      throw new IllegalArgumentException("Unknown URI " + uri);
+    }
+    ScanHistory.Query query = new ScanHistory.Query();
+    if (!query.setEpcPrefix(uri.getQueryParameter(PARAM_EPC_PREFIX))) {
+      throw new IllegalArgumentException(PARAM_EPC_PREFIX + " isn't hex: " + uri);
+    }
+    query.fromTime = getTimeParameter(uri, PARAM_FROM, Long.MIN_VALUE);
+    query.toTime = getTimeParameter(uri, PARAM_TO, Long.MAX_VALUE);
+    query.packageName = uri.getQueryParameter(PARAM_PACKAGE);
+
+    ScanJournal journal = SoftKeyboardApp.getScanJournal();
+    journal.sync();
+    try {
+      ScanJournal.Session[] sessions = getHistory(journal).findSessions(query);
+      if (match == MATCH_SCANS) {
+        return new ScanHistoryCursor(journal, sessions, query);
+      }
+      MatrixCursor cursor = new MatrixCursor(SESSION_COLUMNS, sessions.length);
+      for (ScanJournal.Session session : sessions) {
+        cursor.addRow(new Object[] { session.id, session.startTime, session.packageName, session.fieldId });
+      }
+      return cursor;
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't query " + uri + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private synchronized ScanHistory getHistory(ScanJournal journal) {
+    if (mHistory == null) {
+      mHistory = new ScanHistory(journal);
+    }
+    return mHistory;
+  }
+
+  private static long getTimeParameter(Uri uri, String name, long defaultTime) {
+    String value = uri.getQueryParameter(name);
+    if (value == null) {
+      return defaultTime;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " isn't a time in milliseconds: " + uri);
+    }
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    switch (mMatcher.match(uri)) {
+      case MATCH_SCANS:
+        return "vnd.android.cursor.dir/vnd.ugrokit.scan";
+      case MATCH_SESSIONS:
+        return "vnd.android.cursor.dir/vnd.ugrokit.session";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException("Scan history is read-only");
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("Scan history is read-only");
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("Scan history is read-only");
+  }
+}
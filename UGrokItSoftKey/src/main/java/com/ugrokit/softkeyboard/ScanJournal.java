@@ -0,0 +1,696 @@
+package com.ugrokit.softkeyboard;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every scan, so nothing is lost when the host app
+ * crashes or the field is cleared.
+ *
+ * Scans are serialized into an in-memory batch on the caller's thread, which
+ * costs a few buffer puts and a CRC of some 30 bytes.  An I/O thread takes
+ * the batch GROUP_COMMIT_MSEC later (or at once, if it fills), writes it
+ * through a FileChannel and forces it to disk, so one fsync covers every
+ * scan in the batch.
+ *
+ * The journal file is a sequence of records, each
+ * <pre>
+ *   type (1) | 0 (1) | payload length (2) | payload | CRC32 of all before (4)
+ * </pre>
+ * A session record (start time, field id, host package) starts the scans
+ * into one field; scan records (time, RSSI, kind, EPC or text) follow it.
+ * The index file holds a 16 byte (journal offset, start time) entry per
+ * session, so a session is found without reading the journal.  On open the
+ * journal is checked from the last indexed session on: a torn record at the
+ * end is cut off and sessions missing from the index are added.
+ *
+ * Once the journal passes its limit (MAX_JOURNAL_BYTES unless given), the
+ * next session starts a new one and the old pair of files is kept with
+ * OLD_SUFFIX, replacing the pair before it, so the journal takes at most
+ * twice that.  Session ids keep counting up across the switch; the old
+ * sessions' ids can no longer be read.
+ */
+final class ScanJournal {
+
+  private static final String TAG = "ScanJournal";
+
+  static final String JOURNAL_FILE = "scans.journal";
+  static final String INDEX_FILE = "scans.index";
+  static final String OLD_SUFFIX = ".old";
+
+  private static final int TYPE_SESSION = 1;
+  private static final int TYPE_SCAN = 2;
+  private static final int KIND_EPC = 0;
+  private static final int KIND_TEXT = 1;
+
+  private static final int HEADER_BYTES = 4;
+  private static final int CRC_BYTES = 4;
+  // time, RSSI, kind
+  private static final int SCAN_FIXED_BYTES = 8 + 4 + 1;
+  // time, field id, package length
+  private static final int SESSION_FIXED_BYTES = 8 + 4 + 1;
+  private static final int MAX_DATA_BYTES = 4096;
+  private static final int MAX_RECORD_BYTES = HEADER_BYTES + SCAN_FIXED_BYTES + MAX_DATA_BYTES + CRC_BYTES;
+  private static final int INDEX_ENTRY_BYTES = 16;
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final int READ_BUFFER_BYTES = 16 * 1024;
+  private static final long GROUP_COMMIT_MSEC = 200;
+  // About a million EPC scans
+  static final long MAX_JOURNAL_BYTES = 32L * 1024 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** A session's index entry plus its session record */
+  static final class Session {
+    final int id;
+    final long startTime;
+    final String packageName;
+    final int fieldId;
+
+    Session(int id, long startTime, String packageName, int fieldId) {
+      this.id = id;
+      this.startTime = startTime;
+      this.packageName = packageName;
+      this.fieldId = fieldId;
+    }
+  }
+
+  /**
+   * Serialized records waiting to be written, and where in them each new
+   * session starts.
+   */
+  private static final class Batch {
+    ByteBuffer data = ByteBuffer.allocate(BATCH_BYTES);
+    int[] sessionPositions = new int[4];
+    long[] sessionTimes = new long[4];
+    int sessionCount;
+
+    void clear() {
+      data.clear();
+      sessionCount = 0;
+    }
+  }
+
+  private final File mJournalPath;
+  private final File mIndexPath;
+  private final long mMaxJournalBytes;
+  private final ScheduledExecutorService mIo;
+  private volatile Thread mIoThread;
+  private final CRC32 mCrc = new CRC32();
+  private final Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  // Guarded by this
+  private Batch mActive = new Batch();
+  private Batch mSpare = new Batch();
+  private ScheduledFuture<?> mScheduledFlush;
+
+  // I/O thread only, after recover()
+  private FileChannel mJournal;
+  private FileChannel mIndex;
+  private final CRC32 mIoCrc = new CRC32();
+
+  // Written by the I/O thread, guarded by mSessionLock; indexed by session
+  // id less the id of the journal's first session
+  private final Object mSessionLock = new Object();
+  private int mFirstSessionId;
+  private long[] mSessionOffsets = new long[64];
+  private long[] mSessionTimes = new long[64];
+  private int mSessionCount;
+  private volatile long mJournalEnd;
+
+  ScanJournal(File dir) {
+    this(dir, MAX_JOURNAL_BYTES);
+  }
+
+  ScanJournal(File dir, long maxJournalBytes) {
+    this.mJournalPath = new File(dir, JOURNAL_FILE);
+    this.mIndexPath = new File(dir, INDEX_FILE);
+    this.mMaxJournalBytes = maxJournalBytes;
+    this.mIo = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        mIoThread = thread;
+        return thread;
+      }
+    });
+    mIo.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          recover();
+        } catch (IOException e) {
+          Log.e(TAG, "Journal unavailable: " + e.getMessage());
+          mJournal = null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts a session: the scans appended from now on went into one field.
+   */
+  synchronized void startSession(String packageName, int fieldId, long time) {
+    byte[] pkg = (packageName != null) ? packageName.getBytes(UTF8) : new byte[0];
+    int pkgLength = Math.min(pkg.length, 255);
+    ByteBuffer data = reserve(HEADER_BYTES + SESSION_FIXED_BYTES + pkgLength + CRC_BYTES);
+    Batch batch = mActive;
+    if (batch.sessionCount == batch.sessionPositions.length) {
+      batch.sessionPositions = Arrays.copyOf(batch.sessionPositions, batch.sessionCount * 2);
+      batch.sessionTimes = Arrays.copyOf(batch.sessionTimes, batch.sessionCount * 2);
+    }
+    batch.sessionPositions[batch.sessionCount] = data.position();
+    batch.sessionTimes[batch.sessionCount] = time;
+    batch.sessionCount++;
+
+    int start = beginRecord(data, TYPE_SESSION, SESSION_FIXED_BYTES + pkgLength);
+    data.putLong(time);
+    data.putInt(fieldId);
+    data.put((byte) pkgLength);
+    data.put(pkg, 0, pkgLength);
+    endRecord(data, start);
+  }
+
+  /**
+   * Appends one scan to the current session.
+   */
+  synchronized void appendScan(ScanRecord record) {
+    byte[] bytes;
+    int kind;
+    if (record.epc != null) {
+      bytes = record.epc;
+      kind = KIND_EPC;
+    } else if (record.text != null) {
+      bytes = record.text.getBytes(UTF8);
+      kind = KIND_TEXT;
+    } else {
+      return;
+    }
+    int length = Math.min(bytes.length, MAX_DATA_BYTES);
+    ByteBuffer data = reserve(HEADER_BYTES + SCAN_FIXED_BYTES + length + CRC_BYTES);
+    int start = beginRecord(data, TYPE_SCAN, SCAN_FIXED_BYTES + length);
+    data.putLong(record.timestamp);
+    data.putFloat(record.hasRssi ? (float) record.rssi : Float.NaN);
+    data.put((byte) kind);
+    data.put(bytes, 0, length);
+    endRecord(data, start);
+  }
+
+  /**
+   * Writes everything appended so far, and returns once it is on disk.  Not
+   * for the main thread.
+   */
+  void sync() {
+    if (Thread.currentThread() == mIoThread) {
+      flush();
+      return;
+    }
+    final CountDownLatch done = new CountDownLatch(1);
+    mIo.execute(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+        done.countDown();
+      }
+    });
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * One more than the latest session's id; sessions still waiting in a
+   * batch aren't counted until it is written.
+   */
+  int getSessionCount() {
+    synchronized (mSessionLock) {
+      return mFirstSessionId + mSessionCount;
+    }
+  }
+
+  /**
+   * The id of the oldest session still in the journal.
+   */
+  int getFirstSessionId() {
+    synchronized (mSessionLock) {
+      return mFirstSessionId;
+    }
+  }
+
+  /**
+   * A session's start time, from the index.
+   */
+  long getSessionStartTime(int id) {
+    synchronized (mSessionLock) {
+      int i = id - mFirstSessionId;
+      return (i >= 0 && i < mSessionCount) ? mSessionTimes[i] : 0;
+    }
+  }
+
+  /**
+   * Reads a session's details, or returns null if it can't be read.
+   */
+  Session getSession(int id) {
+    long offset;
+    long time;
+    try {
+      RandomAccessFile file;
+      synchronized (mSessionLock) {
+        int i = id - mFirstSessionId;
+        if (i < 0 || i >= mSessionCount) {
+          return null;
+        }
+        offset = mSessionOffsets[i];
+        time = mSessionTimes[i];
+        // Opened under the lock, so it's the file the offset is in
+        file = new RandomAccessFile(mJournalPath, "r");
+      }
+      try {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + SESSION_FIXED_BYTES + 255);
+        file.getChannel().read(buffer, offset);
+        buffer.flip();
+        if (buffer.remaining() < HEADER_BYTES + SESSION_FIXED_BYTES || buffer.get() != TYPE_SESSION) {
+          return null;
+        }
+        buffer.position(HEADER_BYTES + 8);
+        int fieldId = buffer.getInt();
+        int pkgLength = buffer.get() & 0xff;
+        if (buffer.remaining() < pkgLength) {
+          return null;
+        }
+        String pkg = new String(buffer.array(), buffer.position(), pkgLength, UTF8);
+        return new Session(id, time, pkg, fieldId);
+      } finally {
+        file.close();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't read session " + id + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Opens a reader over one session's scans as written so far; call
+   * {@link #sync} first to include the latest batch.
+   */
+  Reader openSession(int id) throws IOException {
+    synchronized (mSessionLock) {
+      int i = id - mFirstSessionId;
+      if (i < 0 || i >= mSessionCount) {
+        throw new IOException("No session " + id);
+      }
+      long end = (i + 1 < mSessionCount) ? mSessionOffsets[i + 1] : mJournalEnd;
+      return new Reader(mJournalPath, mSessionOffsets[i], end);
+    }
+  }
+
+  /**
+   * Opens a reader that resumes a session at a record offset from
+   * {@link Reader#getRecordOffset}, up to the end from {@link Reader#getEnd}.
+   */
+  Reader openRange(int id, long start, long end) throws IOException {
+    synchronized (mSessionLock) {
+      if (id < mFirstSessionId || id >= mFirstSessionId + mSessionCount) {
+        throw new IOException("Session " + id + " is no longer in the journal");
+      }
+      return new Reader(mJournalPath, start, end);
+    }
+  }
+
+  /**
+   * Reads scan records in order.  Not thread safe.
+   */
+  static final class Reader implements Closeable {
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private final CRC32 mCrc = new CRC32();
+    private long mPosition;
+    private final long mEnd;
+    private long mRecordOffset;
+
+    private Reader(File path, long start, long end) throws IOException {
+      this.mFile = new RandomAccessFile(path, "r");
+      this.mChannel = mFile.getChannel();
+      this.mPosition = start;
+      this.mEnd = end;
+      this.mRecordOffset = start;
+      mBuffer.limit(0);
+    }
+
+    /**
+     * Fills the record with the next scan; false at the end of the session.
+     */
+    boolean next(ScanRecord record) throws IOException {
+      while (true) {
+        if (!fill(HEADER_BYTES)) {
+          return false;
+        }
+        int start = mBuffer.position();
+        int type = mBuffer.get(start);
+        int length = mBuffer.getShort(start + 2) & 0xffff;
+        int total = HEADER_BYTES + length + CRC_BYTES;
+        if (!fill(total)) {
+          return false;
+        }
+        start = mBuffer.position();
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), start, HEADER_BYTES + length);
+        if ((int) mCrc.getValue() != mBuffer.getInt(start + HEADER_BYTES + length)) {
+          throw new IOException("Corrupt journal record");
+        }
+        mBuffer.position(start + total);
+        if (type == TYPE_SCAN) {
+          mRecordOffset = mPosition - (mBuffer.limit() - start);
+          parseScan(mBuffer, start + HEADER_BYTES, length, record);
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Journal offset of the scan last returned by {@link #next}, or where
+     * the reader started.
+     */
+    long getRecordOffset() {
+      return mRecordOffset;
+    }
+
+    /**
+     * Journal offset where this reader stops.
+     */
+    long getEnd() {
+      return mEnd;
+    }
+
+    @Override
+    public void close() throws IOException {
+      mFile.close();
+    }
+
+    /**
+     * Makes sure the buffer holds n bytes of the session; false if the
+     * session has fewer left.
+     */
+    private boolean fill(int n) throws IOException {
+      if (mBuffer.remaining() >= n) {
+        return true;
+      }
+      mBuffer.compact();
+      long want = Math.min(mEnd - mPosition, mBuffer.remaining());
+      mBuffer.limit(mBuffer.position() + (int) want);
+      while (mBuffer.hasRemaining()) {
+        int read = mChannel.read(mBuffer, mPosition);
+        if (read <= 0) {
+          break;
+        }
+        mPosition += read;
+      }
+      mBuffer.flip();
+      return mBuffer.remaining() >= n;
+    }
+  }
+
+  private static void parseScan(ByteBuffer buffer, int offset, int length, ScanRecord record) {
+    record.reset();
+    record.timestamp = buffer.getLong(offset);
+    float rssi = buffer.getFloat(offset + 8);
+    if (!Float.isNaN(rssi)) {
+      record.rssi = rssi;
+      record.hasRssi = true;
+    }
+    int kind = buffer.get(offset + 12);
+    int dataOffset = offset + SCAN_FIXED_BYTES;
+    int dataLength = length - SCAN_FIXED_BYTES;
+    if (kind == KIND_EPC) {
+      record.epc = Arrays.copyOfRange(buffer.array(), dataOffset, dataOffset + dataLength);
+    } else {
+      record.text = new String(buffer.array(), dataOffset, dataLength, UTF8);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Writing
+
+  /**
+   * Returns the active batch with room for a record, scheduling its write.
+   * If it is full while the other batch is still being written it grows,
+   * rather than making the caller wait for the disk.
+   */
+  private ByteBuffer reserve(int bytes) {
+    ByteBuffer data = mActive.data;
+    if (data.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + bytes));
+      data.flip();
+      larger.put(data);
+      mActive.data = larger;
+      data = larger;
+    }
+    if (data.position() + MAX_RECORD_BYTES > BATCH_BYTES) {
+      // Full enough: write it now
+      if (mScheduledFlush != null) {
+        mScheduledFlush.cancel(false);
+      }
+      mScheduledFlush = mIo.schedule(mFlush, 0, TimeUnit.MILLISECONDS);
+    } else if (mScheduledFlush == null) {
+      mScheduledFlush = mIo.schedule(mFlush, GROUP_COMMIT_MSEC, TimeUnit.MILLISECONDS);
+    }
+    return data;
+  }
+
+  private static int beginRecord(ByteBuffer data, int type, int payloadLength) {
+    int start = data.position();
+    data.put((byte) type);
+    data.put((byte) 0);
+    data.putShort((short) payloadLength);
+    return start;
+  }
+
+  private void endRecord(ByteBuffer data, int start) {
+    mCrc.reset();
+    mCrc.update(data.array(), start, data.position() - start);
+    data.putInt((int) mCrc.getValue());
+  }
+
+  /**
+   * Writes the active batch and forces it to disk, then its index entries;
+   * an index that misses them is repaired by recover().  I/O thread only.
+   */
+  private void flush() {
+    Batch batch;
+    synchronized (this) {
+      if (mScheduledFlush != null) {
+        mScheduledFlush.cancel(false);
+        mScheduledFlush = null;
+      }
+      if (mActive.data.position() == 0) {
+        return;
+      }
+      batch = mActive;
+      mActive = mSpare;
+      mSpare = null;
+    }
+    try {
+      if (mJournal == null) {
+        return;
+      }
+      ByteBuffer data = batch.data;
+      int end = data.position();
+      int first = 0;
+      if (mJournalEnd >= mMaxJournalBytes && batch.sessionCount > 0) {
+        // Finish the session in progress here, and start the next afresh
+        first = batch.sessionPositions[0];
+        write(data, 0, first);
+        rotate();
+      }
+      final long base = mJournalEnd - first;
+      write(data, first, end);
+
+      if (batch.sessionCount > 0) {
+        long indexPosition;
+        synchronized (mSessionLock) {
+          indexPosition = (long) mSessionCount * INDEX_ENTRY_BYTES;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(batch.sessionCount * INDEX_ENTRY_BYTES);
+        for (int i = 0; i < batch.sessionCount; i++) {
+          entries.putLong(base + batch.sessionPositions[i]);
+          entries.putLong(batch.sessionTimes[i]);
+          // Readable now they're on disk, index or no index
+          addSession(base + batch.sessionPositions[i], batch.sessionTimes[i]);
+        }
+        entries.flip();
+        while (entries.hasRemaining()) {
+          indexPosition += mIndex.write(entries, indexPosition);
+        }
+        mIndex.force(false);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Journal write failed: " + e.getMessage());
+    } finally {
+      batch.clear();
+      synchronized (this) {
+        mSpare = batch;
+      }
+    }
+  }
+
+  /**
+   * Appends part of a batch to the journal and forces it to disk.
+   */
+  private void write(ByteBuffer data, int from, int to) throws IOException {
+    data.limit(to);
+    data.position(from);
+    long position = mJournalEnd;
+    while (data.hasRemaining()) {
+      position += mJournal.write(data, position);
+    }
+    mJournal.force(false);
+    mJournalEnd = position;
+  }
+
+  /**
+   * Keeps the journal and index with OLD_SUFFIX, and starts empty ones.
+   */
+  private void rotate() throws IOException {
+    mJournal.close();
+    mIndex.close();
+    synchronized (mSessionLock) {
+      // Under the lock, so readers open the file their offsets are in
+      renameOld(mJournalPath);
+      renameOld(mIndexPath);
+      mJournal = new RandomAccessFile(mJournalPath, "rw").getChannel();
+      mIndex = new RandomAccessFile(mIndexPath, "rw").getChannel();
+      // In case the old files couldn't be moved out of the way either
+      mJournal.truncate(0);
+      mIndex.truncate(0);
+      mFirstSessionId += mSessionCount;
+      mSessionCount = 0;
+      mJournalEnd = 0;
+    }
+    Log.i(TAG, "Journal full; older sessions kept in " + mJournalPath.getName() + OLD_SUFFIX);
+  }
+
+  private static void renameOld(File path) {
+    File old = new File(path.getPath() + OLD_SUFFIX);
+    if (!path.renameTo(old)) {
+      Log.w(TAG, "Couldn't keep " + path.getName() + "; dropping it");
+      path.delete();
+    }
+  }
+
+  private void addSession(long offset, long time) {
+    synchronized (mSessionLock) {
+      if (mSessionCount == mSessionOffsets.length) {
+        mSessionOffsets = Arrays.copyOf(mSessionOffsets, mSessionCount * 2);
+        mSessionTimes = Arrays.copyOf(mSessionTimes, mSessionCount * 2);
+      }
+      mSessionOffsets[mSessionCount] = offset;
+      mSessionTimes[mSessionCount] = time;
+      mSessionCount++;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Recovery
+
+  /**
+   * Opens the files, loads the index and checks the journal from the last
+   * indexed session to the end.  I/O thread only.
+   */
+  private void recover() throws IOException {
+    mJournal = new RandomAccessFile(mJournalPath, "rw").getChannel();
+    mIndex = new RandomAccessFile(mIndexPath, "rw").getChannel();
+    long journalSize = mJournal.size();
+
+    int entries = (int) (mIndex.size() / INDEX_ENTRY_BYTES);
+    ByteBuffer index = ByteBuffer.allocate(entries * INDEX_ENTRY_BYTES);
+    while (index.hasRemaining() && mIndex.read(index, index.position()) > 0) {
+      // keep reading
+    }
+    index.flip();
+    while (index.remaining() >= INDEX_ENTRY_BYTES) {
+      long offset = index.getLong();
+      long time = index.getLong();
+      if (offset >= journalSize || (mSessionCount > 0 && offset <= mSessionOffsets[mSessionCount - 1])) {
+        break;
+      }
+      addSession(offset, time);
+    }
+
+    // Walk the tail, adding unindexed sessions, up to the first bad record
+    long position = (mSessionCount > 0) ? mSessionOffsets[mSessionCount - 1] : 0;
+    long lastIndexed = position;
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD_BYTES);
+    while (position + HEADER_BYTES + CRC_BYTES <= journalSize) {
+      buffer.clear();
+      buffer.limit(HEADER_BYTES);
+      mJournal.read(buffer, position);
+      int type = buffer.get(0);
+      int length = buffer.getShort(2) & 0xffff;
+      int total = HEADER_BYTES + length + CRC_BYTES;
+      if ((type != TYPE_SESSION && type != TYPE_SCAN) || total > MAX_RECORD_BYTES
+          || position + total > journalSize) {
+        break;
+      }
+      buffer.limit(total);
+      while (buffer.hasRemaining() && mJournal.read(buffer, position + buffer.position()) > 0) {
+        // keep reading
+      }
+      mIoCrc.reset();
+      mIoCrc.update(buffer.array(), 0, HEADER_BYTES + length);
+      if ((int) mIoCrc.getValue() != buffer.getInt(HEADER_BYTES + length)) {
+        break;
+      }
+      if (type == TYPE_SESSION && (mSessionCount == 0 || position > lastIndexed)) {
+        addSession(position, buffer.getLong(HEADER_BYTES));
+      }
+      position += total;
+    }
+    if (position < journalSize) {
+      Log.w(TAG, "Dropping " + (journalSize - position) + " bytes of torn journal");
+      mJournal.truncate(position);
+    }
+    mJournalEnd = position;
+
+    // Rewrite the index to match
+    ByteBuffer rebuilt = ByteBuffer.allocate(getSessionCount() * INDEX_ENTRY_BYTES);
+    synchronized (mSessionLock) {
+      for (int i = 0; i < mSessionCount; i++) {
+        rebuilt.putLong(mSessionOffsets[i]);
+        rebuilt.putLong(mSessionTimes[i]);
+      }
+    }
+    rebuilt.flip();
+    if (rebuilt.remaining() != mIndex.size()) {
+      mIndex.truncate(0);
+      long indexPosition = 0;
+      while (rebuilt.hasRemaining()) {
+        indexPosition += mIndex.write(rebuilt, indexPosition);
+      }
+      mIndex.force(false);
+    }
+    Log.i(TAG, "Journal open: " + mSessionCount + " sessions, " + mJournalEnd + " bytes");
+  }
+}
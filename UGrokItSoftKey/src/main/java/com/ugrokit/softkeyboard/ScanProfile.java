@@ -0,0 +1,167 @@
+package com.ugrokit.softkeyboard;
+
+import com.ugrokit.api.UgiRfidConfiguration;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Scanning settings for one host app (and optionally one kind of field in
+ * it), parsed from JSON such as:
+ * <pre>
+ *   {"name": "Receiving", "package": "com.example.wms", "hint": "sscc",
+ *    "inventoryType": "INVENTORY_SHORT_RANGE", "power": 60, "findOne": true,
+ *    "strongest": true, "gs1": true, "template": "{gtin}{enter}",
+ *    "epcPrefix": "31", "dedupe": "field", "tid": true, "userBytes": 16,
+ *    "band": "uhf"}
+ * </pre>
+ * Everything except "name" is optional; whatever a profile leaves out comes
+ * from the keyboard's own settings.  Immutable once parsed.
+ */
+final class ScanProfile {
+
+  /** Scans repeat once per inventory (the keyboard's usual behavior) */
+  static final int DEDUPE_INVENTORY = 0;
+  /** Scans repeat once per field, however many inventories are run */
+  static final int DEDUPE_FIELD = 1;
+  /**
+   * Every scan is typed.  An inventory reports each tag once, so for tags
+   * this is DEDUPE_INVENTORY; it differs for barcode and wedge scans, which
+   * DEDUPE_INVENTORY drops when repeated before the next inventory.
+   */
+  static final int DEDUPE_NONE = 2;
+
+  static final int BAND_UHF = 0;
+  static final int BAND_HF = 1;
+  /** Alternate between UHF and HF */
+  static final int BAND_BOTH = 2;
+
+  static final int UNSET = -1;
+
+  static final int MAX_USER_BYTES = 64;
+
+  final String name;
+  /** Host package this applies to, or null for any package */
+  final String packageName;
+  /** Lower case text matched against the field's hint and name, or null */
+  final String hint;
+  final UgiRfidConfiguration.InventoryTypes inventoryType;
+  /** Power percentage, or UNSET */
+  final int power;
+  final Boolean findOne;
+  /** With findOne, wait briefly and take the strongest tag rather than the first */
+  final Boolean strongest;
+  final Boolean ascii;
+  final Boolean gs1;
+  /** Compiled output template, or null */
+  final OutputTemplate template;
+  /** Only tags whose EPC starts with these bytes are typed; null for all */
+  private final byte[] mEpcPrefix;
+  /** DEDUPE_..., or UNSET */
+  final int dedupe;
+  /** Read each tag's TID along with its EPC */
+  final Boolean tid;
+  /** User memory bytes read with each tag, or UNSET */
+  final int userBytes;
+  /** BAND_..., or UNSET */
+  final int band;
+
+  private ScanProfile(JSONObject json) throws JSONException {
+    this.name = json.getString("name");
+    this.packageName = json.has("package") ? json.getString("package") : null;
+    this.hint = json.has("hint") ? json.getString("hint").toLowerCase() : null;
+    if (json.has("inventoryType")) {
+      try {
+        this.inventoryType = UgiRfidConfiguration.InventoryTypes.valueOf(json.getString("inventoryType"));
+      } catch (IllegalArgumentException e) {
+        throw new JSONException(name + ": unknown inventoryType " + json.getString("inventoryType"));
+      }
+    } else {
+      this.inventoryType = null;
+    }
+    this.power = json.has("power") ? Math.max(0, Math.min(100, json.getInt("power"))) : UNSET;
+    this.findOne = json.has("findOne") ? json.getBoolean("findOne") : null;
+    this.strongest = json.has("strongest") ? json.getBoolean("strongest") : null;
+    this.ascii = json.has("ascii") ? json.getBoolean("ascii") : null;
+    this.gs1 = json.has("gs1") ? json.getBoolean("gs1") : null;
+    this.template = json.has("template") ? OutputTemplate.compile(json.getString("template")) : null;
+    this.mEpcPrefix = json.has("epcPrefix") ? parseHex(json.getString("epcPrefix")) : null;
+    if (json.has("dedupe")) {
+      String d = json.getString("dedupe");
+      if (d.equals("inventory")) {
+        this.dedupe = DEDUPE_INVENTORY;
+      } else if (d.equals("field")) {
+        this.dedupe = DEDUPE_FIELD;
+      } else if (d.equals("none")) {
+        this.dedupe = DEDUPE_NONE;
+      } else {
+        throw new JSONException(name + ": unknown dedupe " + d);
+      }
+    } else {
+      this.dedupe = UNSET;
+    }
+    this.tid = json.has("tid") ? json.getBoolean("tid") : null;
+    this.userBytes = json.has("userBytes")
+        ? Math.max(0, Math.min(MAX_USER_BYTES, json.getInt("userBytes"))) : UNSET;
+    if (json.has("band")) {
+      String b = json.getString("band");
+      if (b.equals("uhf")) {
+        this.band = BAND_UHF;
+      } else if (b.equals("hf")) {
+        this.band = BAND_HF;
+      } else if (b.equals("both")) {
+        this.band = BAND_BOTH;
+      } else {
+        throw new JSONException(name + ": unknown band " + b);
+      }
+    } else {
+      this.band = UNSET;
+    }
+  }
+
+  static ScanProfile fromJson(JSONObject json) throws JSONException {
+    return new ScanProfile(json);
+  }
+
+  /**
+   * Whether this profile applies to a field with the given (lower case) hint
+   * and field name.  Package matching is done by {@link ScanProfiles}.
+   */
+  boolean matchesField(String hintText, String fieldName) {
+    if (hint == null) {
+      return true;
+    }
+    return (hintText != null && hintText.contains(hint))
+        || (fieldName != null && fieldName.contains(hint));
+  }
+
+  boolean acceptsEpc(byte[] epc) {
+    if (mEpcPrefix == null) {
+      return true;
+    }
+    if (epc == null || epc.length < mEpcPrefix.length) {
+      return false;
+    }
+    for (int i = 0; i < mEpcPrefix.length; i++) {
+      if (epc[i] != mEpcPrefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private byte[] parseHex(String hex) throws JSONException {
+    if ((hex.length() & 1) != 0) {
+      throw new JSONException(name + ": epcPrefix must have an even number of hex digits");
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int hi = Character.digit(hex.charAt(2 * i), 16);
+      int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (hi < 0 || lo < 0) {
+        throw new JSONException(name + ": epcPrefix is not hex: " + hex);
+      }
+      bytes[i] = (byte) ((hi << 4) | lo);
+    }
+    return bytes;
+  }
+}
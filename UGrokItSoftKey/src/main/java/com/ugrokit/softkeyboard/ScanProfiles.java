@@ -0,0 +1,95 @@
+package com.ugrokit.softkeyboard;
+
+import android.view.inputmethod.EditorInfo;
+import org.json.JSONArray;
+import org.json.JSONException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An immutable snapshot of all scan profiles, indexed by host package so that
+ * picking the profile for a new field is a map lookup.  Built once from the
+ * JSON array saved in preferences.
+ */
+final class ScanProfiles {
+
+  static final ScanProfiles EMPTY = new ScanProfiles("", new HashMap<String, ScanProfile[]>(), new ScanProfile[0], 0);
+
+  private final String mJson;
+  private final HashMap<String, ScanProfile[]> mByPackage;
+  private final ScanProfile[] mAnyPackage;
+  private final int mSize;
+
+  private ScanProfiles(String json, HashMap<String, ScanProfile[]> byPackage, ScanProfile[] anyPackage, int size) {
+    this.mJson = json;
+    this.mByPackage = byPackage;
+    this.mAnyPackage = anyPackage;
+    this.mSize = size;
+  }
+
+  /**
+   * Parses a JSON array of profiles (see {@link ScanProfile}).  Within a
+   * package, profiles are tried in the order given.
+   */
+  static ScanProfiles parse(String json) throws JSONException {
+    if (json == null || json.trim().length() == 0) {
+      return EMPTY;
+    }
+    JSONArray array = new JSONArray(json);
+    HashMap<String, ArrayList<ScanProfile>> byPackage = new HashMap<>();
+    ArrayList<ScanProfile> anyPackage = new ArrayList<>();
+    for (int i = 0; i < array.length(); i++) {
+      ScanProfile profile = ScanProfile.fromJson(array.getJSONObject(i));
+      if (profile.packageName == null) {
+        anyPackage.add(profile);
+      } else {
+        ArrayList<ScanProfile> list = byPackage.get(profile.packageName);
+        if (list == null) {
+          list = new ArrayList<>();
+          byPackage.put(profile.packageName, list);
+        }
+        list.add(profile);
+      }
+    }
+    HashMap<String, ScanProfile[]> index = new HashMap<>(byPackage.size() * 2);
+    for (String packageName : byPackage.keySet()) {
+      ArrayList<ScanProfile> list = byPackage.get(packageName);
+      index.put(packageName, list.toArray(new ScanProfile[list.size()]));
+    }
+    return new ScanProfiles(json, index, anyPackage.toArray(new ScanProfile[anyPackage.size()]), array.length());
+  }
+
+  String getJson() {
+    return mJson;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Returns the profile for a field: the first matching profile for its
+   * package, else the first matching profile for any package, else null.
+   */
+  ScanProfile resolve(EditorInfo info) {
+    if (mSize == 0 || info == null) {
+      return null;
+    }
+    String hintText = (info.hintText != null) ? info.hintText.toString().toLowerCase() : null;
+    String fieldName = (info.fieldName != null) ? info.fieldName.toLowerCase() : null;
+    ScanProfile[] profiles = (info.packageName != null) ? mByPackage.get(info.packageName) : null;
+    if (profiles != null) {
+      for (ScanProfile profile : profiles) {
+        if (profile.matchesField(hintText, fieldName)) {
+          return profile;
+        }
+      }
+    }
+    for (ScanProfile profile : mAnyPackage) {
+      if (profile.matchesField(hintText, fieldName)) {
+        return profile;
+      }
+    }
+    return null;
+  }
+}
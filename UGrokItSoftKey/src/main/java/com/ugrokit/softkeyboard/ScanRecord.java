@@ -0,0 +1,50 @@
+package com.ugrokit.softkeyboard;
+
+/**
+ * Everything known about one scan, handed to an {@link OutputTemplate}.
+ * A single record is refilled for every tag rather than allocated per read.
+ */
+final class ScanRecord {
+  /** EPC bank bytes, or null for scans that aren't RFID tags */
+  byte[] epc;
+  /** Text of a non-RFID scan (scanner wedge, barcode), or null */
+  String text;
+  /** For HF tags (whose "EPC" is their UID), the tag type's name; null for UHF */
+  String hfType;
+  /** TID bank bytes if they were read, or null */
+  byte[] tid;
+  /** User memory bytes if they were read, or null */
+  byte[] user;
+  boolean hasRssi;
+  double rssi;
+  /** Wall clock time of the read, in milliseconds */
+  long timestamp;
+
+  /**
+   * A copy to keep once this record is refilled.  The arrays are shared,
+   * as nothing changes them after a read.
+   */
+  ScanRecord copy() {
+    ScanRecord copy = new ScanRecord();
+    copy.epc = epc;
+    copy.text = text;
+    copy.hfType = hfType;
+    copy.tid = tid;
+    copy.user = user;
+    copy.hasRssi = hasRssi;
+    copy.rssi = rssi;
+    copy.timestamp = timestamp;
+    return copy;
+  }
+
+  void reset() {
+    epc = null;
+    text = null;
+    hfType = null;
+    tid = null;
+    user = null;
+    hasRssi = false;
+    rssi = 0;
+    timestamp = 0;
+  }
+}
@@ -0,0 +1,98 @@
+package com.ugrokit.softkeyboard;
+
+import android.os.Handler;
+
+/**
+ * Recognizes the key bursts that Bluetooth/USB HID barcode and RFID scanners
+ * send ("keyboard wedge" scanners) by their inter-key timing.
+ *
+ * Printable hard keys are held back for at most MAX_INTER_KEY_MSEC.  A run of
+ * at least MIN_SCAN_LENGTH characters that arrive faster than any person can
+ * type is reported as one scan; anything else is handed back to be typed
+ * normally.  A scanner's Enter or Tab suffix ends the scan and is swallowed.
+ */
+final class ScannerWedge {
+
+  interface Listener {
+    /** A complete scan, without its terminator. */
+    void onWedgeScan(String scan);
+
+    /**
+     * Keys that turned out not to be a scan.  terminator is the Enter/Tab that
+     * ended them, or 0.
+     */
+    void onWedgeTyped(String text, char terminator);
+  }
+
+  static final long MAX_INTER_KEY_MSEC = 25;
+  static final int MIN_SCAN_LENGTH = 4;
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final StringBuilder mBuffer = new StringBuilder(64);
+  private long mLastKeyTime;
+
+  private final Runnable mTimeout = new Runnable() {
+    @Override
+    public void run() {
+      flush((char) 0);
+    }
+  };
+
+  ScannerWedge(Handler handler, Listener listener) {
+    mHandler = handler;
+    mListener = listener;
+  }
+
+  /**
+   * Offers the character produced by a hard key press.  Returns true if the
+   * wedge took it, in which case the matching key up should be swallowed too.
+   */
+  boolean onKeyDown(int unicodeChar, long eventTime) {
+    if (mBuffer.length() > 0 && eventTime - mLastKeyTime > MAX_INTER_KEY_MSEC) {
+      flush((char) 0);
+    }
+    if (unicodeChar == '\n' || unicodeChar == '\r' || unicodeChar == '\t') {
+      if (mBuffer.length() == 0) {
+        return false;
+      }
+      flush(unicodeChar == '\t' ? '\t' : '\n');
+      return true;
+    }
+    mBuffer.append((char) unicodeChar);
+    mLastKeyTime = eventTime;
+    mHandler.removeCallbacks(mTimeout);
+    mHandler.postDelayed(mTimeout, MAX_INTER_KEY_MSEC);
+    return true;
+  }
+
+  /**
+   * Hands back anything buffered now, e.g. before a key the wedge didn't take
+   * goes to the editor, so it can't overtake the keys held back.
+   */
+  void flush() {
+    flush((char) 0);
+  }
+
+  /**
+   * Drops anything buffered, e.g. when the field goes away.
+   */
+  void cancel() {
+    mHandler.removeCallbacks(mTimeout);
+    mBuffer.setLength(0);
+  }
+
+  private void flush(char terminator) {
+    mHandler.removeCallbacks(mTimeout);
+    if (mBuffer.length() == 0) {
+      return;
+    }
+    String text = mBuffer.toString();
+    mBuffer.setLength(0);
+    if (text.length() >= MIN_SCAN_LENGTH) {
+      mListener.onWedgeScan(text);
+    } else {
+      mListener.onWedgeTyped(text, terminator);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.ugrokit.softkeyboard;
+
+import android.util.Log;
+import com.ugrokit.api.UgiFarsens;
+import com.ugrokit.api.UgiInventory;
+import com.ugrokit.api.UgiRfMicron;
+import com.ugrokit.api.UgiRfidConfiguration;
+import com.ugrokit.api.UgiTag;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads every sensor tag in the field during one inventory.
+ *
+ * RF Micron Magnus tags return their sensor code in the inventory round
+ * itself, so each read of each tag is a sample with no tag access at all.
+ * Farsens tags need a short sequence of accesses per tag; found tags are
+ * queued and exactly one sequence is in flight at a time, the next starting
+ * from the previous one's completion.
+ *
+ * Samples are averaged per EPC in primitive arrays indexed by the EPC's
+ * dense id.
+ */
+final class SensorSweep {
+
+  private static final String TAG = "SensorSweep";
+
+  static final int MAGNUS_TEMPERATURE = 0;
+  static final int MAGNUS_S2_MOISTURE = 1;
+  static final int MAGNUS_S3_MOISTURE = 2;
+  static final int FENIX_VORTEX_TEMPERATURE = 3;
+  static final int FENIX_VORTEX_PRESSURE = 4;
+
+  // Indexed by type
+  static final String[] TYPE_NAMES = {
+      "Magnus S3 temperature",
+      "Magnus S2 moisture",
+      "Magnus S3 moisture",
+      "Fenix-Vortex temperature",
+      "Fenix-Vortex pressure",
+  };
+  private static final String[] VALUE_FORMATS = { "%.1f", "%.0f", "%.0f", "%.1f", "%.1f" };
+
+  private final int mType;
+  private final EpcIndex mIndex = new EpcIndex();
+  private double[] mSums = new double[0];
+  private int[] mCounts = new int[0];
+  private int mReadCount;
+
+  // Farsens only
+  private UgiInventory mInventory;
+  private final ArrayDeque<UgiTag> mPending = new ArrayDeque<>();
+  private boolean mInFlight;
+  private final UgiFarsens.UgiFarsensStatusCallback mStatus = new UgiFarsens.UgiFarsensStatusCallback() {
+    @Override
+    public void run(String status) {
+      Log.i(TAG, status);
+    }
+  };
+
+  SensorSweep(int type) {
+    this.mType = type;
+  }
+
+  int getType() {
+    return mType;
+  }
+
+  /**
+   * Adjusts an inventory configuration for this sweep: Magnus sweeps read the
+   * sensor code with every inventory round, and want every read reported.
+   */
+  UgiRfidConfiguration configure(UgiRfidConfiguration config) {
+    switch (mType) {
+      case MAGNUS_TEMPERATURE:
+        config = UgiRfMicron.configToReadMagnusTemperature(config);
+        break;
+      case MAGNUS_S2_MOISTURE:
+        config = UgiRfMicron.configToReadMagnusSensorValue(config, UgiRfMicron.MagnusModels.Model402,
+                                                           UgiRfMicron.RssiLimitTypes.None, 0);
+        break;
+      case MAGNUS_S3_MOISTURE:
+        config = UgiRfMicron.configToReadMagnusSensorValue(config, UgiRfMicron.MagnusModels.Model403,
+                                                           UgiRfMicron.RssiLimitTypes.None, 0);
+        break;
+      default:
+        return config;
+    }
+    config.detailedPerReadData = true;
+    config.reportSubsequentFinds = true;
+    return config;
+  }
+
+  void start(UgiInventory inventory) {
+    mInventory = inventory;
+    startNext();
+  }
+
+  /**
+   * Drops queued Farsens tags; one already being read completes, and its
+   * value is kept.
+   */
+  void stop() {
+    mInventory = null;
+    mPending.clear();
+  }
+
+  /**
+   * Offers a tag from the inventory, with its per-read data if there is any.
+   */
+  void tagFound(UgiTag tag, byte[] epc, UgiInventory.DetailedPerReadData[] reads) {
+    if (isMagnus()) {
+      if (reads == null) {
+        return;
+      }
+      for (UgiInventory.DetailedPerReadData read : reads) {
+        double value = (mType == MAGNUS_TEMPERATURE)
+            ? UgiRfMicron.getMagnusTemperature(tag, read)
+            : UgiRfMicron.getMagnusSensorCode(read);
+        addSample(epc, value);
+      }
+    } else if (mIndex.find(epc) < 0) {
+      // Registered now, with no samples, so it is queued only once
+      idFor(epc);
+      mPending.add(tag);
+      if (!mInFlight) {
+        startNext();
+      }
+    }
+  }
+
+  /**
+   * Number of tags with at least one value.
+   */
+  int getReadCount() {
+    return mReadCount;
+  }
+
+  int getQueuedCount() {
+    return mPending.size() + (mInFlight ? 1 : 0);
+  }
+
+  /**
+   * Appends "EPC,value" for each tag read, in the order they were first
+   * found, with the separator between rows.
+   */
+  void appendRows(char separator, StringBuilder out) {
+    final int size = mIndex.size();
+    final int start = out.length();
+    for (int id = 0; id < size; id++) {
+      if (mCounts[id] == 0) {
+        continue;
+      }
+      if (out.length() > start) {
+        out.append(separator);
+      }
+      OutputTemplate.appendHex(mIndex.getEpc(id), out);
+      out.append(',');
+      out.append(String.format(Locale.US, VALUE_FORMATS[mType], mSums[id] / mCounts[id]));
+    }
+  }
+
+  void clear() {
+    mIndex.clear();
+    mPending.clear();
+    mReadCount = 0;
+  }
+
+  private boolean isMagnus() {
+    return mType <= MAGNUS_S3_MOISTURE;
+  }
+
+  private int idFor(byte[] epc) {
+    final int size = mIndex.size();
+    final int id = mIndex.add(epc);
+    if (id == size) {
+      if (id == mCounts.length) {
+        int capacity = mIndex.capacity();
+        mSums = Arrays.copyOf(mSums, capacity);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+      }
+      mSums[id] = 0;
+      mCounts[id] = 0;
+    }
+    return id;
+  }
+
+  private void addSample(byte[] epc, double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    int id = idFor(epc);
+    if (mCounts[id] == 0) {
+      mReadCount++;
+    }
+    mSums[id] += value;
+    mCounts[id]++;
+  }
+
+  private void startNext() {
+    if (mInventory == null || mInFlight) {
+      return;
+    }
+    final UgiTag tag = mPending.poll();
+    if (tag == null) {
+      return;
+    }
+    final byte[] epc = tag.getEpc().toBytes();
+    mInFlight = true;
+    if (mType == FENIX_VORTEX_TEMPERATURE) {
+      UgiFarsens.readFenixVortexTemperature(tag, mStatus,
+          new UgiFarsens.UgiFarsensReadFenixVortexTemperatureCompletion() {
+        @Override
+        public void run(UgiInventory.TagAccessReturnValues result, float value) {
+          farsensDone(epc, result, value);
+        }
+      });
+    } else {
+      UgiFarsens.readFenixVortexPressure(tag, mStatus,
+          new UgiFarsens.UgiFarsensReadFenixVortexPressureCompletion() {
+        @Override
+        public void run(UgiInventory.TagAccessReturnValues result, float value) {
+          farsensDone(epc, result, value);
+        }
+      });
+    }
+  }
+
+  private void farsensDone(byte[] epc, UgiInventory.TagAccessReturnValues result, float value) {
+    mInFlight = false;
+    if (result == UgiInventory.TagAccessReturnValues.OK) {
+      addSample(epc, value);
+    } else {
+      Log.w(TAG, "Sensor read failed: " + result);
+    }
+    startNext();
+  }
+}
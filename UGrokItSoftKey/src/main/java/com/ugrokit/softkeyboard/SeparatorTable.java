@@ -0,0 +1,27 @@
+package com.ugrokit.softkeyboard;
+
+import java.util.BitSet;
+
+/**
+ * Constant time lookup of word separator characters.  Built once from a
+ * string of separators (normally R.string.word_separators) and then consulted
+ * on every key press, so the lookup neither allocates nor scans the string.
+ */
+final class SeparatorTable {
+
+  private final BitSet mSeparators = new BitSet(Character.MAX_VALUE + 1);
+
+  SeparatorTable(CharSequence separators) {
+    for (int i = 0; i < separators.length(); i++) {
+      mSeparators.set(separators.charAt(i));
+    }
+  }
+
+  /**
+   * Key codes outside the BMP, and the negative codes used for special keys,
+   * are never separators.
+   */
+  boolean isSeparator(int code) {
+    return code >= 0 && code <= Character.MAX_VALUE && mSeparators.get(code);
+  }
+}
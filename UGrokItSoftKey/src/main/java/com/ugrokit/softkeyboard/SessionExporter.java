@@ -0,0 +1,330 @@
+package com.ugrokit.softkeyboard;
+
+import android.os.Handler;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a journaled session to files on a background executor: a CSV, and
+ * a compact columnar binary file.  Both are written in one pass over the
+ * journal with fixed size buffers, so memory use doesn't grow with the
+ * session.
+ *
+ * The binary file is "GRKS", a version byte, then blocks of up to BLOCK_ROWS
+ * scans until a block with 0 rows.  A block is its row count followed by
+ * six columns, each deflated separately and written as its compressed
+ * length and bytes:
+ * <ol>
+ *   <li>EPC bytes 0-7, as longs</li>
+ *   <li>EPC bytes 8-15, as longs (zero padded)</li>
+ *   <li>lengths, as shorts: the EPC's length, or 0x8000 | length for a text
+ *       (barcode, wedge) scan</li>
+ *   <li>the remainder: EPC bytes past 16, and text as UTF-8</li>
+ *   <li>time deltas from the previous scan, as zigzag varints (the first
+ *       from 0)</li>
+ *   <li>RSSI in hundredths of a dB, as shorts; Short.MIN_VALUE for none</li>
+ * </ol>
+ * All numbers are big endian.
+ */
+final class SessionExporter {
+
+  interface Callback {
+    /** Called on the handler's thread */
+    void onExported(File csv, File binary, int rows);
+    void onExportFailed(String message);
+  }
+
+  static final int BLOCK_ROWS = 16384;
+  private static final int VERSION = 1;
+  private static final int TEXT_FLAG = 0x8000;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+  private SessionExporter() {
+  }
+
+  /**
+   * Runs a task on the export executor, which also does the journal reads
+   * that shouldn't happen on the main thread.
+   */
+  static void execute(Runnable task) {
+    sExecutor.execute(task);
+  }
+
+  /**
+   * Exports a session to baseName.csv and baseName.scans in a directory.
+   */
+  static void export(final ScanJournal journal, final int sessionId, final File dir, final String baseName,
+                     final Handler handler, final Callback callback) {
+    sExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final File csv = new File(dir, baseName + ".csv");
+        final File binary = new File(dir, baseName + ".scans");
+        int rows = 0;
+        String error = null;
+        try {
+          journal.sync();
+          rows = write(journal, sessionId, csv, binary);
+        } catch (IOException e) {
+          error = e.getMessage();
+          csv.delete();
+          binary.delete();
+        }
+        final int exported = rows;
+        final String message = error;
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (message == null) {
+              callback.onExported(csv, binary, exported);
+            } else {
+              callback.onExportFailed(message);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Writes both files on the calling thread; returns the number of scans.
+   */
+  static int write(ScanJournal journal, int sessionId, File csvFile, File binaryFile) throws IOException {
+    if (!csvFile.getParentFile().isDirectory() && !csvFile.getParentFile().mkdirs()) {
+      throw new IOException("Can't create " + csvFile.getParent());
+    }
+    ScanJournal.Reader reader = journal.openSession(sessionId);
+    Writer csv = null;
+    ColumnWriter columns = null;
+    try {
+      csv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), UTF8), BUFFER_BYTES);
+      columns = new ColumnWriter(binaryFile);
+      csv.write("time,epc,text,rssi\n");
+      ScanRecord record = new ScanRecord();
+      StringBuilder row = new StringBuilder();
+      int rows = 0;
+      while (reader.next(record)) {
+        row.setLength(0);
+        appendCsvRow(record, row);
+        csv.append(row);
+        columns.add(record);
+        rows++;
+      }
+      columns.finish();
+      return rows;
+    } finally {
+      reader.close();
+      if (csv != null) {
+        csv.close();
+      }
+      if (columns != null) {
+        columns.close();
+      }
+    }
+  }
+
+  private static void appendCsvRow(ScanRecord record, StringBuilder row) {
+    row.append(record.timestamp).append(',');
+    if (record.epc != null) {
+      OutputTemplate.appendHex(record.epc, row);
+    }
+    row.append(',');
+    if (record.text != null) {
+      row.append('"');
+      for (int i = 0; i < record.text.length(); i++) {
+        char c = record.text.charAt(i);
+        if (c == '"') {
+          row.append('"');
+        }
+        row.append(c);
+      }
+      row.append('"');
+    }
+    row.append(',');
+    if (record.hasRssi) {
+      row.append(Math.round(record.rssi * 10) / 10.0);
+    }
+    row.append('\n');
+  }
+
+  /**
+   * Collects one block of scans column by column, then deflates and writes
+   * each column.
+   */
+  private static final class ColumnWriter {
+    private final DataOutputStream mOut;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] mDeflated = new byte[BUFFER_BYTES];
+
+    private final long[] mEpcHigh = new long[BLOCK_ROWS];
+    private final long[] mEpcLow = new long[BLOCK_ROWS];
+    private final short[] mLengths = new short[BLOCK_ROWS];
+    private final short[] mRssi = new short[BLOCK_ROWS];
+    private final GrowableBytes mRemainder = new GrowableBytes();
+    private final GrowableBytes mDeltas = new GrowableBytes();
+    private final GrowableBytes mColumn = new GrowableBytes();
+    private final GrowableBytes mCompressed = new GrowableBytes();
+    private int mRows;
+    private long mLastTime;
+
+    ColumnWriter(File file) throws IOException {
+      mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES));
+      mOut.writeBytes("GRKS");
+      mOut.writeByte(VERSION);
+    }
+
+    void add(ScanRecord record) throws IOException {
+      final int row = mRows;
+      if (record.epc != null) {
+        byte[] epc = record.epc;
+        mEpcHigh[row] = getLong(epc, 0);
+        mEpcLow[row] = getLong(epc, 8);
+        mLengths[row] = (short) epc.length;
+        if (epc.length > 16) {
+          mRemainder.write(epc, 16, epc.length - 16);
+        }
+      } else {
+        byte[] text = (record.text != null) ? record.text.getBytes(UTF8) : new byte[0];
+        int length = Math.min(text.length, TEXT_FLAG - 1);
+        mEpcHigh[row] = 0;
+        mEpcLow[row] = 0;
+        mLengths[row] = (short) (TEXT_FLAG | length);
+        mRemainder.write(text, 0, length);
+      }
+      long delta = record.timestamp - mLastTime;
+      mLastTime = record.timestamp;
+      mDeltas.writeVarint((delta << 1) ^ (delta >> 63));
+      mRssi[row] = record.hasRssi
+          ? (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, Math.round(record.rssi * 100)))
+          : Short.MIN_VALUE;
+      if (++mRows == BLOCK_ROWS) {
+        writeBlock();
+      }
+    }
+
+    void finish() throws IOException {
+      if (mRows > 0) {
+        writeBlock();
+      }
+      mOut.writeInt(0);
+    }
+
+    void close() throws IOException {
+      mDeflater.end();
+      mOut.close();
+    }
+
+    private void writeBlock() throws IOException {
+      mOut.writeInt(mRows);
+      mColumn.reset();
+      for (int i = 0; i < mRows; i++) {
+        mColumn.writeLong(mEpcHigh[i]);
+      }
+      writeColumn(mColumn);
+      mColumn.reset();
+      for (int i = 0; i < mRows; i++) {
+        mColumn.writeLong(mEpcLow[i]);
+      }
+      writeColumn(mColumn);
+      mColumn.reset();
+      for (int i = 0; i < mRows; i++) {
+        mColumn.writeShort(mLengths[i]);
+      }
+      writeColumn(mColumn);
+      writeColumn(mRemainder);
+      writeColumn(mDeltas);
+      mColumn.reset();
+      for (int i = 0; i < mRows; i++) {
+        mColumn.writeShort(mRssi[i]);
+      }
+      writeColumn(mColumn);
+      mRemainder.reset();
+      mDeltas.reset();
+      mRows = 0;
+    }
+
+    private void writeColumn(GrowableBytes column) throws IOException {
+      mDeflater.reset();
+      mDeflater.setInput(column.mBytes, 0, column.mLength);
+      mDeflater.finish();
+      // The compressed length goes first, so the whole column is deflated
+      // before any of it is written
+      mCompressed.reset();
+      while (!mDeflater.finished()) {
+        int n = mDeflater.deflate(mDeflated);
+        mCompressed.write(mDeflated, 0, n);
+      }
+      mOut.writeInt(mCompressed.mLength);
+      mOut.write(mCompressed.mBytes, 0, mCompressed.mLength);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        int index = offset + i;
+        value = (value << 8) | (index < bytes.length ? bytes[index] & 0xff : 0);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * A byte array that grows as needed and is reused between blocks.
+   */
+  private static final class GrowableBytes {
+    byte[] mBytes = new byte[BUFFER_BYTES];
+    int mLength;
+
+    void reset() {
+      mLength = 0;
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+      ensure(length);
+      System.arraycopy(bytes, offset, mBytes, mLength, length);
+      mLength += length;
+    }
+
+    void writeLong(long value) {
+      ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        mBytes[mLength++] = (byte) (value >>> shift);
+      }
+    }
+
+    void writeShort(short value) {
+      ensure(2);
+      mBytes[mLength++] = (byte) (value >> 8);
+      mBytes[mLength++] = (byte) value;
+    }
+
+    void writeVarint(long value) {
+      ensure(10);
+      while ((value & ~0x7fL) != 0) {
+        mBytes[mLength++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      mBytes[mLength++] = (byte) value;
+    }
+
+    private void ensure(int more) {
+      if (mLength + more > mBytes.length) {
+        mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + more));
+      }
+    }
+  }
+}
@@ -19,16 +19,21 @@ package com.ugrokit.softkeyboard;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.ColorInt;
 import android.text.InputType;
+import android.text.format.DateFormat;
 import android.text.method.MetaKeyKeyListener;
 import android.util.Log;
 import android.view.*;
@@ -37,7 +42,12 @@ import android.widget.*;
 import com.ugrokit.api.*;
 import com.ugrokit.api.Ugi.ConnectionStateListener;
 
+import org.json.JSONException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -52,7 +62,13 @@ implements KeyboardView.OnKeyboardActionListener,
            ConnectionStateListener,
            UgiInventoryDelegate,
            UgiInventoryDelegate.InventoryTagFoundListener,
-           UgiInventoryDelegate.InventoryDidStopListener
+           UgiInventoryDelegate.InventoryDidStopListener,
+           UgiInventoryDelegate.InventoryTagSubsequentFindsListener,
+           UgiInventoryDelegate.InventoryHistoryIntervalListener,
+           UgiInventoryDelegate.InventoryTagChangedListener,
+           StrongestTagPicker.Listener,
+           BandScheduler.Listener,
+           ScannerWedge.Listener
 {
 
   /**
@@ -65,16 +81,43 @@ implements KeyboardView.OnKeyboardActionListener,
    */
   static final boolean PROCESS_HARD_KEYS = true;
 
-  static final String PREFERENCES_KEY = "com.ugrokit.softkeyboard";
-  static final String VOLUME_PREFERENCE_KEY = "volumePercentage";
-  static final String POWER_PREFERENCE_KEY = "powerPercentage";
-  static final String FIND_ONE_PREFERENCE_KEY = "findOneTagOnly";
-  static final String STAY_CONNECTED_PREFERENCE_KEY = "stayConnectedAlways";
-  static final String ASCII_PREFERENCE_KEY = "epcAscii";
-  static final String ALWAYS_ADD_COMMA_AT_START_PREFERENCE_KEY = "alwaysAddCommaAtStart";
+
+  /** Output templates offered in settings, besides pasting one from the clipboard */
+  private static final String[] OUTPUT_TEMPLATE_PRESETS = {
+      OutputTemplate.DEFAULT_PATTERN,
+      "{epc}{enter}",
+      "{epc}{tab}",
+      "{gtin}{tab}{serial}{enter}",
+      "{epc},{rssi},{time}{enter}",
+      "{epc},{tid}{enter}",
+      "{band},{hftype},{epc}{enter}",
+  };
+
+  // Indexed by ScanProfile.BAND_...
+  private static final String[] BAND_LABELS = { "UHF", "HF", "UHF + HF" };
+
+  // Indexed by TagBroadcaster.BROADCAST_...
+  private static final String[] TAG_BROADCAST_LABELS = { "Off", "Also type tags", "Instead of typing" };
+
+  /** User memory sizes the settings button steps through; 0 is off */
+  private static final int[] USER_BYTES_PRESETS = { 0, 4, 8, 16, 32, ScanProfile.MAX_USER_BYTES };
+  /** Used when the output template types {user} but no size is set */
+  private static final int DEFAULT_USER_BYTES = 16;
+  /** Class, mask designer and model, up to a 96 bit TID with its serial */
+  private static final int MIN_TID_BYTES = 4;
+  private static final int MAX_TID_BYTES = 12;
+  private static final int MIN_USER_BYTES = 4;
 
   private static final String TAG = "SoftKeyboard";
 
+  /**
+   * Keys committed closer together than this are treated as a burst and
+   * wrapped in one batch edit.
+   */
+  private static final long BURST_INTERVAL_MSEC = 50;
+
+  private static final int KEYCODE_TABLE_SIZE = 512;
+
   private InputMethodManager mInputMethodManager;
 
   private LatinKeyboardView mInputView;
@@ -90,25 +133,95 @@ implements KeyboardView.OnKeyboardActionListener,
   private long mLastShiftTime;
   private long mMetaState;
 
+  private final CapsModeTracker mCapsTracker = new CapsModeTracker();
+  private final Handler mHandler = new Handler();
+  private InputConnection mBurstInputConnection;
+  private long mLastKeyCommitTime;
+  private final Runnable mEndBurstBatchEdit = new Runnable() {
+    @Override
+    public void run() {
+      endBurstBatchEdit();
+    }
+  };
+
   private LatinKeyboard mSymbolsKeyboard;
   private LatinKeyboard mSymbolsShiftedKeyboard;
   private LatinKeyboard mQwertyKeyboard;
 
   private LatinKeyboard mCurKeyboard;
 
-  private String mWordSeparators;
+  private SeparatorTable mWordSeparators;
 
   private UgiActivity mUgiActivity;
   private boolean mFirstEpc;
+  // Tags scanned into the current field, shown in the candidate strip
+  private final ArrayList<String> mScanResults = new ArrayList<>();
+  // The scan behind each scan result, kept for export
+  private final ArrayList<ScanRecord> mScanRecords = new ArrayList<>();
+  // Dedupe key of each scan result
+  private final ArrayList<String> mScanKeys = new ArrayList<>();
+  // Whether each scan result was typed, or only collected (bulk output)
+  private final ArrayList<Boolean> mScanTyped = new ArrayList<>();
+  // Values typed since the field or the current inventory started
+  private final HashSet<String> mScanDedupe = new HashSet<>();
+  private ScannerWedge mScannerWedge;
+  // Hard keys whose down event went to the scanner wedge
+  private final boolean[] mWedgeKeysDown = new boolean[KEYCODE_TABLE_SIZE];
   private boolean mStoppingInventory = false;
   private AlertDialog mPowerVolumeDialog = null;
 
-  private int mPowerValue = 100;
-  private int mVolumeValue = 100;
-  private boolean mFindOne = false;
-  private boolean mStayConnected = false;
-  private boolean mAscii = false;
-  private boolean mAlwaysAddCommaAtStart = false;
+  private KeyboardSettings mSettings;
+  private StrongestTagPicker mStrongestPicker;
+  private BandScheduler mBandScheduler;
+  // Publishes tag reads to other apps, when turned on in settings
+  private TagBroadcaster mTagBroadcaster;
+  // Whether the running inventory is HF rather than UHF
+  private boolean mScanHf;
+  // Stopping one band's inventory to start the other's
+  private boolean mSwitchingBand;
+  // A barcode scan is waiting for a barcode
+  private boolean mBarcodeScanning;
+
+  // Tags in the reader's field during a (not find-one) inventory
+  private final TagPresenceTracker mPresence = new TagPresenceTracker();
+  private boolean mTrackingPresence;
+
+  // Reconciliation mode: the expected list found tags are checked against
+  private ExpectedEpcList mReconcile;
+
+  // Encoding mode: new EPCs programmed onto tags as they are found
+  private EncodingQueue mEncoding;
+
+  // The field scans are journaled against; its journal session is started
+  // with its first scan
+  private String mJournalPackage;
+  private int mJournalFieldId;
+  private boolean mJournalSessionStarted;
+  private long mJournalSessionTime;
+  // Time spent typing scans, for the bulk export's estimate of time saved
+  private long mCommitNanos;
+  private int mCommitCount;
+
+  // Sensor sweep mode: sensor tag values are collected rather than EPCs typed
+  private SensorSweep mSensorSweep;
+
+  // Locate mode: the EPC being searched for, and its tag once heard
+  private UgiEpc mLocateEpc;
+  private UgiTag mLocateTag;
+  // Most reads seen in one history interval, which maps to a full meter
+  private int mLocatePeak;
+  // Renders the EPC alone: what the candidate strip shows and dedupe compares
+  private final OutputTemplate mDisplayTemplate = OutputTemplate.compile(null);
+  private final ScanRecord mScanRecord = new ScanRecord();
+  // epcToDisplayString()'s own, so it can't clobber a scan being committed
+  private final ScanRecord mDisplayRecord = new ScanRecord();
+  private final StringBuilder mDisplayBuilder = new StringBuilder();
+  // Profile for the current field, or null to use the settings above as is
+  private ScanProfile mProfile;
+  private final StringBuilder mScanBuilder = new StringBuilder();
+  private final StringBuilder mOutputBuilder = new StringBuilder();
+  // Scans made with no field to type them into, until they are pasted
+  private final OfflineScans mOfflineScans = new OfflineScans();
 
   private static Ugi getUgi() {
     return SoftKeyboardApp.getUgi();
@@ -156,6 +269,18 @@ implements KeyboardView.OnKeyboardActionListener,
   @SuppressLint("StaticFieldLeak")
   private static SoftKeyboardUiDelegate sUiDelegate;
 
+  private void applyStayConnected() {
+    getUgi().setDelayBeforeClosingConnectionOnInactivityMsec(mSettings.getStayConnected() ? 0 : 100);
+  }
+
+  private void applyTagStream() {
+    if (!SoftKeyboardApp.setTagStreamEnabled(mSettings.getTagStream(), mSettings.getTagStreamToken())
+        && mSettings.getTagStream()) {
+      UgiUiUtil.showToast(mUgiActivity, "Tag stream",
+                          "Couldn't listen on port " + TagStreamServer.DEFAULT_PORT);
+    }
+  }
+
   /**
    * Main initialization of the input method component.  Be sure to call
    * to super class.
@@ -163,7 +288,27 @@ implements KeyboardView.OnKeyboardActionListener,
   @Override public void onCreate() {
     super.onCreate();
     mInputMethodManager = (InputMethodManager)getSystemService(INPUT_METHOD_SERVICE);
-    mWordSeparators = getResources().getString(R.string.word_separators);
+    mWordSeparators = new SeparatorTable(getResources().getString(R.string.word_separators));
+    mScannerWedge = new ScannerWedge(mHandler, this);
+    mSettings = new KeyboardSettings(this, mHandler);
+    mStrongestPicker = new StrongestTagPicker(mHandler, this);
+    mBandScheduler = new BandScheduler(mHandler, this);
+    mTagBroadcaster = new TagBroadcaster(this, mHandler);
+    mSettings.addListener(new KeyboardSettings.Listener() {
+      @Override
+      public void onSettingChanged(int setting) {
+        if (setting == KeyboardSettings.STAY_CONNECTED) {
+          applyStayConnected();
+        } else if (setting == KeyboardSettings.TAG_BROADCAST
+                   && mSettings.getTagBroadcast() == TagBroadcaster.BROADCAST_OFF) {
+          mTagBroadcaster.clear();
+        } else if (setting == KeyboardSettings.TAG_STREAM) {
+          applyTagStream();
+        } else if (setting == KeyboardSettings.SCAN_PROFILES) {
+          resolveProfile(getCurrentInputEditorInfo());
+        }
+      }
+    });
 
     sUiDelegate = new SoftKeyboardUiDelegate();
     UgiUiUtil.setUiDelegate(sUiDelegate);
@@ -185,6 +330,8 @@ implements KeyboardView.OnKeyboardActionListener,
     SoftKeyboardApp.getUgi().openConnection();
     SoftKeyboardApp.getUgi().activityOnCreate(this.mUgiActivity, false, false);
     SoftKeyboardApp.getUgi().addConnectionStateListener(this);
+    applyStayConnected();
+    applyTagStream();
 
     Log.i(TAG, "onCreate called");
   }
@@ -192,6 +339,8 @@ implements KeyboardView.OnKeyboardActionListener,
   @Override
   public void onDestroy() {
     super.onDestroy();
+    mSettings.flush();
+    SoftKeyboardApp.setTagStreamEnabled(false, null);
     getUgi().activityOnDestroy(this.mUgiActivity);
     SoftKeyboardApp.getUgi().closeConnection();
     Log.i(TAG, "onDestroy called");
@@ -218,34 +367,6 @@ implements KeyboardView.OnKeyboardActionListener,
 
   }
 
-  private void getSavedPreferences () {
-    SharedPreferences preferences = getSharedPreferences(PREFERENCES_KEY, MODE_PRIVATE);
-    if (preferences == null) {
-      return;
-    }
-
-    this.mVolumeValue = preferences.getInt(VOLUME_PREFERENCE_KEY, 100);
-    this.mPowerValue = preferences.getInt(POWER_PREFERENCE_KEY, 100);
-    this.mFindOne = preferences.getBoolean(FIND_ONE_PREFERENCE_KEY, false);
-    this.mStayConnected = preferences.getBoolean(STAY_CONNECTED_PREFERENCE_KEY, true);
-    this.mAscii = preferences.getBoolean(ASCII_PREFERENCE_KEY, true);
-    this.mAlwaysAddCommaAtStart = preferences.getBoolean(ALWAYS_ADD_COMMA_AT_START_PREFERENCE_KEY, false);
-    getUgi().setDelayBeforeClosingConnectionOnInactivityMsec(this.mStayConnected ? 0 : 100);
-  }
-
-  private void savePreferences () {
-    SharedPreferences preferences = getSharedPreferences(PREFERENCES_KEY, MODE_PRIVATE);
-    SharedPreferences.Editor editor = preferences.edit();
-
-    editor.putInt(VOLUME_PREFERENCE_KEY, this.mVolumeValue);
-    editor.putInt(POWER_PREFERENCE_KEY, this.mPowerValue);
-    editor.putBoolean(FIND_ONE_PREFERENCE_KEY, this.mFindOne);
-    editor.putBoolean(STAY_CONNECTED_PREFERENCE_KEY, this.mStayConnected);
-    editor.putBoolean(ASCII_PREFERENCE_KEY, this.mAscii);
-    editor.putBoolean(ALWAYS_ADD_COMMA_AT_START_PREFERENCE_KEY, this.mAlwaysAddCommaAtStart);
-    editor.apply();
-  }
-
   /**
    * Called by the framework when your view for creating input needs to
    * be generated.  This will be called the first time your input method
@@ -259,7 +380,6 @@ implements KeyboardView.OnKeyboardActionListener,
     mInputView.setPreviewEnabled(false);
     sUiDelegate.setApplicationContextAndView(this, mInputView);
 
-    getSavedPreferences();
     mPowerVolumeDialog = buildPowerVolumeDialog();
 
     Log.i(TAG, "onCreateInputView called");
@@ -274,6 +394,9 @@ implements KeyboardView.OnKeyboardActionListener,
   @Override public View onCreateCandidatesView() {
     mCandidateView = new CandidateView(this);
     mCandidateView.setService(this);
+    if (!mScanResults.isEmpty()) {
+      mCandidateView.showScanResults(mScanResults);
+    }
     return mCandidateView;
   }
 
@@ -290,12 +413,23 @@ implements KeyboardView.OnKeyboardActionListener,
 
     // Reset our state.  We want to do this even if restarting, because
     // the underlying state of the text editor could have changed in any way.
+    endBurstBatchEdit();
     mComposing.setLength(0);
     updateCandidates();
+    mCapsTracker.reset(attribute.initialSelEnd);
 
     if (!restarting) {
       // Clear shift states.
       mMetaState = 0;
+      // A new field starts a new scan session, unless scans are being
+      // collected for bulk output
+      if (!mSettings.getBulkOutput() || !mScanTyped.contains(false)) {
+        clearScanResults();
+      }
+      mJournalPackage = attribute.packageName;
+      mJournalFieldId = attribute.fieldId;
+      mJournalSessionStarted = false;
+      resolveProfile(attribute);
     }
 
     mPredictionOn = false;
@@ -378,7 +512,7 @@ implements KeyboardView.OnKeyboardActionListener,
     super.onFinishInputView(finishingInput);
     sUiDelegate.setApplicationContextAndView(null, null);
     dismissPowerVolumeUi();
-    savePreferences();
+    mSettings.flush();
     stopInventory("onFinishInputView", null);
   }
 
@@ -388,6 +522,8 @@ implements KeyboardView.OnKeyboardActionListener,
    */
   @Override public void onFinishInput() {
     super.onFinishInput();
+    endBurstBatchEdit();
+    mScannerWedge.cancel();
 
     // Clear current composing text and candidates.
     mComposing.setLength(0);
@@ -426,6 +562,17 @@ implements KeyboardView.OnKeyboardActionListener,
 
   private void stopInventory(final String source,
                              final UgiInventory.StopInventoryCompletion afterInventoryStopped) {
+    mStrongestPicker.cancel();
+    mBandScheduler.stop();
+    mSwitchingBand = false;
+    endLocate();
+    mTrackingPresence = false;
+    if (mEncoding != null) {
+      mEncoding.stop();
+    }
+    if (mSensorSweep != null) {
+      mSensorSweep.stop();
+    }
     if (this.mStoppingInventory) {
       Log.i(TAG, "stopInventory called by " + source + " -- mStoppingInventory is TRUE");
     } else {
@@ -460,7 +607,14 @@ implements KeyboardView.OnKeyboardActionListener,
 
     sUiDelegate.setApplicationContextAndView(this, mInputView);
 
+    if (!mScanResults.isEmpty()) {
+      setCandidatesViewShown(true);
+    }
     updateGrokkerIcon();
+    if (!restarting && mOfflineScans.size() > 0 && !isOffline()) {
+      UgiUiUtil.showToast(mUgiActivity, "Offline scans",
+                          mOfflineScans.size() + " scans waiting; long press the Grok key to paste them");
+    }
 
     Log.i(TAG, String.format("onStartInputView %sfinished.", restarting ? "(RESTARTING) " : ""));
   }
@@ -486,7 +640,7 @@ implements KeyboardView.OnKeyboardActionListener,
           iconId = R.drawable.icon_connecting;
           break;
         case CONNECTED:
-          if (ugi.getActiveInventory() != null) {
+          if (ugi.getActiveInventory() != null || this.mBarcodeScanning) {
             iconId = R.drawable.icon_scanning;
           } else {
             iconId = R.drawable.icon_connected;
@@ -520,6 +674,7 @@ implements KeyboardView.OnKeyboardActionListener,
                                           int candidatesStart, int candidatesEnd) {
     super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
                             candidatesStart, candidatesEnd);
+    mCapsTracker.onUpdateSelection(newSelStart, newSelEnd);
 
     // If the current selection in the text view changes, we should
     // clear whatever candidate text we have.
@@ -590,6 +745,53 @@ implements KeyboardView.OnKeyboardActionListener,
     return true;
   }
 
+  /**
+   * Offers a hard key to the scanner wedge, which holds back characters that
+   * might be part of a scanner burst.  Only used in wedge mode.
+   */
+  private boolean translateWedgeKeyDown(int keyCode, KeyEvent event) {
+    if (event.getRepeatCount() > 0 || keyCode < 0 || keyCode >= KEYCODE_TABLE_SIZE) {
+      return false;
+    }
+    // Scanners send Shift, but never Ctrl, Alt or Meta
+    if ((event.getMetaState() & (KeyEvent.META_CTRL_ON | KeyEvent.META_ALT_ON | KeyEvent.META_META_ON)) != 0) {
+      return false;
+    }
+    int c = event.getUnicodeChar(event.getMetaState());
+    if (c == 0 || (c & KeyCharacterMap.COMBINING_ACCENT) != 0) {
+      return false;
+    }
+    if (mScannerWedge.onKeyDown(c, event.getEventTime())) {
+      mWedgeKeysDown[keyCode] = true;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void onWedgeScan(String scan) {
+    mScanRecord.reset();
+    mScanRecord.text = scan;
+    mScanRecord.timestamp = System.currentTimeMillis();
+    journalScan(mScanRecord);
+    commitScan(mScanRecord, true);
+  }
+
+  @Override
+  public void onWedgeTyped(String text, char terminator) {
+    InputConnection ic = getCurrentInputConnection();
+    if (ic == null) return;
+    // Typed as the hard keys would have been, composing and all
+    for (int i = 0; i < text.length(); i++) {
+      onKey(text.charAt(i), null);
+    }
+    if (terminator != 0) {
+      commitTyped(ic);
+      keyDownUp(terminator == '\n' ? KeyEvent.KEYCODE_ENTER : KeyEvent.KEYCODE_TAB);
+      mCapsTracker.invalidate();
+    }
+  }
+
   /**
    * Use this to monitor key events being delivered to the application.
    * We get first crack at them, and can either resume them or let them
@@ -601,6 +803,16 @@ implements KeyboardView.OnKeyboardActionListener,
 //        keyDownUp(KeyEvent.KEYCODE_ENTER);
 //        return false;
   @Override public boolean onKeyDown(int keyCode, KeyEvent event) {
+      if (PROCESS_HARD_KEYS && mSettings.getScannerWedge()) {
+          if (translateWedgeKeyDown(keyCode, event)) {
+              return true;
+          }
+          // Anything else (Del, arrows, shortcuts) mustn't overtake the keys
+          // the wedge is holding back; Shift may be mid-scan
+          if (!KeyEvent.isModifierKey(keyCode)) {
+              mScannerWedge.flush();
+          }
+      }
       switch (keyCode) {
           case KeyEvent.KEYCODE_BACK:
               // The InputMethodService already takes care of the back
@@ -646,6 +858,7 @@ implements KeyboardView.OnKeyboardActionListener,
                           // First, tell the editor that it is no longer in the
                           // shift state, since we are consuming this.
                           ic.clearMetaKeyStates(KeyEvent.META_ALT_ON);
+                          mCapsTracker.invalidate();
                           keyDownUp(KeyEvent.KEYCODE_A);
                           keyDownUp(KeyEvent.KEYCODE_N);
                           keyDownUp(KeyEvent.KEYCODE_D);
@@ -676,6 +889,10 @@ implements KeyboardView.OnKeyboardActionListener,
     // keyboard, we need to process the up events to update the meta key
     // state we are tracking.
     if (PROCESS_HARD_KEYS) {
+      if (keyCode >= 0 && keyCode < KEYCODE_TABLE_SIZE && mWedgeKeysDown[keyCode]) {
+        mWedgeKeysDown[keyCode] = false;
+        return true;
+      }
       if (mPredictionOn) {
         mMetaState = MetaKeyKeyListener.handleKeyUp(mMetaState,
                                                     keyCode, event);
@@ -691,6 +908,7 @@ implements KeyboardView.OnKeyboardActionListener,
   private void commitTyped(InputConnection inputConnection) {
     if (mComposing.length() > 0) {
       inputConnection.commitText(mComposing, mComposing.length());
+      mCapsTracker.onTextCommitted(mComposing);
       mComposing.setLength(0);
       updateCandidates();
     }
@@ -708,7 +926,7 @@ implements KeyboardView.OnKeyboardActionListener,
       int caps = 0;
       EditorInfo ei = getCurrentInputEditorInfo();
       if (ei != null && ei.inputType != InputType.TYPE_NULL) {
-        caps = ic.getCursorCapsMode(attr.inputType);
+        caps = mCapsTracker.getCursorCapsMode(ic, attr.inputType);
       }
       mInputView.setShifted(mCapsLock || caps != 0);
     }
@@ -738,18 +956,57 @@ implements KeyboardView.OnKeyboardActionListener,
     switch (keyCode) {
       case '\n':
         keyDownUp(KeyEvent.KEYCODE_ENTER);
-
+        // The editor decides what enter does, so re-read its text next time.
+        mCapsTracker.invalidate();
         break;
       default:
         if (keyCode >= '0' && keyCode <= '9') {
           keyDownUp(keyCode - '0' + KeyEvent.KEYCODE_0);
         } else {
-          getCurrentInputConnection().commitText(String.valueOf((char) keyCode), 1);
+          InputConnection ic = getCurrentInputConnection();
+          beginBurstBatchEdit(ic);
+          ic.commitText(String.valueOf((char) keyCode), 1);
         }
+        mCapsTracker.onTextCommitted((char) keyCode);
         break;
     }
   }
 
+  /**
+   * Keys that arrive in quick succession are wrapped in a single batch edit, so
+   * the editor redraws and reports its selection once for the whole burst.  An
+   * isolated key costs no extra calls.  The batch is closed as soon as the key
+   * events already queued have been handled.
+   */
+  private void beginBurstBatchEdit(InputConnection ic) {
+    long now = SystemClock.uptimeMillis();
+    if (mBurstInputConnection == null && now - mLastKeyCommitTime < BURST_INTERVAL_MSEC) {
+      ic.beginBatchEdit();
+      mBurstInputConnection = ic;
+      mHandler.post(mEndBurstBatchEdit);
+    }
+    mLastKeyCommitTime = now;
+  }
+
+  private void endBurstBatchEdit() {
+    mHandler.removeCallbacks(mEndBurstBatchEdit);
+    if (mBurstInputConnection != null) {
+      mBurstInputConnection.endBatchEdit();
+      mBurstInputConnection = null;
+    }
+  }
+
+  /**
+   * Types a character straight into the editor with a single commitText() call.
+   * Used whenever we aren't predicting, since there is then nothing to compose.
+   */
+  private void commitCharacter(InputConnection ic, int primaryCode) {
+    char c = (char) primaryCode;
+    beginBurstBatchEdit(ic);
+    ic.commitText(String.valueOf(c), 1);
+    mCapsTracker.onTextCommitted(c);
+  }
+
   // Implementation of KeyboardViewListener
 
     public void onKey(int primaryCode, int[] keyCodes) {
@@ -781,8 +1038,10 @@ implements KeyboardView.OnKeyboardActionListener,
             commitTyped(getCurrentInputConnection());
 
             updateGrokkerIcon();
-        } else if ( primaryCode == 1000) {
+        } else if ( primaryCode == LatinKeyboardView.KEYCODE_GROK) {
             toggleGrok();
+        } else if (primaryCode == LatinKeyboardView.KEYCODE_GROK_OPTIONS) {
+            showGrokMenu();
         } else if ( primaryCode == 1001) {
             if (!this.mStoppingInventory) {
                 showPowerVolumeUi();
@@ -810,14 +1069,14 @@ implements KeyboardView.OnKeyboardActionListener,
     builder.setView(sliderView);
 
     SeekBar powerBar = sliderView.findViewById(R.id.power_seekbar);
-    powerBar.setProgress(this.mPowerValue);
+    powerBar.setProgress(mSettings.getPower());
     final TextView powerPercentText = sliderView.findViewById(R.id.power_percent_text);
-    updatePowerProgress(powerPercentText, this.mPowerValue);
+    updatePowerProgress(powerPercentText, mSettings.getPower());
 
     powerBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
       @Override
       public void onProgressChanged (SeekBar seekBar, int progress, boolean fromUser) {
-        mPowerValue = progress;
+        mSettings.setPower(progress);
         updatePowerProgress(powerPercentText, progress);
       }
 
@@ -829,14 +1088,14 @@ implements KeyboardView.OnKeyboardActionListener,
     });
 
     SeekBar volumeBar = sliderView.findViewById(R.id.volume_seekbar);
-    volumeBar.setProgress(this.mVolumeValue);
+    volumeBar.setProgress(mSettings.getVolume());
     final TextView volumePercentText = sliderView.findViewById(R.id.volume_percent_text);
-    updateVolumeProgress(volumePercentText, this.mVolumeValue);
+    updateVolumeProgress(volumePercentText, mSettings.getVolume());
 
     volumeBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
       @Override
       public void onProgressChanged (SeekBar seekBar, int progress, boolean fromUser) {
-        mVolumeValue = progress;
+        mSettings.setVolume(progress);
         updateVolumeProgress(volumePercentText, progress);
       }
 
@@ -848,39 +1107,170 @@ implements KeyboardView.OnKeyboardActionListener,
     });
 
     ToggleButton findOneToggle = sliderView.findViewById(R.id.findone_toggle);
-    findOneToggle.setChecked(this.mFindOne);
+    findOneToggle.setChecked(mSettings.getFindOne());
     findOneToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
       @Override
       public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-        mFindOne = isChecked;
+        mSettings.setFindOne(isChecked);
+      }
+    });
+
+    ToggleButton findStrongestToggle = sliderView.findViewById(R.id.findstrongest_toggle);
+    findStrongestToggle.setChecked(mSettings.getFindStrongest());
+    findStrongestToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setFindStrongest(isChecked);
+      }
+    });
+
+    ToggleButton typeInViewAtStopToggle = sliderView.findViewById(R.id.type_in_view_at_stop_toggle);
+    typeInViewAtStopToggle.setChecked(mSettings.getTypeInViewAtStop());
+    typeInViewAtStopToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setTypeInViewAtStop(isChecked);
+      }
+    });
+
+    ToggleButton bulkOutputToggle = sliderView.findViewById(R.id.bulk_output_toggle);
+    bulkOutputToggle.setChecked(mSettings.getBulkOutput());
+    bulkOutputToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setBulkOutput(isChecked);
       }
     });
 
     ToggleButton stayConnectedToggle = sliderView.findViewById(R.id.stayconnected_toggle);
-    stayConnectedToggle.setChecked(this.mStayConnected);
+    stayConnectedToggle.setChecked(mSettings.getStayConnected());
     stayConnectedToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
       @Override
       public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-        mStayConnected = isChecked;
-        getUgi().setDelayBeforeClosingConnectionOnInactivityMsec(mStayConnected ? 0 : 100);
+        mSettings.setStayConnected(isChecked);
       }
     });
 
     ToggleButton asciiToggle = sliderView.findViewById(R.id.ascii_toggle);
-    asciiToggle.setChecked(this.mAscii);
+    asciiToggle.setChecked(mSettings.getAscii());
     asciiToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
       @Override
       public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-        mAscii = isChecked;
+        mSettings.setAscii(isChecked);
       }
     });
 
     ToggleButton alwaysAddCommaAtStartToggle = sliderView.findViewById(R.id.always_add_comma_at_start_toggle);
-    alwaysAddCommaAtStartToggle.setChecked(this.mAlwaysAddCommaAtStart);
+    alwaysAddCommaAtStartToggle.setChecked(mSettings.getAlwaysAddCommaAtStart());
     alwaysAddCommaAtStartToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
       @Override
       public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-        mAlwaysAddCommaAtStart = isChecked;
+        mSettings.setAlwaysAddCommaAtStart(isChecked);
+      }
+    });
+
+    ToggleButton scannerWedgeToggle = sliderView.findViewById(R.id.scanner_wedge_toggle);
+    scannerWedgeToggle.setChecked(mSettings.getScannerWedge());
+    scannerWedgeToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setScannerWedge(isChecked);
+      }
+    });
+
+    ToggleButton gs1Toggle = sliderView.findViewById(R.id.gs1_toggle);
+    gs1Toggle.setChecked(mSettings.getGs1());
+    gs1Toggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setGs1(isChecked);
+      }
+    });
+
+    ToggleButton readTidToggle = sliderView.findViewById(R.id.read_tid_toggle);
+    readTidToggle.setChecked(mSettings.getReadTid());
+    readTidToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setReadTid(isChecked);
+      }
+    });
+
+    final Button userBytesButton = sliderView.findViewById(R.id.user_bytes_button);
+    userBytesButton.setText(getUserBytesLabel(mSettings.getUserBytes()));
+    userBytesButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        // Step to the next preset, wrapping back to off
+        int next = USER_BYTES_PRESETS[0];
+        for (int i = 0; i < USER_BYTES_PRESETS.length - 1; i++) {
+          if (USER_BYTES_PRESETS[i] == mSettings.getUserBytes()) {
+            next = USER_BYTES_PRESETS[i + 1];
+          }
+        }
+        mSettings.setUserBytes(next);
+        userBytesButton.setText(getUserBytesLabel(next));
+      }
+    });
+
+    final Button bandButton = sliderView.findViewById(R.id.band_button);
+    bandButton.setText(BAND_LABELS[mSettings.getBand()]);
+    bandButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        int band = (mSettings.getBand() + 1) % BAND_LABELS.length;
+        mSettings.setBand(band);
+        bandButton.setText(BAND_LABELS[band]);
+        if (band != ScanProfile.BAND_UHF && getUgi().getConnectionState() == Ugi.ConnectionStates.CONNECTED
+            && !getUgi().getHasHfReader()) {
+          UgiUiUtil.showToast(mUgiActivity, "RFID band", "This Grokker has no HF reader; scanning UHF only");
+        }
+      }
+    });
+
+    final Button tagBroadcastButton = sliderView.findViewById(R.id.tag_broadcast_button);
+    tagBroadcastButton.setText(TAG_BROADCAST_LABELS[mSettings.getTagBroadcast()]);
+    tagBroadcastButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        int broadcast = (mSettings.getTagBroadcast() + 1) % TAG_BROADCAST_LABELS.length;
+        mSettings.setTagBroadcast(broadcast);
+        tagBroadcastButton.setText(TAG_BROADCAST_LABELS[broadcast]);
+        if (broadcast != TagBroadcaster.BROADCAST_OFF && !mTagBroadcaster.hasConsumers(true)) {
+          UgiUiUtil.showToast(mUgiActivity, "Send tags to apps",
+                              "No app receives tags; they are typed until one is installed");
+        }
+      }
+    });
+
+    ToggleButton tagStreamToggle = sliderView.findViewById(R.id.tag_stream_toggle);
+    tagStreamToggle.setChecked(mSettings.getTagStream());
+    tagStreamToggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+      @Override
+      public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        mSettings.setTagStream(isChecked);
+        if (isChecked) {
+          UgiUiUtil.showToast(mUgiActivity, "Tag stream",
+                              "Clients must send the token " + mSettings.getTagStreamToken());
+        }
+      }
+    });
+
+    final Button outputTemplateButton = sliderView.findViewById(R.id.output_template_button);
+    outputTemplateButton.setText(mSettings.getOutputTemplate().getPattern());
+    outputTemplateButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        showOutputTemplateMenu(outputTemplateButton);
+      }
+    });
+
+    final Button scanProfilesButton = sliderView.findViewById(R.id.scan_profiles_button);
+    scanProfilesButton.setText(getScanProfilesLabel());
+    scanProfilesButton.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View v) {
+        showScanProfilesMenu(scanProfilesButton);
       }
     });
 
@@ -896,7 +1286,7 @@ implements KeyboardView.OnKeyboardActionListener,
       public void onClick(DialogInterface dialog, int id) {
         mPowerVolumeDialog.hide();
         SoftKeyboard.this.updateGrokkerIcon();
-        SoftKeyboard.this.savePreferences();
+        mSettings.flush();
       }
     });
 
@@ -945,14 +1335,14 @@ implements KeyboardView.OnKeyboardActionListener,
 
   private void updateSliderValues (AlertDialog dialog) {
     SeekBar powerBar = dialog.findViewById(R.id.power_seekbar);
-    powerBar.setProgress(this.mPowerValue);
+    powerBar.setProgress(mSettings.getPower());
     final TextView powerPercentText = dialog.findViewById(R.id.power_percent_text);
-    updatePowerProgress(powerPercentText, this.mPowerValue);
+    updatePowerProgress(powerPercentText, mSettings.getPower());
 
     SeekBar volumeBar = dialog.findViewById(R.id.volume_seekbar);
-    volumeBar.setProgress(this.mVolumeValue);
+    volumeBar.setProgress(mSettings.getVolume());
     final TextView volumePercentText = dialog.findViewById(R.id.volume_percent_text);
-    updateVolumeProgress(volumePercentText, this.mVolumeValue);
+    updateVolumeProgress(volumePercentText, mSettings.getVolume());
   }
 
   private static void updatePowerProgress(TextView powerPercentText, int progress) {
@@ -1049,12 +1439,49 @@ implements KeyboardView.OnKeyboardActionListener,
 
     UgiInventory inventory = getUgi().getActiveInventory();
 
+    if (inventory == null && (this.mBarcodeScanning || isBarcodeMode())) {
+      toggleBarcodeScan();
+      return;
+    }
+
     if (inventory == null) {
       Log.i(TAG, "Starting inventory!");
       this.mFirstEpc = true;
-      getUgi().startInventory(this, getRfidConfiguration());
+      // DEDUPE_NONE never fills it, and DEDUPE_FIELD keeps it for the field
+      if (getDedupePolicy() == ScanProfile.DEDUPE_INVENTORY) {
+        this.mScanDedupe.clear();
+      }
+      mPresence.clear();
+      mTrackingPresence = !isFindOne() && mEncoding == null && mSensorSweep == null;
+      if (mSensorSweep != null) {
+        mSensorSweep.clear();
+      }
+      int band = getBand();
+      mScanHf = (band == ScanProfile.BAND_HF);
+      inventory = getUgi().startInventory(this, getRfidConfiguration());
+      if (band == ScanProfile.BAND_BOTH && inventory != null) {
+        mBandScheduler.start(false);
+      }
+      if (mEncoding != null && inventory != null) {
+        mEncoding.start(inventory);
+      }
+      if (mSensorSweep != null && inventory != null) {
+        mSensorSweep.start(inventory);
+      }
+      if (isFindStrongest()) {
+        mStrongestPicker.start();
+      }
     } else {
+      if (mTrackingPresence && mSettings.getTypeInViewAtStop() && mReconcile == null) {
+        commitTagsInView();
+      }
       stopInventory("toggleGrok", null);
+      if (mReconcile != null && mLocateEpc == null) {
+        showReconcileMenu();
+      }
+      if (mSensorSweep != null && mLocateEpc == null) {
+        commitSensorRows();
+      }
       return;
     }
 
@@ -1063,22 +1490,146 @@ implements KeyboardView.OnKeyboardActionListener,
 
   /**
    * Returns a UgiRfidConfiguration with the volume and power settings scaled by
-   * mVolumeValue and mPowerValue.  Uses INVENTORY_DISTANCE for the base (100%) values.
+   * the volume and power settings.  Uses INVENTORY_DISTANCE for the base (100%) values.
    */
   private UgiRfidConfiguration getRfidConfiguration() {
     UgiRfidConfiguration config =
-            UgiRfidConfiguration.forInventoryType(this.mFindOne
-                                                          ? UgiRfidConfiguration.InventoryTypes.SINGLE_FIND
-                                                          : UgiRfidConfiguration.InventoryTypes.INVENTORY_DISTANCE);
-    config.volume = (double) this.mVolumeValue / 100.0;
+            UgiRfidConfiguration.forInventoryType(getInventoryType());
+    if (mScanHf) {
+      // HF power isn't adjustable
+      config.volume = (double) mSettings.getVolume() / 100.0;
+      return config;
+    }
+    if (isFindStrongest()) {
+      // Every read of every tag, with its RSSI, feeds the picker
+      config.reportRssi = true;
+      config.detailedPerReadData = true;
+      config.reportSubsequentFinds = true;
+    }
+    if (mSensorSweep != null) {
+      config = mSensorSweep.configure(config);
+    } else if (mEncoding == null) {
+      if (isReadTid()) {
+        config.minTidBytes = MIN_TID_BYTES;
+        config.maxTidBytes = MAX_TID_BYTES;
+      }
+      int userBytes = getUserBytes();
+      if (userBytes > 0) {
+        config.minUserBytes = Math.min(MIN_USER_BYTES, userBytes);
+        config.maxUserBytes = userBytes;
+      }
+    }
+    applyVolumeAndPower(config);
+    return config;
+  }
+
+  /**
+   * Scales a configuration's volume and its initial, min and max power by
+   * the volume and power settings.
+   */
+  private void applyVolumeAndPower(UgiRfidConfiguration config) {
+    config.volume = (double) mSettings.getVolume() / 100.0;
 
     // power conversion: scale initial, min, and max power by the scale factor
     double minPower = UgiRfidConfiguration.getMinAllowablePowerLevel();
-    double powerScale = ((double) this.mPowerValue / 100.0d);
+    int powerValue = (mProfile != null && mProfile.power != ScanProfile.UNSET) ? mProfile.power : mSettings.getPower();
+    double powerScale = ((double) powerValue / 100.0d);
     config.initialPowerLevel = minPower + ((config.initialPowerLevel - minPower) * powerScale);
     config.minPowerLevel = minPower + ((config.minPowerLevel - minPower) * powerScale);
     config.maxPowerLevel = minPower + ((config.maxPowerLevel - minPower) * powerScale);
-    return config;
+  }
+
+  private UgiRfidConfiguration.InventoryTypes getInventoryType() {
+    if (mScanHf) {
+      return isFindOne()
+          ? UgiRfidConfiguration.InventoryTypes.HF_SINGLE_FIND : UgiRfidConfiguration.InventoryTypes.HF_INVENTORY;
+    }
+    if (mEncoding != null) {
+      // Only program tags held up to the reader
+      return UgiRfidConfiguration.InventoryTypes.INVENTORY_SHORT_RANGE;
+    }
+    if (isFindOne() && !isFindStrongest()) {
+      return UgiRfidConfiguration.InventoryTypes.SINGLE_FIND;
+    }
+    if (mProfile != null && mProfile.inventoryType != null) {
+      return mProfile.inventoryType;
+    }
+    return UgiRfidConfiguration.InventoryTypes.INVENTORY_DISTANCE;
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Settings, as overridden by the current field's scan profile
+
+  private boolean isFindOne() {
+    if (mReconcile != null || mEncoding != null || mSensorSweep != null) {
+      return false;
+    }
+    return (mProfile != null && mProfile.findOne != null) ? mProfile.findOne : mSettings.getFindOne();
+  }
+
+  private boolean isFindStrongest() {
+    // Picking by RSSI is UHF only
+    if (!isFindOne() || getBand() != ScanProfile.BAND_UHF) {
+      return false;
+    }
+    return (mProfile != null && mProfile.strongest != null) ? mProfile.strongest : mSettings.getFindStrongest();
+  }
+
+  private OutputTemplate getOutputTemplate() {
+    return (mProfile != null && mProfile.template != null) ? mProfile.template : mSettings.getOutputTemplate();
+  }
+
+  /**
+   * TID and user memory are read in the inventory itself, with each tag's
+   * EPC, when asked for or when the output template types them.
+   */
+  private boolean isReadTid() {
+    boolean readTid = (mProfile != null && mProfile.tid != null) ? mProfile.tid : mSettings.getReadTid();
+    return readTid || getOutputTemplate().usesTid();
+  }
+
+  private int getUserBytes() {
+    int userBytes = (mProfile != null && mProfile.userBytes != ScanProfile.UNSET)
+        ? mProfile.userBytes : mSettings.getUserBytes();
+    if (userBytes == 0 && getOutputTemplate().usesUser()) {
+      userBytes = DEFAULT_USER_BYTES;
+    }
+    return userBytes;
+  }
+
+  /**
+   * ScanProfile.BAND_...; always UHF without an HF capable Grokker, and for
+   * the modes that only work on UHF tags.
+   */
+  private int getBand() {
+    if (mEncoding != null || mSensorSweep != null || !getUgi().getHasHfReader()) {
+      return ScanProfile.BAND_UHF;
+    }
+    return (mProfile != null && mProfile.band != ScanProfile.UNSET) ? mProfile.band : mSettings.getBand();
+  }
+
+  /**
+   * Whether the Grok key scans barcodes; the list-driven RFID modes always
+   * take the key over.
+   */
+  private boolean isBarcodeMode() {
+    return mSettings.getBarcodeMode() && getUgi().getHasBarcodeReader()
+        && mReconcile == null && mEncoding == null && mSensorSweep == null;
+  }
+
+  /**
+   * Picks the scan profile for a field, e.g. again when the profiles are
+   * edited while it has focus.
+   */
+  private void resolveProfile(EditorInfo attribute) {
+    mProfile = (attribute != null) ? mSettings.getScanProfiles().resolve(attribute) : null;
+    if (mProfile != null) {
+      Log.i(TAG, "Using scan profile " + mProfile.name + " for " + attribute.packageName);
+    }
+  }
+
+  private int getDedupePolicy() {
+    return (mProfile != null && mProfile.dedupe != ScanProfile.UNSET) ? mProfile.dedupe : ScanProfile.DEDUPE_INVENTORY;
   }
 
   public void onText(CharSequence text) {
@@ -1088,6 +1639,7 @@ implements KeyboardView.OnKeyboardActionListener,
     commitTyped(ic);
     ic.commitText(text, text.length());
     ic.endBatchEdit();
+    mCapsTracker.onTextCommitted(text);
     updateShiftKeyState(getCurrentInputEditorInfo());
   }
 
@@ -1132,6 +1684,7 @@ implements KeyboardView.OnKeyboardActionListener,
       updateCandidates();
     } else {
       keyDownUp(KeyEvent.KEYCODE_DEL);
+      mCapsTracker.onCharacterDeleted();
     }
     updateShiftKeyState(getCurrentInputEditorInfo());
   }
@@ -1165,16 +1718,20 @@ implements KeyboardView.OnKeyboardActionListener,
         primaryCode = Character.toUpperCase(primaryCode);
       }
     }
-    if (isAlphabet(primaryCode) && (mPredictionOn || mHandleShift)) {
+    if (!mPredictionOn) {
+      InputConnection ic = getCurrentInputConnection();
+      if (ic == null) return;
+      commitCharacter(ic, primaryCode);
+      if (isAlphabet(primaryCode) && mHandleShift) {
+        updateShiftKeyState(getCurrentInputEditorInfo());
+      }
+      return;
+    }
+    if (isAlphabet(primaryCode)) {
       mComposing.append((char) primaryCode);
-      //removed because of composing text without prediction
       getCurrentInputConnection().setComposingText(mComposing, 1);
       updateShiftKeyState(getCurrentInputEditorInfo());
-      //added to remove composing text
-      //getCurrentInputConnection().commitText(String.valueOf((char) primaryCode), 1);
-      if (mPredictionOn) {
-        updateCandidates();
-      }
+      updateCandidates();
     } else {
       getCurrentInputConnection().commitText(
                                             String.valueOf((char) primaryCode), 1);
@@ -1197,13 +1754,8 @@ implements KeyboardView.OnKeyboardActionListener,
     }
   }
 
-  private String getWordSeparators() {
-    return mWordSeparators;
-  }
-
   public boolean isWordSeparator(int code) {
-    String separators = getWordSeparators();
-    return separators.contains(String.valueOf((char)code));
+    return mWordSeparators.isSeparator(code);
   }
 
   public void pickDefaultCandidate() {
@@ -1215,6 +1767,7 @@ implements KeyboardView.OnKeyboardActionListener,
         && index < mCompletions.length) {
       CompletionInfo ci = mCompletions[index];
       getCurrentInputConnection().commitCompletion(ci);
+      mCapsTracker.invalidate();
       if (mCandidateView != null) {
         mCandidateView.clear();
       }
@@ -1259,9 +1812,47 @@ implements KeyboardView.OnKeyboardActionListener,
   @Override
   public void inventoryTagFound (UgiTag tag, UgiInventory.DetailedPerReadData[] detailedPerReadData) {
     Log.i(TAG, "Tag found: " + tag.toString());
-    StringBuilder sb = new StringBuilder();
 
-    if (this.mFindOne) {
+    if (mLocateEpc != null) {
+      mLocateTag = tag;
+      return;
+    }
+
+    byte[] epc = tag.getEpc().toBytes();
+    if (mBandScheduler.isRunning()) {
+      mBandScheduler.tagFound(epc);
+    }
+    if (mEncoding != null) {
+      mEncoding.tagFound(tag, epc);
+      return;
+    }
+    if (mSensorSweep != null) {
+      mSensorSweep.tagFound(tag, epc, detailedPerReadData);
+      return;
+    }
+    if (mProfile != null && !mProfile.acceptsEpc(epc)) {
+      return;
+    }
+
+    if (mReconcile != null) {
+      mReconcile.mark(epc);
+      return;
+    }
+
+    if (isFindStrongest()) {
+      addStrongestReads(tag, epc, detailedPerReadData);
+      return;
+    }
+
+    if (mTrackingPresence) {
+      mPresence.update(tag, epc, true);
+      if (mSettings.getTypeInViewAtStop()) {
+        // Typed when the inventory is stopped, if still in view
+        return;
+      }
+    }
+
+    if (isFindOne()) {
       if (this.mFirstEpc) {
         this.mFirstEpc = false;
         stopInventory("inventoryTagFound", null);
@@ -1272,50 +1863,1313 @@ implements KeyboardView.OnKeyboardActionListener,
       if (this.mFirstEpc) {
         this.mFirstEpc = false;
       }
-      //
-      // Finding more than one EPC, if there is text to the left
-      // then insert a comma as a seperator
-      //
-      if (mAlwaysAddCommaAtStart) {
-        sb.append(',');
-      } else {
-        InputConnection ic = getCurrentInputConnection();
-        if (ic != null) {
-          CharSequence q = ic.getTextBeforeCursor(1, 0);
-          if (q.length() > 0) {
-            sb.append(',');
-          }
-        }
+    }
+    commitTag(tag, epc, detailedPerReadData, !isFindOne());
+  }
+
+  @Override
+  public void inventoryTagSubsequentFinds(UgiTag tag, int numFinds, UgiInventory.DetailedPerReadData[] detailedPerReadData) {
+    if (mSensorSweep != null) {
+      mSensorSweep.tagFound(tag, tag.getEpc().toBytes(), detailedPerReadData);
+    } else if (isFindStrongest()) {
+      byte[] epc = tag.getEpc().toBytes();
+      if (mProfile == null || mProfile.acceptsEpc(epc)) {
+        addStrongestReads(tag, epc, detailedPerReadData);
+      }
+    } else if (mTrackingPresence) {
+      byte[] epc = tag.getEpc().toBytes();
+      if (mProfile == null || mProfile.acceptsEpc(epc)) {
+        mPresence.update(tag, epc, true);
       }
     }
-    sb.append(epcToDisplayString(tag.getEpc()));
+  }
 
-    onText(sb.toString());
+  @Override
+  public void inventoryTagChanged(UgiTag tag, boolean firstFind) {
+    if (!mTrackingPresence) {
+      return;
+    }
+    byte[] epc = tag.getEpc().toBytes();
+    if (mProfile == null || mProfile.acceptsEpc(epc)) {
+      if (mPresence.update(tag, epc, tag.isVisible())) {
+        Log.i(TAG, "Tags in view: " + mPresence.getVisibleCount());
+      }
+    }
   }
 
-  public String epcToDisplayString(UgiEpc epc) {
-    if (epc == null) return "";
-    String epcString = epc.toString();
-    if (mAscii) {
-      StringBuilder sb = new StringBuilder();
-      for (int i = 0; i < epcString.length(); i += 2) {
-        String s = epcString.substring(i, i + 2);
-        int ch = Integer.parseInt(s, 16);
-        if (ch == 0) {
-          break;
-        }
-        if (ch >= 128) {
-          return epcString;
-        }
-        sb.append((char) ch);
+  /**
+   * Types every tag currently in the reader's field that has not been typed
+   * yet, in the order they were first seen, as one batch edit.  Only used
+   * when tags are typed at stop, so nothing here went through commitTag.
+   */
+  private void commitTagsInView() {
+    InputConnection ic = getCurrentInputConnection();
+    if (ic == null) return;
+    ic.beginBatchEdit();
+    for (int id = mPresence.nextVisible(0); id >= 0; id = mPresence.nextVisible(id + 1)) {
+      if (mPresence.markTyped(id)) {
+        commitTag(mPresence.getTag(id), mPresence.getEpc(id), null, true);
       }
-      return sb.length() > 0 ? sb.toString() : epcString;
-    } else {
-      return epcString.toUpperCase();
     }
+    ic.endBatchEdit();
+  }
+
+  private void addStrongestReads(UgiTag tag, byte[] epc, UgiInventory.DetailedPerReadData[] detailedPerReadData) {
+    if (!mStrongestPicker.isRunning()) {
+      return;
+    }
+    if (detailedPerReadData != null && detailedPerReadData.length > 0) {
+      for (UgiInventory.DetailedPerReadData read : detailedPerReadData) {
+        mStrongestPicker.addRead(tag, epc, StrongestTagPicker.rssiOf(read.getRssiI(), read.getRssiQ()));
+        if (!mStrongestPicker.isRunning()) {
+          return;
+        }
+      }
+    } else {
+      UgiTagReadState readState = tag.getTagReadState();
+      if (readState != null) {
+        mStrongestPicker.addRead(tag, epc,
+            StrongestTagPicker.rssiOf(readState.getMostRecentRssiI(), readState.getMostRecentRssiQ()));
+      }
+    }
+  }
+
+  @Override
+  public void onStrongestTag(UgiTag tag) {
+    Log.i(TAG, "Strongest tag: " + tag.toString());
+    this.mFirstEpc = false;
+    stopInventory("onStrongestTag", null);
+    commitTag(tag, tag.getEpc().toBytes(), null, false);
+  }
+
+  /**
+   * Moves an alternating scan to the other band: the running inventory is
+   * stopped and the other band's started from its completion.
+   */
+  @Override
+  public void onSwitchBand(final boolean hf) {
+    UgiInventory inventory = getUgi().getActiveInventory();
+    if (inventory == null || this.mStoppingInventory) {
+      return;
+    }
+    mSwitchingBand = true;
+    this.mStoppingInventory = true;
+    inventory.stopInventory(new UgiInventory.StopInventoryCompletion() {
+      @Override
+      public void exec() {
+        SoftKeyboard.this.mStoppingInventory = false;
+        if (mSwitchingBand) {
+          mSwitchingBand = false;
+          mScanHf = hf;
+          if (getUgi().startInventory(SoftKeyboard.this, getRfidConfiguration()) != null) {
+            mBandScheduler.startDwell(hf);
+          }
+        }
+        updateGrokkerIcon();
+      }
+    });
+  }
+
+  /**
+   * Fills the scan record from a tag and commits it.
+   */
+  private void commitTag(UgiTag tag, byte[] epc, UgiInventory.DetailedPerReadData[] detailedPerReadData, boolean separate) {
+    ScanRecord record = mScanRecord;
+    record.reset();
+    record.epc = epc;
+    if (mScanHf) {
+      record.hfType = getHfType(tag);
+    }
+    record.tid = tag.getTidBytes();
+    record.user = tag.getUserBytes();
+    record.timestamp = System.currentTimeMillis();
+    // The stronger channel, as the strongest-tag picker ranks tags by
+    if (detailedPerReadData != null && detailedPerReadData.length > 0) {
+      UgiInventory.DetailedPerReadData read = detailedPerReadData[detailedPerReadData.length - 1];
+      record.rssi = StrongestTagPicker.rssiOf(read.getRssiI(), read.getRssiQ());
+      record.hasRssi = true;
+    } else {
+      UgiTagReadState readState = tag.getTagReadState();
+      if (readState != null) {
+        float rssi = StrongestTagPicker.rssiOf(readState.getMostRecentRssiI(), readState.getMostRecentRssiQ());
+        if (rssi != 0) {
+          record.rssi = rssi;
+          record.hasRssi = true;
+        }
+      }
+    }
+    journalScan(record);
+    SoftKeyboardApp.publishTag(record);
+    int broadcast = mSettings.getTagBroadcast();
+    if (broadcast != TagBroadcaster.BROADCAST_OFF) {
+      // With no app to receive it, the tag is typed rather than lost
+      if (mTagBroadcaster.add(record) && broadcast == TagBroadcaster.BROADCAST_ONLY) {
+        return;
+      }
+    }
+    commitScan(record, separate);
+  }
+
+  /**
+   * Records a read in the scan journal, before it is typed, so it survives
+   * whatever happens to the field.
+   */
+  private void journalScan(ScanRecord record) {
+    ScanJournal journal = SoftKeyboardApp.getScanJournal();
+    if (!mJournalSessionStarted) {
+      journal.startSession(mJournalPackage, mJournalFieldId, record.timestamp);
+      mJournalSessionStarted = true;
+    }
+    journal.appendScan(record);
+  }
+
+  /**
+   * Types one scan (an RFID tag or a scanner wedge scan) into the editor
+   * through the output template, and records it in the scan session.  The
+   * default template is preceded by the tag separator if asked; custom
+   * templates bring their own.  Scans already typed since the field or the
+   * current inventory started are dropped.  With bulk output on, scans are
+   * only collected, field or not, for the Grok key menu to copy or share.
+   */
+  private void commitScan(ScanRecord record, boolean separate) {
+    if (mSettings.getBulkOutput()) {
+      appendScan(record, false, true, null);
+      return;
+    }
+    if (isOffline()) {
+      StringBuilder sb = mScanBuilder;
+      sb.setLength(0);
+      mDisplayTemplate.emit(record, getEpcFlags(), sb);
+      appendScanKey(record, sb);
+      if (mOfflineScans.add(record, sb.toString()) && Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, "No field; holding scan " + mOfflineScans.size());
+      }
+      return;
+    }
+    StringBuilder out = mOutputBuilder;
+    out.setLength(0);
+    if (appendScan(record, separate, true, out)) {
+      commitOutput(out);
+    }
+  }
+
+  /**
+   * Appends a scan's output, unless dedupe is asked for and it is a
+   * duplicate, and records it in the scan session.  Returns whether anything
+   * was appended.  With no out, the scan is only recorded, as not typed.
+   */
+  private boolean appendScan(ScanRecord record, boolean separate, boolean dedupe, StringBuilder out) {
+    final int epcFlags = getEpcFlags();
+    StringBuilder sb = mScanBuilder;
+    sb.setLength(0);
+    mDisplayTemplate.emit(record, epcFlags, sb);
+    String value = sb.toString();
+    appendScanKey(record, sb);
+    String key = sb.toString();
+    if (dedupe && getDedupePolicy() != ScanProfile.DEDUPE_NONE && !mScanDedupe.add(key)) {
+      return false;
+    }
+    if (out != null) {
+      OutputTemplate template = getOutputTemplate();
+      if (template.isDefault()) {
+        if (separate) {
+          appendTagSeparator(out);
+        }
+        out.append(value);
+      } else {
+        template.emit(record, epcFlags, out);
+      }
+    }
+    addScanResult(value, record, key, out != null);
+    return true;
+  }
+
+  /**
+   * Turns a scan's display value, already in sb, into what dedupe compares.
+   */
+  private static void appendScanKey(ScanRecord record, StringBuilder sb) {
+    // An HF UID is never the same scan as a UHF EPC with the same bytes
+    if (record.hfType != null) {
+      sb.append("/HF");
+    }
+    // A cloned EPC on a tag with a different TID (or different user
+    // memory) is a different scan
+    if (record.tid != null || record.user != null) {
+      sb.append('/');
+      if (record.tid != null) {
+        OutputTemplate.appendHex(record.tid, sb);
+      }
+      sb.append('/');
+      if (record.user != null) {
+        OutputTemplate.appendHex(record.user, sb);
+      }
+    }
+  }
+
+  /**
+   * True when there's no editor to type into: no input connection, or a
+   * window without a text field focused.
+   */
+  private boolean isOffline() {
+    EditorInfo editorInfo = getCurrentInputEditorInfo();
+    return getCurrentInputConnection() == null
+        || editorInfo == null || editorInfo.inputType == InputType.TYPE_NULL;
+  }
+
+  /**
+   * Types every offline scan into the field in one commit, through the
+   * usual template and dedupe.
+   */
+  private void pasteOfflineScans() {
+    InputConnection ic = getCurrentInputConnection();
+    if (ic == null || isOffline()) return;
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < mOfflineScans.size(); i++) {
+      mOfflineScans.get(i, mScanRecord);
+      appendScan(mScanRecord, true, true, out);
+    }
+    mOfflineScans.clear();
+    ic.beginBatchEdit();
+    commitOutput(out);
+    ic.endBatchEdit();
+  }
+
+
+  /**
+   * Types template output: runs of text are committed, and the '\t' / '\n'
+   * that {tab} / {enter} compile to are sent as Tab / Enter key presses so
+   * they move focus or submit the way a hardware scanner's would.
+   */
+  private void commitOutput(CharSequence output) {
+    final long startNanos = System.nanoTime();
+    int start = 0;
+    final int length = output.length();
+    for (int i = 0; i < length; i++) {
+      char c = output.charAt(i);
+      if (c == '\t' || c == '\n') {
+        if (i > start) {
+          onText(output.subSequence(start, i));
+        }
+        if (getCurrentInputConnection() != null) {
+          keyDownUp(c == '\t' ? KeyEvent.KEYCODE_TAB : KeyEvent.KEYCODE_ENTER);
+          mCapsTracker.invalidate();
+        }
+        start = i + 1;
+      }
+    }
+    if (start < length) {
+      onText(output.subSequence(start, length));
+    }
+    mCommitNanos += System.nanoTime() - startNanos;
+    mCommitCount++;
+  }
+
+  private void showOutputTemplateMenu(final Button button) {
+    UgiUiUtil.MenuTitleAndHandler[] items = new UgiUiUtil.MenuTitleAndHandler[OUTPUT_TEMPLATE_PRESETS.length + 1];
+    for (int i = 0; i < OUTPUT_TEMPLATE_PRESETS.length; i++) {
+      final String pattern = OUTPUT_TEMPLATE_PRESETS[i];
+      items[i] = new UgiUiUtil.MenuTitleAndHandler(pattern, new Runnable() {
+        @Override
+        public void run() {
+          setOutputTemplate(pattern, button);
+        }
+      });
+    }
+    items[OUTPUT_TEMPLATE_PRESETS.length] = new UgiUiUtil.MenuTitleAndHandler("Paste from clipboard", new Runnable() {
+      @Override
+      public void run() {
+        String text = getClipboardText();
+        if (text == null) {
+          UgiUiUtil.showToast(mUgiActivity, "Output template", "The clipboard is empty");
+          return;
+        }
+        setOutputTemplate(text, button);
+      }
+    });
+    UgiUiUtil.showMenu(mUgiActivity, "Output template", null, items);
+  }
+
+  private void setOutputTemplate(String pattern, Button button) {
+    mSettings.setOutputTemplate(OutputTemplate.compile(pattern));
+    button.setText(mSettings.getOutputTemplate().getPattern());
+  }
+
+  private void showScanProfilesMenu(final Button button) {
+    UgiUiUtil.showMenu(mUgiActivity, "Scan profiles", null,
+        new UgiUiUtil.MenuTitleAndHandler("Paste from clipboard", new Runnable() {
+          @Override
+          public void run() {
+            String text = getClipboardText();
+            if (text == null) {
+              UgiUiUtil.showToast(mUgiActivity, "Scan profiles", "The clipboard is empty");
+              return;
+            }
+            try {
+              mSettings.setScanProfiles(ScanProfiles.parse(text));
+            } catch (JSONException e) {
+              UgiUiUtil.showOk(mUgiActivity, "Scan profiles", "Not valid profiles:\n" + e.getMessage());
+              return;
+            }
+            button.setText(getScanProfilesLabel());
+          }
+        }),
+        new UgiUiUtil.MenuTitleAndHandler("Clear", new Runnable() {
+          @Override
+          public void run() {
+            mSettings.setScanProfiles(ScanProfiles.EMPTY);
+            button.setText(getScanProfilesLabel());
+          }
+        }));
+  }
+
+  private static String getHfType(UgiTag tag) {
+    String name = tag.getHfName();
+    if (name != null && name.length() > 0) {
+      return name;
+    }
+    return (tag.getHfTagType() != null) ? tag.getHfTagType().toString() : "HF";
+  }
+
+  private static String getUserBytesLabel(int userBytes) {
+    return userBytes == 0 ? "no" : userBytes + " bytes";
+  }
+
+  private String getScanProfilesLabel() {
+    int n = mSettings.getScanProfiles().size();
+    return n == 0 ? "none" : (n == 1 ? "1 profile" : n + " profiles");
+  }
+
+  /**
+   * Returns the trimmed text on the clipboard, or null if there is none.
+   */
+  private String getClipboardText() {
+    ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+    ClipData clip = (clipboard != null) ? clipboard.getPrimaryClip() : null;
+    CharSequence text = (clip != null && clip.getItemCount() > 0)
+        ? clip.getItemAt(0).coerceToText(this) : null;
+    if (text == null || text.toString().trim().length() == 0) {
+      return null;
+    }
+    return text.toString().trim();
+  }
+
+  /**
+   * Finding more than one EPC, if there is text to the left (in the field,
+   * or earlier in sb) then insert a comma as a seperator
+   */
+  private void appendTagSeparator(StringBuilder sb) {
+    if (mSettings.getAlwaysAddCommaAtStart() || sb.length() > 0) {
+      sb.append(',');
+    } else {
+      InputConnection ic = getCurrentInputConnection();
+      if (ic != null) {
+        CharSequence q = ic.getTextBeforeCursor(1, 0);
+        if (q != null && q.length() > 0) {
+          sb.append(',');
+        }
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Scanned tags in the candidate strip
+
+  private void addScanResult(String epcText, ScanRecord record, String key, boolean typed) {
+    mScanResults.add(epcText);
+    mScanRecords.add(record.copy());
+    mScanKeys.add(key);
+    mScanTyped.add(typed);
+    if (mCandidateView != null) {
+      if (mCandidateView.isShowingScanResults()) {
+        mCandidateView.scanResultsChanged(mScanResults.size() - 1, true);
+      } else {
+        mCandidateView.showScanResults(mScanResults);
+      }
+    }
+    if (mScanResults.size() == 1) {
+      setCandidatesViewShown(true);
+    }
+  }
+
+  /**
+   * Called by the candidate strip when a scanned tag is tapped: types it again.
+   */
+  public void pickScanResult(int index) {
+    if (index < 0 || index >= mScanResults.size()) return;
+    StringBuilder sb = new StringBuilder();
+    appendTagSeparator(sb);
+    sb.append(mScanResults.get(index));
+    onText(sb.toString());
+  }
+
+  /**
+   * Called by the candidate strip when a scanned tag is long-pressed: drops it
+   * from the session.  Text already typed into the field is left alone.
+   */
+  public void removeScanResult(int index) {
+    if (index < 0 || index >= mScanResults.size()) return;
+    mScanResults.remove(index);
+    mScanRecords.remove(index);
+    mScanDedupe.remove(mScanKeys.remove(index));
+    mScanTyped.remove(index);
+    if (mCandidateView != null) {
+      mCandidateView.scanResultRemoved(index);
+    }
+    if (mScanResults.isEmpty()) {
+      clearScanResults();
+    }
+  }
+
+  private void clearScanResults() {
+    mScanResults.clear();
+    mScanRecords.clear();
+    mScanKeys.clear();
+    mScanTyped.clear();
+    mScanDedupe.clear();
+    if (mCandidateView != null && mCandidateView.isShowingScanResults()) {
+      mCandidateView.clear();
+      setCandidatesViewShown(false);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Grok key long press menu and locate mode
+
+  private static final int LOCATE_HISTORY_INTERVAL_MSEC = 200;
+  private static final int LOCATE_HISTORY_DEPTH = 5;
+  private static final int LOCATE_MENU_TAGS = 5;
+
+  private void showGrokMenu() {
+    if (this.mStoppingInventory || getUgi().getConnectionState() != Ugi.ConnectionStates.CONNECTED) {
+      return;
+    }
+    ArrayList<UgiUiUtil.MenuTitleAndHandler> items = new ArrayList<>();
+    String title = "Grokker";
+    if (mLocateEpc != null) {
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Stop locating", new Runnable() {
+        @Override
+        public void run() {
+          stopInventory("showGrokMenu", null);
+        }
+      }));
+    } else if (mEncoding != null) {
+      final EncodingQueue encoding = mEncoding;
+      title = String.format("Encoded %d, %d left (%.0f tags/min)", encoding.getEncodedCount(),
+                            encoding.getRemainingCount(), encoding.getTagsPerMinute());
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Stop encoding", new Runnable() {
+        @Override
+        public void run() {
+          endEncoding(encoding);
+        }
+      }));
+    } else if (mSensorSweep != null) {
+      final SensorSweep sweep = mSensorSweep;
+      title = SensorSweep.TYPE_NAMES[sweep.getType()] + ": " + sweep.getReadCount() + " tags read";
+      if (sweep.getQueuedCount() > 0) {
+        title += ", " + sweep.getQueuedCount() + " waiting";
+      }
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Type " + sweep.getReadCount() + " readings", new Runnable() {
+        @Override
+        public void run() {
+          commitSensorRows();
+        }
+      }));
+      items.add(new UgiUiUtil.MenuTitleAndHandler("End sensor sweep", new Runnable() {
+        @Override
+        public void run() {
+          if (mSensorSweep == sweep) {
+            stopInventory("endSensorSweep", null);
+            mSensorSweep = null;
+          }
+        }
+      }));
+    } else {
+      if (mReconcile != null) {
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Reconciliation...", new Runnable() {
+          @Override
+          public void run() {
+            showReconcileMenu();
+          }
+        }));
+      } else {
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Reconcile with expected list...", new Runnable() {
+          @Override
+          public void run() {
+            showExpectedListMenu();
+          }
+        }));
+      }
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Encode tags from list...", new Runnable() {
+        @Override
+        public void run() {
+          showEncodingListMenu();
+        }
+      }));
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Read sensor tags...", new Runnable() {
+        @Override
+        public void run() {
+          showSensorTypeMenu();
+        }
+      }));
+      if (getUgi().getHasBarcodeReader()) {
+        if (getUgi().getActiveInventory() == null && !this.mBarcodeScanning) {
+          items.add(new UgiUiUtil.MenuTitleAndHandler("Scan a barcode", new Runnable() {
+            @Override
+            public void run() {
+              toggleBarcodeScan();
+            }
+          }));
+        }
+        final boolean barcodeMode = mSettings.getBarcodeMode();
+        items.add(new UgiUiUtil.MenuTitleAndHandler(
+            barcodeMode ? "Grok key: scan RFID tags" : "Grok key: scan barcodes", new Runnable() {
+          @Override
+          public void run() {
+            mSettings.setBarcodeMode(!barcodeMode);
+          }
+        }));
+      }
+      if (mTrackingPresence && mSettings.getTypeInViewAtStop() && mReconcile == null
+          && getUgi().getActiveInventory() != null) {
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Type " + mPresence.getVisibleCount() + " tags in view",
+                                                    new Runnable() {
+          @Override
+          public void run() {
+            commitTagsInView();
+          }
+        }));
+      }
+      if (mOfflineScans.size() > 0) {
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Paste " + mOfflineScans.size() + " offline scans",
+                                                    new Runnable() {
+          @Override
+          public void run() {
+            pasteOfflineScans();
+          }
+        }));
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Discard offline scans", new Runnable() {
+          @Override
+          public void run() {
+            mOfflineScans.clear();
+          }
+        }));
+      }
+      if (!mScanResults.isEmpty()) {
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Copy " + mScanResults.size() + " scans to clipboard",
+                                                    new Runnable() {
+          @Override
+          public void run() {
+            exportScans(false);
+          }
+        }));
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Share " + mScanResults.size() + " scans...", new Runnable() {
+          @Override
+          public void run() {
+            exportScans(true);
+          }
+        }));
+        if (mSettings.getBulkOutput()) {
+          items.add(new UgiUiUtil.MenuTitleAndHandler("Discard " + mScanResults.size() + " scans", new Runnable() {
+            @Override
+            public void run() {
+              clearScanResults();
+            }
+          }));
+        }
+      }
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Export scan sessions to files...", new Runnable() {
+        @Override
+        public void run() {
+          showSessionExportMenu();
+        }
+      }));
+      items.add(new UgiUiUtil.MenuTitleAndHandler("Locate EPC in field", new Runnable() {
+        @Override
+        public void run() {
+          UgiEpc epc = getEpcFromField();
+          if (epc == null) {
+            UgiUiUtil.showToast(mUgiActivity, "Locate", "Select a tag's EPC (in hex) in the field first");
+          } else {
+            startLocate(epc);
+          }
+        }
+      }));
+      // Most recent scanned tags first
+      int added = 0;
+      for (int i = mScanResults.size() - 1; i >= 0 && added < LOCATE_MENU_TAGS; i--) {
+        final byte[] epc = mScanRecords.get(i).epc;
+        if (epc == null) {
+          continue;
+        }
+        items.add(new UgiUiUtil.MenuTitleAndHandler("Locate " + mScanResults.get(i), new Runnable() {
+          @Override
+          public void run() {
+            startLocate(new UgiEpc(epc));
+          }
+        }));
+        added++;
+      }
+    }
+    UgiUiUtil.showMenu(mUgiActivity, title, null,
+                       items.toArray(new UgiUiUtil.MenuTitleAndHandler[items.size()]));
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Reconciliation against an expected list
+
+  private static final int EXPECTED_LIST_MENU_FILES = 8;
+
+  /**
+   * Where an EPC list chosen from {@link #showEpcListMenu} comes from.
+   */
+  private interface EpcListHandler {
+    void fileChosen(File file);
+    void textPasted(String text);
+  }
+
+  private void showExpectedListMenu() {
+    showEpcListMenu("Expected list", new EpcListHandler() {
+      @Override
+      public void fileChosen(File file) {
+        loadExpectedList(file);
+      }
+
+      @Override
+      public void textPasted(String text) {
+        startReconcile(ExpectedEpcList.parse(text));
+      }
+    });
+  }
+
+  /**
+   * Offers the .csv / .txt files in the keyboard's external files directory,
+   * or the clipboard, as an EPC list.
+   */
+  private void showEpcListMenu(final String title, final EpcListHandler handler) {
+    ArrayList<UgiUiUtil.MenuTitleAndHandler> items = new ArrayList<>();
+    File dir = getExternalFilesDir(null);
+    File[] files = (dir != null) ? dir.listFiles() : null;
+    if (files != null) {
+      for (final File file : files) {
+        String name = file.getName().toLowerCase();
+        if (file.isFile() && (name.endsWith(".csv") || name.endsWith(".txt"))) {
+          items.add(new UgiUiUtil.MenuTitleAndHandler(file.getName(), new Runnable() {
+            @Override
+            public void run() {
+              handler.fileChosen(file);
+            }
+          }));
+          if (items.size() == EXPECTED_LIST_MENU_FILES) {
+            break;
+          }
+        }
+      }
+    }
+    items.add(new UgiUiUtil.MenuTitleAndHandler("Paste from clipboard", new Runnable() {
+      @Override
+      public void run() {
+        String text = getClipboardText();
+        if (text == null) {
+          UgiUiUtil.showToast(mUgiActivity, title, "The clipboard is empty");
+          return;
+        }
+        handler.textPasted(text);
+      }
+    }));
+    if (items.size() == 1) {
+      UgiUiUtil.showToast(mUgiActivity, title,
+                          "Copy .csv or .txt lists to " + (dir != null ? dir.getPath() : "the keyboard's files folder"));
+    }
+    UgiUiUtil.showMenu(mUgiActivity, title, null,
+                       items.toArray(new UgiUiUtil.MenuTitleAndHandler[items.size()]));
+  }
+
+  private void loadExpectedList(final File file) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ExpectedEpcList list = null;
+        String error = null;
+        try {
+          list = ExpectedEpcList.load(file);
+        } catch (IOException e) {
+          error = e.getMessage();
+        }
+        final ExpectedEpcList loaded = list;
+        final String message = error;
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (loaded != null) {
+              startReconcile(loaded);
+            } else {
+              UgiUiUtil.showOk(mUgiActivity, "Expected list", "Couldn't read " + file.getName() + ":\n" + message);
+            }
+          }
+        });
+      }
+    }, "ExpectedListLoader").start();
+  }
+
+  private void startReconcile(ExpectedEpcList list) {
+    if (list.size() == 0) {
+      UgiUiUtil.showOk(mUgiActivity, "Expected list", "No EPCs found in the list");
+      return;
+    }
+    if (mEncoding != null) {
+      endEncoding(mEncoding);
+    }
+    mSensorSweep = null;
+    mReconcile = list;
+    String message = list.size() + " EPCs loaded";
+    if (list.getSkippedCount() > 0) {
+      message += ", " + list.getSkippedCount() + " lines skipped";
+    }
+    UgiUiUtil.showToast(mUgiActivity, "Reconciling", message);
+  }
+
+  private void showReconcileMenu() {
+    final ExpectedEpcList list = mReconcile;
+    String title = "Found " + list.getFoundCount() + " of " + list.size()
+        + ", " + list.getUnexpectedCount() + " unexpected";
+    UgiUiUtil.showMenu(mUgiActivity, title, null,
+        new UgiUiUtil.MenuTitleAndHandler("Type " + list.getMissingCount() + " missing", new Runnable() {
+          @Override
+          public void run() {
+            commitReconcileResults(list, true, false);
+          }
+        }),
+        new UgiUiUtil.MenuTitleAndHandler("Type " + list.getUnexpectedCount() + " unexpected", new Runnable() {
+          @Override
+          public void run() {
+            commitReconcileResults(list, false, true);
+          }
+        }),
+        new UgiUiUtil.MenuTitleAndHandler("Start over", new Runnable() {
+          @Override
+          public void run() {
+            list.clearMarks();
+          }
+        }),
+        new UgiUiUtil.MenuTitleAndHandler("End reconciliation", new Runnable() {
+          @Override
+          public void run() {
+            if (mReconcile == list) {
+              mReconcile = null;
+            }
+          }
+        }));
+  }
+
+  /**
+   * Types the missing and/or unexpected EPCs in one commit.  This is a
+   * report on the whole list, so it skips dedupe: an expected EPC typed
+   * earlier in the field is still listed when it's missing now.
+   */
+  private void commitReconcileResults(ExpectedEpcList list, boolean missing, boolean unexpected) {
+    InputConnection ic = getCurrentInputConnection();
+    if (ic == null) return;
+    if (isOffline()) {
+      UgiUiUtil.showToast(mUgiActivity, "Reconciling", "Focus a text field to type the results into");
+      return;
+    }
+    StringBuilder out = new StringBuilder();
+    ScanRecord record = mScanRecord;
+    final long now = System.currentTimeMillis();
+    if (missing) {
+      for (int i = list.nextMissing(0); i >= 0; i = list.nextMissing(i + 1)) {
+        record.reset();
+        record.epc = list.getExpectedEpc(i);
+        record.timestamp = now;
+        appendScan(record, true, false, out);
+      }
+    }
+    if (unexpected) {
+      for (int i = 0; i < list.getUnexpectedCount(); i++) {
+        record.reset();
+        record.epc = list.getUnexpectedEpc(i);
+        record.timestamp = now;
+        appendScan(record, true, false, out);
+      }
+    }
+    ic.beginBatchEdit();
+    commitOutput(out);
+    ic.endBatchEdit();
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Encoding: programming a list of new EPCs onto tags
+
+  private void showEncodingListMenu() {
+    showEpcListMenu("Encode tags", new EpcListHandler() {
+      @Override
+      public void fileChosen(final File file) {
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            byte[][] targets = null;
+            String error = null;
+            try {
+              targets = EncodingQueue.loadTargets(file);
+            } catch (IOException e) {
+              error = e.getMessage();
+            }
+            final byte[][] loaded = targets;
+            final String message = error;
+            mHandler.post(new Runnable() {
+              @Override
+              public void run() {
+                if (loaded != null) {
+                  startEncoding(loaded);
+                } else {
+                  UgiUiUtil.showOk(mUgiActivity, "Encode tags", "Couldn't read " + file.getName() + ":\n" + message);
+                }
+              }
+            });
+          }
+        }, "EncodingListLoader").start();
+      }
+
+      @Override
+      public void textPasted(String text) {
+        startEncoding(EncodingQueue.parseTargets(text));
+      }
+    });
+  }
+
+  /**
+   * Enters encoding mode; the next Grok key inventory programs the targets,
+   * in order, onto tags brought up to the reader.
+   */
+  private void startEncoding(byte[][] targets) {
+    if (targets.length == 0) {
+      UgiUiUtil.showOk(mUgiActivity, "Encode tags", "No EPCs found in the list");
+      return;
+    }
+    stopInventory("startEncoding", null);
+    mReconcile = null;
+    mSensorSweep = null;
+    final EncodingQueue[] holder = new EncodingQueue[1];
+    holder[0] = new EncodingQueue(mHandler, new EncodingQueue.Listener() {
+      @Override
+      public void onTagEncoded(UgiTag tag, byte[] newEpc) {
+        // Typed, so the field keeps a log of what was written
+        commitEpc(newEpc);
+      }
+
+      @Override
+      public void onTagFailed(byte[] epc, UgiInventory.TagAccessReturnValues result) {
+        Log.w(TAG, "Encoding failed for " + new UgiEpc(epc) + ": " + result);
+        UgiUiUtil.showToast(mUgiActivity, "Encode tags", "Couldn't program a tag: " + result);
+      }
+
+      @Override
+      public void onEncodingDone() {
+        EncodingQueue encoding = holder[0];
+        UgiUiUtil.showOk(mUgiActivity, "Encode tags",
+            String.format("Encoded %d tags (%.0f tags/min), %d failures", encoding.getEncodedCount(),
+                          encoding.getTagsPerMinute(), encoding.getFailedCount()));
+        endEncoding(encoding);
+      }
+    }, targets);
+    mEncoding = holder[0];
+    UgiUiUtil.showToast(mUgiActivity, "Encode tags",
+                        targets.length + " EPCs to program; press the Grok key to start");
+  }
+
+  private void endEncoding(EncodingQueue encoding) {
+    if (mEncoding != encoding) {
+      return;
+    }
+    stopInventory("endEncoding", null);
+    mEncoding = null;
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Bulk export of the field's scans
+
+  /** Binder transactions (clipboard, intents) top out near 1 MB */
+  private static final int MAX_EXPORT_CHARS = 400000;
+  /** Per scan typing time assumed until a commit has been timed */
+  private static final long DEFAULT_COMMIT_NANOS = 5000000;
+
+  /**
+   * Formats the scans in the candidate strip, as they would be typed, on a
+   * background thread, then puts them on the clipboard or in a share intent
+   * in one go.  With bulk output, this is the only time collected scans are
+   * output at all.
+   */
+  private void exportScans(final boolean share) {
+    if (mScanRecords.isEmpty()) {
+      UgiUiUtil.showToast(mUgiActivity, "Export", "Nothing has been scanned into this field");
+      return;
+    }
+    final ScanExport export = new ScanExport(getOutputTemplate().getPattern(), getEpcFlags());
+    // The kept records aren't changed, so the thread can read them as is
+    final ScanRecord[] records = mScanRecords.toArray(new ScanRecord[mScanRecords.size()]);
+    int untyped = 0;
+    for (int i = 0; i < mScanTyped.size(); i++) {
+      if (!mScanTyped.get(i)) {
+        untyped++;
+      }
+    }
+    final int untypedCount = untyped;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final StringBuilder formatted = export.format(records);
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            finishExport(formatted, records.length, untypedCount, share);
+          }
+        });
+      }
+    }, "ScanExporter").start();
+  }
+
+  /**
+   * Only scans collected without being typed count towards the typing time
+   * saved; the others were typed already.
+   */
+  private void finishExport(CharSequence text, int count, int untyped, boolean share) {
+    if (text.length() > MAX_EXPORT_CHARS) {
+      UgiUiUtil.showOk(mUgiActivity, "Export",
+                       "Too much to copy at once (" + text.length() / 1024 + " KB); export to a file instead");
+      return;
+    }
+    if (share) {
+      Intent intent = new Intent(Intent.ACTION_SEND);
+      intent.setType("text/plain");
+      intent.putExtra(Intent.EXTRA_TEXT, text);
+      Intent chooser = Intent.createChooser(intent, "Share scans");
+      chooser.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+      startActivity(chooser);
+    } else {
+      ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+      if (clipboard == null) return;
+      clipboard.setPrimaryClip(ClipData.newPlainText("Scans", text));
+    }
+    String message = String.format("%d scans, %.1f KB", count, text.length() / 1024.0);
+    if (untyped > 0) {
+      long perScan = (mCommitCount > 0) ? mCommitNanos / mCommitCount : DEFAULT_COMMIT_NANOS;
+      long savedSeconds = Math.round(perScan * (double) untyped / 1e9);
+      message += String.format("; about %d s of typing saved", savedSeconds);
+    }
+    UgiUiUtil.showToast(mUgiActivity, share ? "Shared" : "Copied", message);
+  }
+
+  /** Recent sessions offered for export to files */
+  private static final int EXPORT_MENU_SESSIONS = 8;
+
+  /**
+   * Offers the journal's latest sessions for export to CSV and columnar
+   * files.  Session details are read on the export executor.
+   */
+  private void showSessionExportMenu() {
+    SessionExporter.execute(new Runnable() {
+      @Override
+      public void run() {
+        final ScanJournal journal = SoftKeyboardApp.getScanJournal();
+        journal.sync();
+        final ArrayList<ScanJournal.Session> sessions = new ArrayList<>();
+        int first = journal.getFirstSessionId();
+        for (int id = journal.getSessionCount() - 1; id >= first && sessions.size() < EXPORT_MENU_SESSIONS; id--) {
+          ScanJournal.Session session = journal.getSession(id);
+          if (session != null) {
+            sessions.add(session);
+          }
+        }
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (sessions.isEmpty()) {
+              UgiUiUtil.showToast(mUgiActivity, "Export", "No scans have been journaled yet");
+              return;
+            }
+            UgiUiUtil.MenuTitleAndHandler[] items = new UgiUiUtil.MenuTitleAndHandler[sessions.size()];
+            for (int i = 0; i < items.length; i++) {
+              final ScanJournal.Session session = sessions.get(i);
+              String title = DateFormat.format("MMM d kk:mm", session.startTime) + "  " + session.packageName;
+              items[i] = new UgiUiUtil.MenuTitleAndHandler(title, new Runnable() {
+                @Override
+                public void run() {
+                  exportSession(journal, session);
+                }
+              });
+            }
+            UgiUiUtil.showMenu(mUgiActivity, "Export session", null, items);
+          }
+        });
+      }
+    });
+  }
+
+  private void exportSession(ScanJournal journal, ScanJournal.Session session) {
+    File dir = getExternalFilesDir("exports");
+    if (dir == null) {
+      UgiUiUtil.showOk(mUgiActivity, "Export", "Shared storage isn't available");
+      return;
+    }
+    String baseName = "scans-" + DateFormat.format("yyyyMMdd-kkmmss", session.startTime);
+    UgiUiUtil.showToast(mUgiActivity, "Export", "Exporting in the background...");
+    SessionExporter.export(journal, session.id, dir, baseName, mHandler, new SessionExporter.Callback() {
+      @Override
+      public void onExported(File csv, File binary, int rows) {
+        UgiUiUtil.showToast(mUgiActivity, "Exported",
+                            String.format("%d scans to %s (%.1f KB) and %s (%.1f KB)",
+                                          rows, csv.getPath(), csv.length() / 1024.0,
+                                          binary.getName(), binary.length() / 1024.0));
+      }
+
+      @Override
+      public void onExportFailed(String message) {
+        UgiUiUtil.showOk(mUgiActivity, "Export", "Couldn't export scans:\n" + message);
+      }
+    });
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Barcodes
+
+  /**
+   * Starts a barcode scan, or cancels the one waiting.  The barcode goes
+   * through the same output template and dedupe as a tag.
+   */
+  private void toggleBarcodeScan() {
+    if (this.mBarcodeScanning) {
+      getUgi().cancelBarcodeScan();
+      this.mBarcodeScanning = false;
+      updateGrokkerIcon();
+      return;
+    }
+    UgiBarcodeConfiguration config = UgiBarcodeConfiguration.getDefaultConfiguration();
+    config.volume = (double) mSettings.getVolume() / 100.0;
+    this.mBarcodeScanning = getUgi().barcodeScan(config, new Ugi.BarcodeScanCompletion() {
+      @Override
+      public void exec(byte[] data) {
+        SoftKeyboard.this.mBarcodeScanning = false;
+        updateGrokkerIcon();
+        if (data != null) {
+          commitBarcode(data);
+        }
+      }
+    });
+    updateGrokkerIcon();
+  }
+
+  private void commitBarcode(byte[] data) {
+    int length = data.length;
+    while (length > 0 && (data[length - 1] == '\r' || data[length - 1] == '\n')) {
+      length--;
+    }
+    if (length == 0) {
+      return;
+    }
+    mScanRecord.reset();
+    mScanRecord.text = new String(data, 0, length, Charset.forName("UTF-8"));
+    mScanRecord.timestamp = System.currentTimeMillis();
+    journalScan(mScanRecord);
+    commitScan(mScanRecord, true);
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // Sensor sweeps
+
+  private void showSensorTypeMenu() {
+    UgiUiUtil.MenuTitleAndHandler[] items = new UgiUiUtil.MenuTitleAndHandler[SensorSweep.TYPE_NAMES.length];
+    for (int i = 0; i < items.length; i++) {
+      final int type = i;
+      items[i] = new UgiUiUtil.MenuTitleAndHandler(SensorSweep.TYPE_NAMES[i], new Runnable() {
+        @Override
+        public void run() {
+          startSensorSweep(type);
+        }
+      });
+    }
+    UgiUiUtil.showMenu(mUgiActivity, "Sensor tags", null, items);
+  }
+
+  /**
+   * Enters sensor sweep mode; each Grok key inventory then reads the sensor
+   * tags in the field and types "EPC,value" rows when it is stopped.
+   */
+  private void startSensorSweep(int type) {
+    stopInventory("startSensorSweep", null);
+    mReconcile = null;
+    if (mEncoding != null) {
+      endEncoding(mEncoding);
+    }
+    mSensorSweep = new SensorSweep(type);
+    UgiUiUtil.showToast(mUgiActivity, "Sensor tags",
+                        "Press the Grok key to read " + SensorSweep.TYPE_NAMES[type] + " tags");
+  }
+
+  /**
+   * Types the sweep's readings as text, so no row ends in an Enter that
+   * could submit the form: one row per line in a multi-line field, else
+   * separated like tags.  With no field the readings stay in the sweep
+   * until the next inventory.
+   */
+  private void commitSensorRows() {
+    if (mSensorSweep.getReadCount() == 0) {
+      UgiUiUtil.showToast(mUgiActivity, "Sensor tags", "No sensor tags were read");
+      return;
+    }
+    if (isOffline()) {
+      UgiUiUtil.showToast(mUgiActivity, "Sensor tags", mSensorSweep.getReadCount()
+          + " readings kept; focus a text field and type them from the Grok key menu");
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    if ((getCurrentInputEditorInfo().inputType & InputType.TYPE_TEXT_FLAG_MULTI_LINE) != 0) {
+      mSensorSweep.appendRows('\n', sb);
+    } else {
+      appendTagSeparator(sb);
+      mSensorSweep.appendRows(',', sb);
+    }
+    onText(sb);
+  }
+
+  /**
+   * Commits a bare EPC that isn't from a current read.
+   */
+  private void commitEpc(byte[] epc) {
+    mScanRecord.reset();
+    mScanRecord.epc = epc;
+    mScanRecord.timestamp = System.currentTimeMillis();
+    commitScan(mScanRecord, true);
+  }
+
+  /**
+   * Returns the selected text, or else the hex digits just before the cursor,
+   * as an EPC; null if there isn't one.
+   */
+  private UgiEpc getEpcFromField() {
+    InputConnection ic = getCurrentInputConnection();
+    if (ic == null) return null;
+    CharSequence text = ic.getSelectedText(0);
+    boolean selected = (text != null && text.length() > 0);
+    if (!selected) {
+      text = ic.getTextBeforeCursor(UgiEpc.MAX_EPC_LENGTH * 2, 0);
+      if (text == null) return null;
+    }
+    int end = text.length();
+    int start = end;
+    while (start > 0 && Character.digit(text.charAt(start - 1), 16) >= 0) {
+      start--;
+    }
+    // A selection must be all hex; before the cursor, take the trailing run
+    int length = end - start;
+    if (length < 4 || (length & 1) != 0 || (selected && start > 0)) {
+      return null;
+    }
+    return new UgiEpc(text.subSequence(start, end).toString());
+  }
+
+  /**
+   * Asks how close in to search, then locates the tag: short range to find
+   * the shelf, very short range to pick it out from its neighbors.
+   */
+  private void startLocate(final UgiEpc epc) {
+    UgiUiUtil.MenuTitleAndHandler[] items = {
+        new UgiUiUtil.MenuTitleAndHandler("Short range", new Runnable() {
+          @Override
+          public void run() {
+            startLocate(epc, UgiRfidConfiguration.InventoryTypes.LOCATE_SHORT_RANGE);
+          }
+        }),
+        new UgiUiUtil.MenuTitleAndHandler("Very short range", new Runnable() {
+          @Override
+          public void run() {
+            startLocate(epc, UgiRfidConfiguration.InventoryTypes.LOCATE_VERY_SHORT_RANGE);
+          }
+        }),
+    };
+    UgiUiUtil.showMenu(mUgiActivity, "Locate " + epc, null, items);
+  }
+
+  /**
+   * Runs a single-EPC locate inventory.  The reader's geiger counter sound
+   * and the meter on the Grok key both follow the tag's read rate.
+   */
+  private void startLocate(final UgiEpc epc, final UgiRfidConfiguration.InventoryTypes type) {
+    stopInventory("startLocate", new UgiInventory.StopInventoryCompletion() {
+      @Override
+      public void exec() {
+        UgiRfidConfiguration config = UgiRfidConfiguration.forInventoryType(type);
+        applyVolumeAndPower(config);
+        if (config.historyIntervalMSec == 0) {
+          config.historyIntervalMSec = LOCATE_HISTORY_INTERVAL_MSEC;
+        }
+        if (config.historyDepth == 0) {
+          config.historyDepth = LOCATE_HISTORY_DEPTH;
+        }
+        Log.i(TAG, "Locating " + epc);
+        mLocateEpc = epc;
+        mLocateTag = null;
+        mLocatePeak = 1;
+        if (mInputView != null) {
+          mInputView.setLocateLevel(0);
+        }
+        getUgi().startInventory(SoftKeyboard.this, config, epc);
+        updateGrokkerIcon();
+      }
+    });
+  }
+
+  private void endLocate() {
+    if (mLocateEpc == null) {
+      return;
+    }
+    mLocateEpc = null;
+    mLocateTag = null;
+    if (mInputView != null) {
+      mInputView.setLocateLevel(-1);
+    }
+  }
+
+  @Override
+  public void inventoryHistoryInterval() {
+    if (mLocateEpc == null || mInputView == null) {
+      return;
+    }
+    float level = 0;
+    if (mLocateTag != null && mLocateTag.isVisible()) {
+      // Average reads per interval over the history, against the best
+      // interval seen so far
+      int[] history = mLocateTag.getTagReadState().getReadHistory();
+      if (history != null && history.length > 0) {
+        int sum = 0;
+        for (int reads : history) {
+          sum += reads;
+          if (reads > mLocatePeak) {
+            mLocatePeak = reads;
+          }
+        }
+        level = Math.min(1f, (float) sum / (history.length * mLocatePeak));
+      }
+    }
+    mInputView.setLocateLevel(level);
+  }
+
+  public String epcToDisplayString(UgiEpc epc) {
+    if (epc == null) return "";
+    mDisplayRecord.reset();
+    mDisplayRecord.epc = epc.toBytes();
+    mDisplayBuilder.setLength(0);
+    mDisplayTemplate.emit(mDisplayRecord, getEpcFlags(), mDisplayBuilder);
+    return mDisplayBuilder.toString();
+  }
+
+  private int getEpcFlags() {
+    boolean ascii = (mProfile != null && mProfile.ascii != null) ? mProfile.ascii : mSettings.getAscii();
+    boolean gs1 = (mProfile != null && mProfile.gs1 != null) ? mProfile.gs1 : mSettings.getGs1();
+    return (ascii ? OutputTemplate.EPC_ASCII : 0) | (gs1 ? OutputTemplate.EPC_GS1 : 0);
   }
 
   @Override public void inventoryDidStop(int result) {
+    endLocate();
     if (result == UGI_INVENTORY_COMPLETED_LOST_CONNECTION) {
       return;
     }
@@ -6,6 +6,7 @@ import android.content.Context;
 import android.util.Log;
 import com.ugrokit.api.Ugi;
 import com.ugrokit.api.UgiServer;
+import java.io.IOException;
 
 /**
  * Android Sot keyboard app
@@ -14,6 +15,8 @@ public class SoftKeyboardApp extends Application {
 
   private static final String TAG = "SoftKeyboardApp";
   private static SoftKeyboardApp sApplication;
+  private static ScanJournal sScanJournal;
+  private static volatile TagStreamServer sTagStream;
 
   private static class Singleton {
     private Ugi mUgi;
@@ -53,6 +56,50 @@ public class SoftKeyboardApp extends Application {
   }
 
 
+  /**
+   * The journal of every scan, opened (and recovered) on first use.
+   */
+  public static synchronized ScanJournal getScanJournal() {
+    if (sScanJournal == null) {
+      sScanJournal = new ScanJournal(sApplication.getFilesDir());
+    }
+    return sScanJournal;
+  }
+
+
+  /**
+   * Starts or stops streaming tag reads to localhost clients that send the
+   * token.  Returns whether the stream is running.
+   */
+  public static synchronized boolean setTagStreamEnabled(boolean enabled, String token) {
+    if (enabled && sTagStream == null) {
+      try {
+        TagStreamServer server = new TagStreamServer(TagStreamServer.DEFAULT_PORT, token);
+        server.start();
+        sTagStream = server;
+      } catch (IOException e) {
+        Log.e(TAG, "Couldn't start the tag stream: " + e.getMessage());
+      }
+    } else if (!enabled && sTagStream != null) {
+      sTagStream.stop();
+      sTagStream = null;
+    }
+    return sTagStream != null;
+  }
+
+
+  /**
+   * Sends a read to the tag stream's clients, if it is running.  Main
+   * thread only.
+   */
+  static void publishTag(ScanRecord record) {
+    TagStreamServer server = sTagStream;
+    if (server != null) {
+      server.publish(record);
+    }
+  }
+
+
   public static Context getUiContext() {
     if (sSingleton == null) {
       Log.e(TAG, "getContext: singleton not created!");
@@ -0,0 +1,157 @@
+package com.ugrokit.softkeyboard;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.ugrokit.api.UgiTag;
+import java.util.Arrays;
+
+/**
+ * Picks the tag the reader is pointed at, rather than the first one heard.
+ *
+ * RSSI samples are averaged per EPC over a short window.  The window is at
+ * least MIN_WINDOW_MSEC long and closes as soon as one tag has enough reads
+ * and leads every other tag by DOMINANCE_DB; if the race stays close it runs
+ * to MAX_WINDOW_MSEC and the best average wins.
+ *
+ * Per-tag sums and counts are primitive arrays indexed by the EPC's dense
+ * id, so a read costs a hash lookup and a few array stores.
+ */
+final class StrongestTagPicker {
+
+  interface Listener {
+    void onStrongestTag(UgiTag tag);
+  }
+
+  private static final long MIN_WINDOW_MSEC = 150;
+  private static final long MAX_WINDOW_MSEC = 600;
+  private static final int MIN_READS = 3;
+  private static final float DOMINANCE_DB = 6;
+
+  private final Handler mHandler;
+  private final Listener mListener;
+  private final Runnable mCloseWindow = new Runnable() {
+    @Override
+    public void run() {
+      closeWindow();
+    }
+  };
+
+  private boolean mRunning;
+  private long mStartTime;
+  // The window ran out before anything was heard: the next read wins
+  private boolean mWindowExpired;
+
+  private final EpcIndex mIndex = new EpcIndex();
+  private UgiTag[] mTags = new UgiTag[0];
+  private float[] mRssiSums = new float[0];
+  private int[] mCounts = new int[0];
+
+  StrongestTagPicker(Handler handler, Listener listener) {
+    this.mHandler = handler;
+    this.mListener = listener;
+  }
+
+  void start() {
+    cancel();
+    mRunning = true;
+    mWindowExpired = false;
+    mStartTime = SystemClock.uptimeMillis();
+    mHandler.postDelayed(mCloseWindow, MAX_WINDOW_MSEC);
+  }
+
+  void cancel() {
+    mHandler.removeCallbacks(mCloseWindow);
+    mRunning = false;
+    Arrays.fill(mTags, null);
+    mIndex.clear();
+  }
+
+  boolean isRunning() {
+    return mRunning;
+  }
+
+  /**
+   * Adds one RSSI sample (in dB) for a tag.
+   */
+  void addRead(UgiTag tag, byte[] epc, float rssi) {
+    if (!mRunning) {
+      return;
+    }
+    final int size = mIndex.size();
+    final int id = mIndex.add(epc);
+    if (id == size) {
+      if (id == mTags.length) {
+        int capacity = mIndex.capacity();
+        mTags = Arrays.copyOf(mTags, capacity);
+        mRssiSums = Arrays.copyOf(mRssiSums, capacity);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+      }
+      mTags[id] = tag;
+      mRssiSums[id] = 0;
+      mCounts[id] = 0;
+    }
+    mRssiSums[id] += rssi;
+    mCounts[id]++;
+    if (mWindowExpired
+        || (SystemClock.uptimeMillis() - mStartTime >= MIN_WINDOW_MSEC && findDominant() >= 0)) {
+      closeWindow();
+    }
+  }
+
+  /**
+   * Stronger of the I and Q channel RSSI, which is what the reader's own
+   * geiger counter tracks.
+   */
+  static float rssiOf(double rssiI, double rssiQ) {
+    return (float) Math.max(rssiI, rssiQ);
+  }
+
+  private void closeWindow() {
+    if (!mRunning) {
+      return;
+    }
+    int best = findDominant();
+    if (best < 0) {
+      float bestMean = -Float.MAX_VALUE;
+      for (int i = 0; i < mIndex.size(); i++) {
+        float mean = mRssiSums[i] / mCounts[i];
+        if (mean > bestMean) {
+          bestMean = mean;
+          best = i;
+        }
+      }
+    }
+    if (best < 0) {
+      // Nothing heard yet: keep listening and take the first tag heard
+      mWindowExpired = true;
+      return;
+    }
+    UgiTag tag = mTags[best];
+    cancel();
+    mListener.onStrongestTag(tag);
+  }
+
+  /**
+   * Returns the index of a tag with enough reads that leads all others by
+   * DOMINANCE_DB, or -1.
+   */
+  private int findDominant() {
+    int best = -1;
+    float bestMean = -Float.MAX_VALUE;
+    float secondMean = -Float.MAX_VALUE;
+    for (int i = 0; i < mIndex.size(); i++) {
+      float mean = mRssiSums[i] / mCounts[i];
+      if (mean > bestMean) {
+        secondMean = bestMean;
+        bestMean = mean;
+        best = i;
+      } else if (mean > secondMean) {
+        secondMean = mean;
+      }
+    }
+    if (best < 0 || mCounts[best] < MIN_READS) {
+      return -1;
+    }
+    return (bestMean - secondMean >= DOMINANCE_DB) ? best : -1;
+  }
+}
@@ -0,0 +1,240 @@
+package com.ugrokit.softkeyboard;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes tag reads to other apps as broadcast intents, in batches.
+ *
+ * A consumer declares a receiver for ACTION_TAGS, and may cap how often it
+ * is sent a batch with an integer meta-data entry META_MAX_BATCHES_PER_SECOND
+ * on the receiver (DEFAULT_BATCHES_PER_SECOND otherwise).  Reads go into a
+ * ring of RING_SIZE shared by every consumer; each consumer is sent what it
+ * hasn't seen yet, at most MAX_BATCH_TAGS at a time, no faster than its
+ * rate.  A consumer that falls a whole ring behind loses the oldest reads,
+ * and is told how many in EXTRA_DROPPED, rather than holding up the reader.
+ *
+ * Each batch is sent only to its consumer (explicit intents, as manifest
+ * receivers no longer get implicit broadcasts), and only if it holds
+ * READ_SCAN_HISTORY.  Its extras are primitive arrays, one entry per read:
+ * EXTRA_EPCS is every EPC's bytes end to end, split by EXTRA_EPC_LENGTHS.
+ */
+final class TagBroadcaster {
+
+  private static final String TAG = "TagBroadcaster";
+
+  // Settings
+  static final int BROADCAST_OFF = 0;
+  static final int BROADCAST_AND_TYPE = 1;
+  static final int BROADCAST_ONLY = 2;
+
+  static final String ACTION_TAGS = "com.ugrokit.softkeyboard.action.TAGS";
+  static final String PERMISSION = "com.ugrokit.softkeyboard.permission.READ_SCAN_HISTORY";
+  static final String META_MAX_BATCHES_PER_SECOND = "com.ugrokit.softkeyboard.maxBatchesPerSecond";
+
+  /** byte[]: EPC bytes, end to end */
+  static final String EXTRA_EPCS = "epcs";
+  /** byte[]: each EPC's length */
+  static final String EXTRA_EPC_LENGTHS = "epcLengths";
+  /** long[]: each read's wall clock time in milliseconds */
+  static final String EXTRA_TIMESTAMPS = "timestamps";
+  /** float[]: each read's RSSI, or NaN */
+  static final String EXTRA_RSSI = "rssi";
+  /** long: the first read's sequence number, counting every read published */
+  static final String EXTRA_SEQUENCE = "sequence";
+  /** long: reads this consumer has lost, in total */
+  static final String EXTRA_DROPPED = "dropped";
+
+  static final int RING_SIZE = 4096;
+  // Keeps a batch well under the binder transaction limit
+  static final int MAX_BATCH_TAGS = 512;
+  private static final int DEFAULT_BATCHES_PER_SECOND = 10;
+  private static final long WINDOW_MSEC = 100;
+  private static final long CONSUMER_REFRESH_MSEC = 10000;
+
+  private static final class Consumer {
+    final ComponentName component;
+    final long minIntervalMsec;
+    // Sequence number of the next read to send
+    long next;
+    long lastSent = Long.MIN_VALUE / 2;
+    long dropped;
+
+    Consumer(ComponentName component, long minIntervalMsec, long next) {
+      this.component = component;
+      this.minIntervalMsec = minIntervalMsec;
+      this.next = next;
+    }
+  }
+
+  private final Context mContext;
+  private final Handler mHandler;
+  private final Runnable mSend = new Runnable() {
+    @Override
+    public void run() {
+      mSendScheduled = false;
+      send();
+    }
+  };
+
+  private final byte[][] mEpcs = new byte[RING_SIZE][];
+  private final long[] mTimes = new long[RING_SIZE];
+  private final float[] mRssi = new float[RING_SIZE];
+  // Sequence number of the next read added
+  private long mHead;
+  private final ArrayList<Consumer> mConsumers = new ArrayList<>();
+  private long mConsumersFound = Long.MIN_VALUE / 2;
+  private boolean mSendScheduled;
+
+  TagBroadcaster(Context context, Handler handler) {
+    this.mContext = context;
+    this.mHandler = handler;
+  }
+
+  /**
+   * Queues a read, for the next batch.  The EPC array is kept, not copied.
+   * Returns false, queuing nothing, if no app receives it.
+   */
+  boolean add(ScanRecord record) {
+    if (record.epc == null || !hasConsumers(false)) {
+      return false;
+    }
+    int slot = (int) (mHead % RING_SIZE);
+    mEpcs[slot] = record.epc;
+    mTimes[slot] = record.timestamp;
+    mRssi[slot] = record.hasRssi ? (float) record.rssi : Float.NaN;
+    mHead++;
+    if (!mSendScheduled) {
+      mHandler.postDelayed(mSend, WINDOW_MSEC);
+      mSendScheduled = true;
+    }
+    return true;
+  }
+
+  /**
+   * Whether any app has a receiver for ACTION_TAGS.  Consumers are looked
+   * up again every CONSUMER_REFRESH_MSEC, or now if refresh is set.
+   */
+  boolean hasConsumers(boolean refresh) {
+    long now = SystemClock.uptimeMillis();
+    if (refresh || now - mConsumersFound >= CONSUMER_REFRESH_MSEC) {
+      findConsumers();
+      mConsumersFound = now;
+    }
+    return !mConsumers.isEmpty();
+  }
+
+  /**
+   * Forgets queued reads and consumers, e.g. when publishing is turned off.
+   */
+  void clear() {
+    mHandler.removeCallbacks(mSend);
+    mSendScheduled = false;
+    mConsumers.clear();
+    mConsumersFound = Long.MIN_VALUE / 2;
+    for (int i = 0; i < RING_SIZE; i++) {
+      mEpcs[i] = null;
+    }
+  }
+
+  /**
+   * Looks up the receivers for ACTION_TAGS, keeping the place of those
+   * already known.
+   */
+  private void findConsumers() {
+    PackageManager pm = mContext.getPackageManager();
+    List<ResolveInfo> receivers = pm.queryBroadcastReceivers(new Intent(ACTION_TAGS), PackageManager.GET_META_DATA);
+    ArrayList<Consumer> consumers = new ArrayList<>();
+    for (ResolveInfo info : receivers) {
+      ActivityInfo receiver = info.activityInfo;
+      if (receiver == null) {
+        continue;
+      }
+      ComponentName component = new ComponentName(receiver.packageName, receiver.name);
+      Consumer consumer = null;
+      for (Consumer known : mConsumers) {
+        if (known.component.equals(component)) {
+          consumer = known;
+        }
+      }
+      if (consumer == null) {
+        Bundle meta = receiver.metaData;
+        int rate = (meta != null) ? meta.getInt(META_MAX_BATCHES_PER_SECOND, DEFAULT_BATCHES_PER_SECOND)
+            : DEFAULT_BATCHES_PER_SECOND;
+        consumer = new Consumer(component, 1000 / Math.max(1, Math.min(rate, 1000)), mHead);
+        Log.i(TAG, "Tag consumer " + component.flattenToShortString() + ", " + rate + " batches/s");
+      }
+      consumers.add(consumer);
+    }
+    mConsumers.clear();
+    mConsumers.addAll(consumers);
+  }
+
+  /**
+   * Sends each consumer whose rate allows it a batch, then checks again a
+   * window later while any consumer still has reads waiting.
+   */
+  private void send() {
+    long now = SystemClock.uptimeMillis();
+    boolean waiting = false;
+    for (int i = 0; i < mConsumers.size(); i++) {
+      Consumer consumer = mConsumers.get(i);
+      if (consumer.next < mHead && now - consumer.lastSent >= consumer.minIntervalMsec) {
+        sendBatch(consumer);
+        consumer.lastSent = now;
+      }
+      waiting |= consumer.next < mHead;
+    }
+    if (waiting) {
+      mHandler.postDelayed(mSend, WINDOW_MSEC);
+      mSendScheduled = true;
+    }
+  }
+
+  private void sendBatch(Consumer consumer) {
+    long oldest = Math.max(mHead - RING_SIZE, 0);
+    if (consumer.next < oldest) {
+      consumer.dropped += oldest - consumer.next;
+      consumer.next = oldest;
+    }
+    int count = (int) Math.min(mHead - consumer.next, MAX_BATCH_TAGS);
+    int bytes = 0;
+    for (long seq = consumer.next; seq < consumer.next + count; seq++) {
+      bytes += mEpcs[(int) (seq % RING_SIZE)].length;
+    }
+    byte[] epcs = new byte[bytes];
+    byte[] lengths = new byte[count];
+    long[] times = new long[count];
+    float[] rssi = new float[count];
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      int slot = (int) ((consumer.next + i) % RING_SIZE);
+      byte[] epc = mEpcs[slot];
+      System.arraycopy(epc, 0, epcs, offset, epc.length);
+      offset += epc.length;
+      lengths[i] = (byte) epc.length;
+      times[i] = mTimes[slot];
+      rssi[i] = mRssi[slot];
+    }
+    Intent intent = new Intent(ACTION_TAGS);
+    intent.setComponent(consumer.component);
+    intent.putExtra(EXTRA_EPCS, epcs);
+    intent.putExtra(EXTRA_EPC_LENGTHS, lengths);
+    intent.putExtra(EXTRA_TIMESTAMPS, times);
+    intent.putExtra(EXTRA_RSSI, rssi);
+    intent.putExtra(EXTRA_SEQUENCE, consumer.next);
+    intent.putExtra(EXTRA_DROPPED, consumer.dropped);
+    mContext.sendBroadcast(intent, PERMISSION);
+    consumer.next += count;
+  }
+}
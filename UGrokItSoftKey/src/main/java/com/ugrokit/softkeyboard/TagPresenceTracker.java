@@ -0,0 +1,115 @@
+package com.ugrokit.softkeyboard;
+
+import com.ugrokit.api.UgiTag;
+import java.util.Arrays;
+
+/**
+ * Which tags are in the reader's field right now, kept up to date from the
+ * inventory's found / changed / subsequent finds callbacks.
+ *
+ * Each EPC gets a dense id from an {@link EpcIndex}; visibility is a bit set
+ * and the latest UgiTag an array, both indexed by id, with a running count
+ * of visible tags.  A second bit set marks the tags already typed, so a tag
+ * typed on request is not typed again when the inventory stops.
+ */
+final class TagPresenceTracker {
+
+  private final EpcIndex mIndex = new EpcIndex();
+  private long[] mVisible = new long[0];
+  private long[] mTyped = new long[0];
+  private UgiTag[] mTags = new UgiTag[0];
+  private int mVisibleCount;
+
+  /**
+   * Records a tag's current visibility.  Returns true if that changed.
+   */
+  boolean update(UgiTag tag, byte[] epc, boolean visible) {
+    final int size = mIndex.size();
+    final int id = mIndex.add(epc);
+    if (id == size && id == mTags.length) {
+      int capacity = mIndex.capacity();
+      mTags = Arrays.copyOf(mTags, capacity);
+      mVisible = Arrays.copyOf(mVisible, (capacity + 63) >>> 6);
+      mTyped = Arrays.copyOf(mTyped, mVisible.length);
+    }
+    mTags[id] = tag;
+    final long bit = 1L << id;
+    final boolean wasVisible = (mVisible[id >>> 6] & bit) != 0;
+    if (wasVisible == visible) {
+      return false;
+    }
+    if (visible) {
+      mVisible[id >>> 6] |= bit;
+      mVisibleCount++;
+    } else {
+      mVisible[id >>> 6] &= ~bit;
+      mVisibleCount--;
+    }
+    return true;
+  }
+
+  int getVisibleCount() {
+    return mVisibleCount;
+  }
+
+  /**
+   * Number of distinct tags seen; ids run from 0 to this minus one.
+   */
+  int size() {
+    return mIndex.size();
+  }
+
+  boolean isVisible(int id) {
+    return (mVisible[id >>> 6] & (1L << id)) != 0;
+  }
+
+  /**
+   * Returns the id of the next visible tag at or after id, or -1.
+   */
+  int nextVisible(int id) {
+    final int size = mIndex.size();
+    int word = id >>> 6;
+    if (id >= size) {
+      return -1;
+    }
+    long bits = mVisible[word] & (-1L << id);
+    while (true) {
+      if (bits != 0) {
+        int next = (word << 6) + Long.numberOfTrailingZeros(bits);
+        return next < size ? next : -1;
+      }
+      if (++word >= mVisible.length) {
+        return -1;
+      }
+      bits = mVisible[word];
+    }
+  }
+
+  /**
+   * Marks a tag as typed.  Returns false if it already was.
+   */
+  boolean markTyped(int id) {
+    final long bit = 1L << id;
+    if ((mTyped[id >>> 6] & bit) != 0) {
+      return false;
+    }
+    mTyped[id >>> 6] |= bit;
+    return true;
+  }
+
+  UgiTag getTag(int id) {
+    return mTags[id];
+  }
+
+  byte[] getEpc(int id) {
+    return mIndex.getEpc(id);
+  }
+
+  void clear() {
+    mIndex.clear();
+    Arrays.fill(mTags, null);
+    Arrays.fill(mVisible, 0);
+    Arrays.fill(mTyped, 0);
+    mVisibleCount = 0;
+  }
+}
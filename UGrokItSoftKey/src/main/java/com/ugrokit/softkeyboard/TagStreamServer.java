@@ -0,0 +1,355 @@
+package com.ugrokit.softkeyboard;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams tag reads to clients on localhost (reachable from a desktop
+ * with "adb forward tcp:7878 tcp:7878").
+ *
+ * Every message is a frame: a 4 byte big endian length, then that many
+ * bytes starting with a type.  A client is first sent FRAME_HELLO and a
+ * version byte, and must answer within AUTH_TIMEOUT_MSEC with FRAME_AUTH
+ * and the token shown in the keyboard's settings (as ASCII); any app can
+ * open a localhost socket, so this stands in for the READ_SCAN_HISTORY
+ * permission that guards the same reads elsewhere.  Then each read is
+ * FRAME_TAG, the time (8 bytes, milliseconds), RSSI (4 byte float, NaN if
+ * unknown), band (0 UHF, 1 HF), EPC length (1) and the EPC.
+ *
+ * publish() encodes a read once and copies it into each client's ring of
+ * RING_BYTES; a thread of its own writes the rings out with a non-blocking
+ * selector.  A client whose ring fills up is disconnected rather than made
+ * to hold up the reader.
+ */
+final class TagStreamServer {
+
+  private static final String TAG = "TagStreamServer";
+
+  static final int DEFAULT_PORT = 7878;
+  static final int FRAME_HELLO = 0;
+  static final int FRAME_TAG = 1;
+  static final int FRAME_AUTH = 2;
+  private static final int MAX_TOKEN_BYTES = 64;
+  private static final long AUTH_TIMEOUT_MSEC = 5000;
+  private static final int VERSION = 1;
+  static final int RING_BYTES = 256 * 1024;
+  private static final int MAX_FRAME_BYTES = 4 + 1 + 8 + 4 + 1 + 1 + 255;
+  private static final int MAX_CLIENTS = 8;
+
+  /**
+   * One client and the frames not yet written to it.  The ring is guarded
+   * by the client; positions count every byte ever queued.
+   */
+  private static final class Client {
+    final SocketChannel channel;
+    final byte[] ring = new byte[RING_BYTES];
+    long head;
+    long tail;
+    boolean overflowed;
+    // Selector thread only
+    final ByteBuffer auth = ByteBuffer.allocate(4 + 1 + MAX_TOKEN_BYTES);
+    final long connected = System.currentTimeMillis();
+    boolean authenticated;
+
+    Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    synchronized boolean queue(byte[] frame, int length) {
+      if (overflowed || head + length - tail > RING_BYTES) {
+        overflowed = true;
+        return false;
+      }
+      int start = (int) (head % RING_BYTES);
+      int first = Math.min(length, RING_BYTES - start);
+      System.arraycopy(frame, 0, ring, start, first);
+      System.arraycopy(frame, first, ring, 0, length - first);
+      head += length;
+      return true;
+    }
+
+    synchronized boolean hasQueued() {
+      return head != tail;
+    }
+
+    /**
+     * Writes what the socket will take; false once everything is written.
+     */
+    boolean write() throws IOException {
+      ByteBuffer buffer;
+      synchronized (this) {
+        if (head == tail) {
+          return false;
+        }
+        int start = (int) (tail % RING_BYTES);
+        int length = (int) Math.min(head - tail, RING_BYTES - start);
+        buffer = ByteBuffer.wrap(ring, start, length);
+      }
+      // The producer only writes past head, so the bytes being sent are stable
+      int written = channel.write(buffer);
+      synchronized (this) {
+        tail += written;
+        return head != tail;
+      }
+    }
+  }
+
+  private final int mPort;
+  private final byte[] mToken;
+  private final Selector mSelector;
+  private final ServerSocketChannel mServer;
+  private final Thread mThread;
+  // Copy on write, so publish() needn't lock against connects
+  private volatile Client[] mClients = new Client[0];
+  private final AtomicBoolean mWakeup = new AtomicBoolean();
+  private final byte[] mFrame = new byte[MAX_FRAME_BYTES];
+  private volatile boolean mRunning = true;
+
+  /**
+   * Opens the server socket; frames are sent once {@link #start} is called.
+   */
+  TagStreamServer(int port, String token) throws IOException {
+    this.mPort = port;
+    this.mToken = token.getBytes("US-ASCII");
+    mSelector = Selector.open();
+    mServer = ServerSocketChannel.open();
+    try {
+      mServer.socket().setReuseAddress(true);
+      mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+      mServer.configureBlocking(false);
+      mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      mServer.close();
+      mSelector.close();
+      throw e;
+    }
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "TagStreamServer");
+  }
+
+  void start() {
+    mThread.start();
+    Log.i(TAG, "Streaming tags on 127.0.0.1:" + mPort);
+  }
+
+  int getPort() {
+    return mPort;
+  }
+
+  int getClientCount() {
+    return mClients.length;
+  }
+
+  /**
+   * Queues a read for every client.  Not thread safe: call from one
+   * thread.
+   */
+  void publish(ScanRecord record) {
+    Client[] clients = mClients;
+    if (clients.length == 0 || record.epc == null) {
+      return;
+    }
+    ByteBuffer frame = ByteBuffer.wrap(mFrame);
+    int epcLength = Math.min(record.epc.length, 255);
+    frame.putInt(1 + 8 + 4 + 1 + 1 + epcLength);
+    frame.put((byte) FRAME_TAG);
+    frame.putLong(record.timestamp);
+    frame.putFloat(record.hasRssi ? (float) record.rssi : Float.NaN);
+    frame.put((byte) (record.hfType != null ? 1 : 0));
+    frame.put((byte) epcLength);
+    frame.put(record.epc, 0, epcLength);
+    for (Client client : clients) {
+      client.queue(mFrame, frame.position());
+    }
+    if (mWakeup.compareAndSet(false, true)) {
+      mSelector.wakeup();
+    }
+  }
+
+  /**
+   * Disconnects every client and closes the socket.
+   */
+  void stop() {
+    mRunning = false;
+    mSelector.wakeup();
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void serve() {
+    ByteBuffer discard = ByteBuffer.allocate(256);
+    try {
+      while (mRunning) {
+        // Wakes up now and then to drop clients that never authenticate
+        mSelector.select(AUTH_TIMEOUT_MSEC);
+        mWakeup.set(false);
+        Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Client client = (Client) key.attachment();
+          try {
+            if (key.isReadable() && !client.authenticated) {
+              if (client.channel.read(client.auth) < 0) {
+                disconnect(key, "closed");
+                continue;
+              }
+              int result = checkAuth(client);
+              if (result < 0) {
+                disconnect(key, "bad token");
+                continue;
+              } else if (result > 0) {
+                client.authenticated = true;
+                setClients();
+                Log.i(TAG, "Tag stream client authenticated, " + mClients.length + " in all");
+              }
+            } else if (key.isReadable()) {
+              // Clients don't send anything more; this only notices them leaving
+              discard.clear();
+              if (client.channel.read(discard) < 0) {
+                disconnect(key, "closed");
+                continue;
+              }
+            }
+            if (key.isWritable() && !client.write()) {
+              key.interestOps(SelectionKey.OP_READ);
+            }
+          } catch (IOException e) {
+            disconnect(key, e.getMessage());
+          }
+        }
+        // Start writing to clients with newly queued frames; drop the
+        // ones that couldn't keep up, or never authenticated
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : mSelector.keys()) {
+          if (!key.isValid() || !(key.attachment() instanceof Client)) {
+            continue;
+          }
+          Client client = (Client) key.attachment();
+          if (!client.authenticated && now - client.connected >= AUTH_TIMEOUT_MSEC) {
+            disconnect(key, "no token");
+          } else if (client.overflowed) {
+            // Reset rather than close, so the frames already in the socket
+            // aren't kept trickling out to a client that isn't reading
+            try {
+              client.channel.socket().setSoLinger(true, 0);
+            } catch (IOException e) {
+              Log.e(TAG, "Couldn't reset: " + e.getMessage());
+            }
+            disconnect(key, "too slow");
+          } else if (client.hasQueued()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      Log.e(TAG, "Tag stream failed: " + e.getMessage());
+    } finally {
+      for (SelectionKey key : mSelector.keys()) {
+        closeQuietly(key);
+      }
+      mClients = new Client[0];
+      try {
+        mSelector.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Couldn't close selector: " + e.getMessage());
+      }
+      Log.i(TAG, "Stopped streaming tags");
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = mServer.accept();
+    if (channel == null) {
+      return;
+    }
+    // Counting the server socket's own key
+    if (mSelector.keys().size() > MAX_CLIENTS) {
+      channel.close();
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Client client = new Client(channel);
+    byte[] hello = { 0, 0, 0, 2, FRAME_HELLO, VERSION };
+    client.queue(hello, hello.length);
+    channel.register(mSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, client);
+    Log.i(TAG, "Tag stream client connected, waiting for its token");
+  }
+
+  /**
+   * Checks a client's AUTH frame: 1 once it has the right token, 0 while
+   * more of the frame is to come, -1 if it's wrong.
+   */
+  private int checkAuth(Client client) {
+    ByteBuffer auth = client.auth;
+    if (auth.position() < 5) {
+      return 0;
+    }
+    int length = auth.getInt(0);
+    if (length < 1 || length > 1 + MAX_TOKEN_BYTES || auth.get(4) != FRAME_AUTH) {
+      return -1;
+    }
+    if (auth.position() < 4 + length) {
+      return 0;
+    }
+    if (auth.position() > 4 + length) {
+      // Nothing may follow the token
+      return -1;
+    }
+    byte[] token = new byte[length - 1];
+    System.arraycopy(auth.array(), 5, token, 0, token.length);
+    return MessageDigest.isEqual(token, mToken) ? 1 : -1;
+  }
+
+  private void disconnect(SelectionKey key, String why) {
+    closeQuietly(key);
+    setClients();
+    Log.i(TAG, "Tag stream client disconnected (" + why + "), " + mClients.length + " left");
+  }
+
+  private void setClients() {
+    ArrayList<Client> clients = new ArrayList<>();
+    for (SelectionKey key : mSelector.keys()) {
+      if (key.isValid() && key.attachment() instanceof Client && ((Client) key.attachment()).authenticated) {
+        clients.add((Client) key.attachment());
+      }
+    }
+    mClients = clients.toArray(new Client[clients.size()]);
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't close: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.ugrokit.softkeyboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import org.junit.Test;
+
+public class ExpectedEpcListTest {
+
+  private static final byte[] A = { 0x30, 0x74, 0x25, 0x7b, (byte) 0xf7, 0x19, 0x4e, 0x40, 0, 0, 0x1a, (byte) 0x85 };
+  private static final byte[] B = { (byte) 0xe2, 0x00, 0x34, 0x12 };
+  private static final byte[] C = {
+      0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88,
+      (byte) 0x99, (byte) 0xaa, (byte) 0xbb, (byte) 0xcc, (byte) 0xdd, (byte) 0xee, (byte) 0xff, 0x00 };
+
+  @Test
+  public void parsesFirstColumnAndSkipsTheRest() {
+    // As a file's bytes, after a UTF-8 byte order mark
+    byte[] bytes = ("\ufeffepc,name\r\n"
+        + "\"3074257BF7194E4000001A85\",pallet\r\n"
+        + "e2003412;box\n"
+        + "\n"
+        + "112233445566778899AABBCCDDEEFF00\n"
+        // Odd digits, over 128 bits, not hex up to the separator
+        + "ABC\n"
+        + "112233445566778899AABBCCDDEEFF0011\n"
+        + "30x4\n"
+        // A duplicate
+        + "E2003412\n").getBytes(Charset.forName("UTF-8"));
+    ExpectedEpcList list = ExpectedEpcList.parse(bytes, bytes.length);
+    assertEquals(3, list.size());
+    // The header starts with hex too ("e"), so it counts
+    assertEquals(4, list.getSkippedCount());
+    assertEquals(3, list.getMissingCount());
+  }
+
+  @Test
+  public void marksFoundAndUnexpected() {
+    ExpectedEpcList list = ExpectedEpcList.parse("3074257BF7194E4000001A85\nE2003412\n");
+    list.mark(B);
+    list.mark(B);
+    list.mark(C);
+    assertEquals(1, list.getFoundCount());
+    assertEquals(1, list.getMissingCount());
+    assertEquals(1, list.getUnexpectedCount());
+    assertArrayEquals(C, list.getUnexpectedEpc(0));
+
+    int missing = list.nextMissing(0);
+    assertArrayEquals(A, list.getExpectedEpc(missing));
+    assertEquals(-1, list.nextMissing(missing + 1));
+
+    list.clearMarks();
+    assertEquals(0, list.getFoundCount());
+    assertEquals(0, list.getUnexpectedCount());
+  }
+
+  @Test
+  public void keepsLongestEpcs() {
+    ExpectedEpcList list = ExpectedEpcList.parse("112233445566778899AABBCCDDEEFF00\n");
+    assertArrayEquals(C, list.getExpectedEpc(0));
+    list.mark(C);
+    assertEquals(0, list.getMissingCount());
+  }
+}
@@ -0,0 +1,67 @@
+package com.ugrokit.softkeyboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class Gs1EpcDecoderTest {
+
+  private static byte[] hex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static String elementString(Gs1EpcDecoder decoder) {
+    StringBuilder sb = new StringBuilder();
+    decoder.appendElementString(sb);
+    return sb.toString();
+  }
+
+  // Examples from the EPC Tag Data Standard
+
+  @Test
+  public void decodesSgtin96() {
+    Gs1EpcDecoder decoder = new Gs1EpcDecoder();
+    assertTrue(decoder.decode(hex("3074257BF7194E4000001A85")));
+    assertEquals(Gs1EpcDecoder.SCHEME_SGTIN, decoder.getScheme());
+    assertEquals(3, decoder.getFilter());
+    assertEquals("(01)80614141123458(21)6789", elementString(decoder));
+    StringBuilder serial = new StringBuilder();
+    decoder.appendSerial(serial);
+    assertEquals("6789", serial.toString());
+  }
+
+  @Test
+  public void decodesSscc96() {
+    Gs1EpcDecoder decoder = new Gs1EpcDecoder();
+    assertTrue(decoder.decode(hex("3174257BF4499602D2000000")));
+    assertEquals(Gs1EpcDecoder.SCHEME_SSCC, decoder.getScheme());
+    assertEquals("(00)106141412345678908", elementString(decoder));
+  }
+
+  @Test
+  public void rejectsOtherEpcs() {
+    Gs1EpcDecoder decoder = new Gs1EpcDecoder();
+    // Unknown header
+    assertFalse(decoder.decode(hex("E2003412B802011812345678")));
+    assertEquals(Gs1EpcDecoder.SCHEME_NONE, decoder.getScheme());
+    assertEquals("", elementString(decoder));
+    // Too short
+    assertFalse(decoder.decode(hex("3074257BF7194E40")));
+    // Partition 7 is reserved
+    assertFalse(decoder.decode(hex("307C257BF7194E4000001A85")));
+  }
+
+  @Test
+  public void readsBitsAcrossBytes() {
+    byte[] bytes = hex("0123456789ABCDEF0123");
+    assertEquals(0x0, Gs1EpcDecoder.getBits(bytes, 0, 4));
+    assertEquals(0x123, Gs1EpcDecoder.getBits(bytes, 4, 12));
+    assertEquals(0x3456789ABCDEF012L, Gs1EpcDecoder.getBits(bytes, 12, 64));
+  }
+}
@@ -0,0 +1,73 @@
+package com.ugrokit.softkeyboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OutputTemplateTest {
+
+  private static final byte[] SGTIN = {
+      0x30, 0x74, 0x25, 0x7b, (byte) 0xf7, 0x19, 0x4e, 0x40, 0, 0, 0x1a, (byte) 0x85 };
+
+  private static String emit(String pattern, ScanRecord record, int epcFlags) {
+    StringBuilder out = new StringBuilder();
+    OutputTemplate.compile(pattern).emit(record, epcFlags, out);
+    return out.toString();
+  }
+
+  private static ScanRecord tag(byte[] epc) {
+    ScanRecord record = new ScanRecord();
+    record.epc = epc;
+    record.timestamp = 1700000000000L;
+    return record;
+  }
+
+  @Test
+  public void defaultsToEpc() {
+    assertTrue(OutputTemplate.compile(null).isDefault());
+    assertTrue(OutputTemplate.compile("").isDefault());
+    assertEquals(OutputTemplate.DEFAULT_PATTERN, OutputTemplate.compile("").getPattern());
+    assertFalse(OutputTemplate.compile("{epc}{tab}").isDefault());
+  }
+
+  @Test
+  public void rendersEpcPerFlags() {
+    ScanRecord record = tag(SGTIN);
+    assertEquals("3074257BF7194E4000001A85", emit("{epc}", record, 0));
+    assertEquals("(01)80614141123458(21)6789", emit("{epc}", record, OutputTemplate.EPC_GS1));
+    // Not 7-bit text, so ASCII falls back to hex
+    assertEquals("3074257BF7194E4000001A85", emit("{epc}", record, OutputTemplate.EPC_ASCII));
+    assertEquals("AB", emit("{epc}", tag(new byte[] { 'A', 'B', 0, 0 }), OutputTemplate.EPC_ASCII));
+    // An HF UID is always hex
+    record.hfType = "ISO15693";
+    assertEquals("3074257BF7194E4000001A85", emit("{epc}", record, OutputTemplate.EPC_GS1));
+  }
+
+  @Test
+  public void fillsPlaceholders() {
+    ScanRecord record = tag(SGTIN);
+    record.tid = new byte[] { (byte) 0xe2, (byte) 0x80 };
+    record.rssi = -61.6;
+    record.hasRssi = true;
+    assertEquals("SKU:80614141123458 SN:6789\tE280 -62 1700000000000 UHF\n",
+                 emit("SKU:{gtin} SN:{serial}{tab}{tid} {rssi} {time} {band}{enter}", record, 0));
+  }
+
+  @Test
+  public void typesTextScansAndLiterals() {
+    ScanRecord record = new ScanRecord();
+    record.text = "0123456789";
+    assertEquals("[0123456789]", emit("[{epc}]", record, OutputTemplate.EPC_GS1));
+    assertEquals("{epc} {nope} {", emit("{{epc} {nope} {", record, 0));
+    assertEquals("", emit("{gtin}{serial}{tid}{band}", record, 0));
+  }
+
+  @Test
+  public void reportsMemoryBanksUsed() {
+    assertTrue(OutputTemplate.compile("{epc},{tid}").usesTid());
+    assertFalse(OutputTemplate.compile("{epc},{tid}").usesUser());
+    assertTrue(OutputTemplate.compile("{user}").usesUser());
+  }
+}
@@ -0,0 +1,258 @@
+package com.ugrokit.softkeyboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScanJournalTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private static byte[] epc(int n) {
+    return new byte[] { 0x30, 0x74, 0x25, 0x7b, (byte) 0xf7, 0x19, 0x4e, 0x40, 0, 0, (byte) (n >> 8), (byte) n };
+  }
+
+  private static void appendEpcs(ScanJournal journal, int first, int count) {
+    ScanRecord record = new ScanRecord();
+    for (int n = first; n < first + count; n++) {
+      record.reset();
+      record.epc = epc(n);
+      record.timestamp = 1000 + n;
+      if (n % 2 == 0) {
+        record.rssi = -50 - n % 10;
+        record.hasRssi = true;
+      }
+      journal.appendScan(record);
+    }
+  }
+
+  /**
+   * Reads the rest of a reader's scans, checking they are numbered from first
+   * on; returns how many there were.
+   */
+  private static int readEpcs(ScanJournal.Reader reader, int first) throws IOException {
+    ScanRecord record = new ScanRecord();
+    int count = 0;
+    try {
+      while (reader.next(record)) {
+        int n = first + count;
+        assertArrayEquals(epc(n), record.epc);
+        assertEquals(1000 + n, record.timestamp);
+        assertEquals(n % 2 == 0, record.hasRssi);
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    return count;
+  }
+
+  private File journalFile() {
+    return new File(mFolder.getRoot(), ScanJournal.JOURNAL_FILE);
+  }
+
+  private File indexFile() {
+    return new File(mFolder.getRoot(), ScanJournal.INDEX_FILE);
+  }
+
+  @Test
+  public void readsBackSessionsAndScans() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    journal.startSession("com.example.a", 7, 500);
+    appendEpcs(journal, 0, 5);
+    ScanRecord text = new ScanRecord();
+    text.text = "\u00e9tiquette";
+    text.timestamp = 2000;
+    journal.startSession("com.example.b", 8, 600);
+    journal.appendScan(text);
+    journal.sync();
+
+    assertEquals(2, journal.getSessionCount());
+    assertEquals(600, journal.getSessionStartTime(1));
+    ScanJournal.Session session = journal.getSession(0);
+    assertEquals("com.example.a", session.packageName);
+    assertEquals(7, session.fieldId);
+    assertEquals(5, readEpcs(journal.openSession(0), 0));
+
+    ScanJournal.Reader reader = journal.openSession(1);
+    ScanRecord record = new ScanRecord();
+    assertTrue(reader.next(record));
+    assertEquals("\u00e9tiquette", record.text);
+    assertNull(record.epc);
+    assertFalse(reader.next(record));
+    reader.close();
+  }
+
+  @Test
+  public void cutsOffTornTail() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    journal.startSession("com.example", 1, 500);
+    appendEpcs(journal, 0, 3);
+    journal.sync();
+    long length = journalFile().length();
+
+    // A scan record whose write stopped partway
+    RandomAccessFile file = new RandomAccessFile(journalFile(), "rw");
+    file.seek(length);
+    file.write(new byte[] { 2, 0, 0, 29, 0, 0, 0, 0, 0, 0, 3 });
+    file.close();
+
+    ScanJournal reopened = new ScanJournal(mFolder.getRoot());
+    reopened.sync();
+    assertEquals(length, journalFile().length());
+    assertEquals(1, reopened.getSessionCount());
+    assertEquals(3, readEpcs(reopened.openSession(0), 0));
+
+    // Writing carries on from the cut
+    appendEpcs(reopened, 3, 2);
+    reopened.sync();
+    assertEquals(5, readEpcs(reopened.openSession(0), 0));
+  }
+
+  @Test
+  public void dropsRecordWithBadCrc() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    journal.startSession("com.example", 1, 500);
+    appendEpcs(journal, 0, 3);
+    journal.sync();
+    long length = journalFile().length();
+
+    RandomAccessFile file = new RandomAccessFile(journalFile(), "rw");
+    file.seek(length - 6);
+    int b = file.read();
+    file.seek(length - 6);
+    file.write(b ^ 0xff);
+    file.close();
+
+    ScanJournal reopened = new ScanJournal(mFolder.getRoot());
+    reopened.sync();
+    assertTrue(journalFile().length() < length);
+    assertEquals(2, readEpcs(reopened.openSession(0), 0));
+  }
+
+  @Test
+  public void rebuildsMissingIndex() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    for (int i = 0; i < 3; i++) {
+      journal.startSession("com.example", i, 500 + i);
+      appendEpcs(journal, 10 * i, 4);
+    }
+    journal.sync();
+    long indexLength = indexFile().length();
+    assertTrue(indexFile().delete());
+
+    ScanJournal reopened = new ScanJournal(mFolder.getRoot());
+    reopened.sync();
+    assertEquals(3, reopened.getSessionCount());
+    assertEquals(indexLength, indexFile().length());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(500 + i, reopened.getSessionStartTime(i));
+      assertEquals(i, reopened.getSession(i).fieldId);
+      assertEquals(4, readEpcs(reopened.openSession(i), 10 * i));
+    }
+  }
+
+  @Test
+  public void addsSessionsMissingFromIndex() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    for (int i = 0; i < 3; i++) {
+      journal.startSession("com.example", i, 500 + i);
+      appendEpcs(journal, 10 * i, 4);
+    }
+    journal.sync();
+    long indexLength = indexFile().length();
+    // Only the first entry, and half of the second, made it to disk
+    RandomAccessFile index = new RandomAccessFile(indexFile(), "rw");
+    index.setLength(indexLength / 3 + 8);
+    index.close();
+
+    ScanJournal reopened = new ScanJournal(mFolder.getRoot());
+    reopened.sync();
+    assertEquals(3, reopened.getSessionCount());
+    assertEquals(indexLength, indexFile().length());
+    assertEquals(4, readEpcs(reopened.openSession(2), 20));
+  }
+
+  @Test
+  public void rotatesWhenFull() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot(), 1000);
+    journal.startSession("com.example", 1, 500);
+    appendEpcs(journal, 0, 40);
+    journal.sync();
+    assertTrue(journalFile().length() >= 1000);
+    assertFalse(new File(journalFile().getPath() + ScanJournal.OLD_SUFFIX).exists());
+
+    // The session in progress finishes in the full journal
+    appendEpcs(journal, 40, 2);
+    journal.startSession("com.example", 2, 600);
+    appendEpcs(journal, 100, 3);
+    journal.sync();
+
+    assertTrue(new File(journalFile().getPath() + ScanJournal.OLD_SUFFIX).exists());
+    assertTrue(new File(indexFile().getPath() + ScanJournal.OLD_SUFFIX).exists());
+    assertEquals(1, journal.getFirstSessionId());
+    assertEquals(2, journal.getSessionCount());
+    assertEquals(600, journal.getSessionStartTime(1));
+    assertEquals(0, journal.getSessionStartTime(0));
+    assertNull(journal.getSession(0));
+    try {
+      journal.openSession(0);
+      fail("Session 0 was rotated out");
+    } catch (IOException expected) {
+      // expected
+    }
+    assertEquals(3, readEpcs(journal.openSession(1), 100));
+
+    // The old journal has the whole of the first session
+    File old = mFolder.newFolder();
+    assertTrue(new File(journalFile().getPath() + ScanJournal.OLD_SUFFIX)
+        .renameTo(new File(old, ScanJournal.JOURNAL_FILE)));
+    ScanJournal oldJournal = new ScanJournal(old);
+    oldJournal.sync();
+    assertEquals(1, oldJournal.getSessionCount());
+    assertEquals(42, readEpcs(oldJournal.openSession(0), 0));
+  }
+
+  @Test
+  public void resumesReaderAtRecordOffset() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    journal.startSession("com.example", 1, 500);
+    appendEpcs(journal, 0, 10);
+    journal.sync();
+
+    ScanJournal.Reader reader = journal.openSession(0);
+    ScanRecord record = new ScanRecord();
+    for (int i = 0; i < 4; i++) {
+      assertTrue(reader.next(record));
+    }
+    long offset = reader.getRecordOffset();
+    long end = reader.getEnd();
+    reader.close();
+
+    // Scans added later are past the reader's end
+    appendEpcs(journal, 10, 5);
+    journal.sync();
+
+    // Resuming at the last scan read returns it again
+    assertEquals(7, readEpcs(journal.openRange(0, offset, end), 3));
+    assertEquals(15, readEpcs(journal.openSession(0), 0));
+  }
+
+  @Test(expected = IOException.class)
+  public void refusesRangeOfUnknownSession() throws IOException {
+    ScanJournal journal = new ScanJournal(mFolder.getRoot());
+    journal.sync();
+    journal.openRange(0, 0, 0);
+  }
+}
@@ -0,0 +1,218 @@
+package com.ugrokit.softkeyboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionExporterTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private static ScanRecord epcScan(byte[] epc, long time, double rssi) {
+    ScanRecord record = new ScanRecord();
+    record.epc = epc;
+    record.timestamp = time;
+    if (!Double.isNaN(rssi)) {
+      record.rssi = rssi;
+      record.hasRssi = true;
+    }
+    return record;
+  }
+
+  private static ScanRecord textScan(String text, long time) {
+    ScanRecord record = new ScanRecord();
+    record.text = text;
+    record.timestamp = time;
+    return record;
+  }
+
+  /**
+   * Journals the scans as one session and exports it; returns the scans read
+   * back from the columnar file.
+   */
+  private ArrayList<ScanRecord> roundTrip(ArrayList<ScanRecord> scans, File csv) throws IOException {
+    File dir = mFolder.newFolder();
+    ScanJournal journal = new ScanJournal(dir);
+    journal.startSession("com.example", 1, 100);
+    for (ScanRecord scan : scans) {
+      journal.appendScan(scan);
+    }
+    journal.sync();
+    File binary = new File(dir, "session.scans");
+    assertEquals(scans.size(), SessionExporter.write(journal, 0, csv, binary));
+    return readColumns(binary);
+  }
+
+  private static void assertSameScans(ArrayList<ScanRecord> expected, ArrayList<ScanRecord> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      ScanRecord want = expected.get(i);
+      ScanRecord got = actual.get(i);
+      assertArrayEquals(want.epc, got.epc);
+      assertEquals(want.text, got.text);
+      assertEquals(want.timestamp, got.timestamp);
+      assertEquals(want.hasRssi, got.hasRssi);
+      if (want.hasRssi) {
+        // Journaled as a float, exported in hundredths
+        assertEquals(want.rssi, got.rssi, 0.005);
+      }
+    }
+  }
+
+  @Test
+  public void roundTripsEveryKindOfScan() throws IOException {
+    ArrayList<ScanRecord> scans = new ArrayList<>();
+    scans.add(epcScan(new byte[] { 0x30, 0x74, 0x25, 0x7b, (byte) 0xf7, 0x19, 0x4e, 0x40, 0, 0, 0x1a, (byte) 0x85 },
+                      1700000000000L, -61.3));
+    // Longer than 16 bytes, so some of it goes in the remainder column
+    byte[] longEpc = new byte[25];
+    for (int i = 0; i < longEpc.length; i++) {
+      longEpc[i] = (byte) (0x36 + i * 7);
+    }
+    scans.add(epcScan(longEpc, 1700000000250L, Double.NaN));
+    scans.add(textScan("SKU \"12\", \u00fcnits", 1700000000100L));
+    scans.add(epcScan(new byte[] { (byte) 0xe2, 0x00 }, 1700000000100L, -40));
+    scans.add(textScan("", 1700000000400L));
+
+    File csv = new File(mFolder.getRoot(), "session.csv");
+    assertSameScans(scans, roundTrip(scans, csv));
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), UTF8));
+    try {
+      assertEquals("time,epc,text,rssi", reader.readLine());
+      assertEquals("1700000000000,3074257BF7194E4000001A85,,-61.3", reader.readLine());
+      reader.readLine();
+      assertEquals("1700000000100,,\"SKU \"\"12\"\", \u00fcnits\",", reader.readLine());
+      assertEquals("1700000000100,E200,,-40.0", reader.readLine());
+      assertEquals("1700000000400,,\"\",", reader.readLine());
+      assertNull(reader.readLine());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void roundTripsAcrossBlocks() throws IOException {
+    ArrayList<ScanRecord> scans = new ArrayList<>();
+    for (int i = 0; i < SessionExporter.BLOCK_ROWS + 10; i++) {
+      byte[] epc = ByteBuffer.allocate(12).putInt(0x30742500).putLong(i).array();
+      scans.add(epcScan(epc, 1700000000000L + i * 3, (i % 3 == 0) ? Double.NaN : -70 + (i % 40) / 4.0));
+    }
+    assertSameScans(scans, roundTrip(scans, new File(mFolder.getRoot(), "many.csv")));
+  }
+
+  @Test
+  public void exportsEmptySession() throws IOException {
+    assertEquals(0, roundTrip(new ArrayList<ScanRecord>(), new File(mFolder.getRoot(), "empty.csv")).size());
+  }
+
+  /////////////////////////////////////////////////////////////////
+  // A reader for the columnar format, as documented in SessionExporter
+
+  private static ArrayList<ScanRecord> readColumns(File file) throws IOException {
+    ArrayList<ScanRecord> scans = new ArrayList<>();
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      byte[] magic = new byte[4];
+      in.readFully(magic);
+      assertEquals("GRKS", new String(magic, UTF8));
+      assertEquals(1, in.readByte());
+      long time = 0;
+      while (true) {
+        int rows = in.readInt();
+        if (rows == 0) {
+          break;
+        }
+        ByteBuffer high = ByteBuffer.wrap(readColumn(in));
+        ByteBuffer low = ByteBuffer.wrap(readColumn(in));
+        ByteBuffer lengths = ByteBuffer.wrap(readColumn(in));
+        ByteBuffer remainder = ByteBuffer.wrap(readColumn(in));
+        ByteBuffer deltas = ByteBuffer.wrap(readColumn(in));
+        ByteBuffer rssi = ByteBuffer.wrap(readColumn(in));
+        assertEquals(rows * 8, high.capacity());
+        assertEquals(rows * 2, rssi.capacity());
+        for (int i = 0; i < rows; i++) {
+          ScanRecord record = new ScanRecord();
+          long h = high.getLong();
+          long l = low.getLong();
+          int length = lengths.getShort() & 0xffff;
+          if ((length & 0x8000) != 0) {
+            byte[] text = new byte[length & 0x7fff];
+            remainder.get(text);
+            record.text = new String(text, UTF8);
+          } else {
+            byte[] head = ByteBuffer.allocate(16).putLong(h).putLong(l).array();
+            record.epc = Arrays.copyOf(head, length);
+            if (length > 16) {
+              remainder.get(record.epc, 16, length - 16);
+            }
+          }
+          long zigzag = readVarint(deltas);
+          time += (zigzag >>> 1) ^ -(zigzag & 1);
+          record.timestamp = time;
+          short hundredths = rssi.getShort();
+          if (hundredths != Short.MIN_VALUE) {
+            record.rssi = hundredths / 100.0;
+            record.hasRssi = true;
+          }
+          scans.add(record);
+        }
+        assertEquals(0, remainder.remaining());
+        assertEquals(0, deltas.remaining());
+      }
+    } finally {
+      in.close();
+    }
+    return scans;
+  }
+
+  private static byte[] readColumn(DataInputStream in) throws IOException {
+    byte[] compressed = new byte[in.readInt()];
+    in.readFully(compressed);
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    try {
+      while (!inflater.finished()) {
+        out.write(buffer, 0, inflater.inflate(buffer));
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      inflater.end();
+    }
+    return out.toByteArray();
+  }
+
+  private static long readVarint(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+}